@@ -2,25 +2,43 @@ package com.suto;
 
 import com.suto.controller.*;
 import com.suto.repository.*;
+import com.suto.security.AdminAccess;
+import com.suto.security.ClientRateLimiter;
 import com.suto.security.JwtUtil;
 import com.suto.service.*;
+import com.suto.util.AdaptiveConcurrencyLimit;
 import com.suto.util.JsonFileService;
+import com.suto.util.RequestExecutor;
+import com.suto.util.WorkloadScheduler;
+import com.suto.util.WorkloadScheduler.Bulkhead;
+import com.suto.util.WorkloadScheduler.Priority;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Main Application Entry Point - Replaces Spring Boot
  */
 public class Application {
 
+    // routes, auth, bookings and ops, each with at least one worker reserved
+    private static final int BULKHEADS = 4;
+
     private static AuthController authController;
     private static RouteController routeController;
     private static BookingController bookingController;
     private static UserController userController;
+    private static AdminController adminController;
+    private static ServerController serverController;
+    private static RequestExecutor requestExecutor; // null when requests run in bulkheads
+    private static WorkloadScheduler scheduler; // null when bulkheads are turned off
+    private static JwtUtil jwtUtil;
+    private static ClientRateLimiter rateLimiter;
+    private static AdaptiveConcurrencyLimit concurrencyLimit;
 
     public static void main(String[] args) throws IOException {
         System.out.println("Starting SUTO Java Application...");
@@ -31,22 +49,54 @@ public class Application {
         // Create HTTP Server
         HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
 
+        // Bulkheads: route search is CPU-bound, auth is deliberately slow (BCrypt),
+        // bookings and profiles wait on the JSON files, and ops (stats, admin changes)
+        // reserves a worker of its own so it still gets through when the others are
+        // saturated. The caps add up to the workers, so each one is reserved capacity.
+        Bulkhead routes = null;
+        Bulkhead auth = null;
+        Bulkhead bookings = null;
+        Bulkhead ops = null;
+        if (scheduler != null) {
+            ops = scheduler.bulkhead("ops", 1, 16);
+            int shared = scheduler.getUnreservedWorkers();
+            routes = scheduler.bulkhead("routes", Math.max(1, shared / 2), 128);
+            auth = scheduler.bulkhead("auth", Math.max(1, shared / 4), 32);
+            bookings = scheduler.bulkhead("bookings", scheduler.getUnreservedWorkers(), 64);
+        }
+
         // Register routes
-        server.createContext("/api/auth/signup", new SignupHandler());
-        server.createContext("/api/auth/login", new LoginHandler());
-        server.createContext("/api/routes/find", new RouteFindHandler());
-        server.createContext("/api/bookings", new BookingsHandler());
-        server.createContext("/api/users/me", new UserMeHandler());
+        server.createContext("/api/auth/signup", isolated(auth, new SignupHandler()));
+        server.createContext("/api/auth/login", isolated(auth, new LoginHandler()));
+        server.createContext("/api/routes/find", isolated(routes, new RouteFindHandler()));
+        server.createContext("/api/routes/batch", isolated(routes, new RouteBatchHandler()));
+        server.createContext("/api/routes/cache", isolated(ops, new RouteCacheHandler()));
+        server.createContext("/api/routes/transfers", isolated(routes, new RouteTransfersHandler()));
+        server.createContext("/api/routes/reachable", isolated(routes, new RouteReachableHandler()));
+        server.createContext("/api/bookings", isolated(bookings, new BookingsHandler()));
+        server.createContext("/api/users/me", isolated(bookings, new UserMeHandler()));
+        server.createContext("/api/admin/graph/changes", isolated(ops, new AdminGraphChangesHandler()));
+        server.createContext("/api/server/stats", isolated(ops, new ServerStatsHandler()));
 
-        server.setExecutor(null); // Use default executor
+        // With bulkheads the dispatcher thread only admits requests and hands them straight to a
+        // bulkhead worker; a request executor in front would add a second hop and queue
+        server.setExecutor(scheduler != null ? null : requestExecutor);
         server.start();
 
-        System.out.println("Server started on http://localhost:8080");
+        System.out.println("Server started on http://localhost:8080, handling requests "
+                + (scheduler != null ? "in bulkheads on " + scheduler.getWorkers() + " workers" : "on " + requestExecutor));
     }
 
     private static void initializeDependencies() {
         // Utilities
         JsonFileService jsonFileService = new JsonFileService();
+        if (Boolean.parseBoolean(System.getProperty("suto.bulkheads", "true"))) {
+            scheduler = WorkloadScheduler.fromSystemProperties(BULKHEADS);
+        } else {
+            requestExecutor = RequestExecutor.fromSystemProperties();
+        }
+        rateLimiter = ClientRateLimiter.fromSystemProperties();
+        concurrencyLimit = AdaptiveConcurrencyLimit.fromSystemProperties();
 
         // Repositories
         JsonUserRepository userRepository = new JsonUserRepository(jsonFileService);
@@ -55,7 +105,12 @@ public class Application {
         // Services
         GraphService graphService = new GraphService();
         PathFinderService pathFinderService = new PathFinderService(graphService);
-        JwtUtil jwtUtil = new JwtUtil();
+        try {
+            graphService.watchGraphFile();
+        } catch (IOException e) {
+            System.err.println("Graph file changes will not be picked up: " + e.getMessage());
+        }
+        jwtUtil = new JwtUtil();
 
         AuthService authService = new AuthService(userRepository, jwtUtil);
         UserService userService = new UserService(userRepository, jwtUtil);
@@ -66,6 +121,10 @@ public class Application {
         routeController = new RouteController(pathFinderService);
         bookingController = new BookingController(bookingService);
         userController = new UserController(userService);
+        AdminAccess adminAccess = new AdminAccess(jwtUtil, userRepository);
+        adminController = new AdminController(graphService, adminAccess);
+        serverController = new ServerController(requestExecutor, scheduler, rateLimiter, concurrencyLimit,
+                adminAccess);
 
         System.out.println("All dependencies initialized");
     }
@@ -107,6 +166,54 @@ public class Application {
         }
     }
 
+    static class RouteBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            routeController.handleBatch(exchange);
+        }
+    }
+
+    static class RouteCacheHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            routeController.handleCacheStats(exchange);
+        }
+    }
+
+    static class RouteTransfersHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            routeController.handleTransfers(exchange);
+        }
+    }
+
+    static class RouteReachableHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            routeController.handleReachable(exchange);
+        }
+    }
+
     static class BookingsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -139,6 +246,112 @@ public class Application {
         }
     }
 
+    static class AdminGraphChangesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            if ("POST".equals(method)) {
+                adminController.handleApplyGraphChange(exchange);
+            } else if ("GET".equals(method)) {
+                adminController.handleGetGraphChanges(exchange);
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    static class ServerStatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            handleCors(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            serverController.handleStats(exchange);
+        }
+    }
+
+    /**
+     * Admits a request and runs it in a bulkhead rather than on the thread
+     * that accepted it. Admission only looks at headers, so a refused request
+     * costs no body parsing: 429 when the client (signed-in user, else remote
+     * address) is over its rate, 503 when the server is at its concurrency
+     * limit or the bulkhead's queue is full. CORS preflights are answered
+     * directly. With bulkheads turned off, an admitted request runs right
+     * away on the request executor thread that admitted it.
+     */
+    private static HttpHandler isolated(Bulkhead bulkhead, HttpHandler handler) {
+        return exchange -> {
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                handler.handle(exchange);
+                return;
+            }
+            String subject = jwtUtil.verifiedSubject(exchange.getRequestHeaders().getFirst("Authorization"));
+            String client = subject != null ? "user:" + subject
+                    : "ip:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+            long retryAfter = rateLimiter.tryAcquire(client);
+            if (retryAfter > 0) {
+                reject(exchange, 429, retryAfter, "Too many requests, please slow down");
+                return;
+            }
+            if (!concurrencyLimit.tryAcquire()) {
+                reject(exchange, 503, 1, "Server busy, please retry");
+                return;
+            }
+
+            long admitted = System.nanoTime();
+            Runnable work = () -> {
+                try {
+                    handler.handle(exchange);
+                } catch (IOException e) {
+                    System.err.println("Error handling " + exchange.getRequestURI() + ": " + e.getMessage());
+                } finally {
+                    exchange.close();
+                    concurrencyLimit.release(admitted);
+                }
+            };
+            if (scheduler == null) {
+                work.run();
+                return;
+            }
+            if (!scheduler.submit(bulkhead, priorityOf(exchange, subject != null), work)) {
+                concurrencyLimit.cancel();
+                reject(exchange, 503, 1, "Server busy, please retry");
+            }
+        };
+    }
+
+    /**
+     * Booking writes by signed-in users first, anonymous requests last.
+     */
+    private static Priority priorityOf(HttpExchange exchange, boolean signedIn) {
+        if (!signedIn) {
+            return Priority.LOW;
+        }
+        boolean bookingWrite = "POST".equals(exchange.getRequestMethod())
+                && exchange.getRequestURI().getPath().startsWith("/api/bookings");
+        return bookingWrite ? Priority.HIGH : Priority.NORMAL;
+    }
+
+    private static void reject(HttpExchange exchange, int status, long retryAfterSeconds, String message)
+            throws IOException {
+        handleCors(exchange);
+        byte[] bytes = ("{\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
     private static void handleCors(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
@@ -1,13 +1,14 @@
 package com.suto.base;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.suto.dto.PreEncoded;
+import com.suto.security.AdminAccess;
 import com.sun.net.httpserver.HttpExchange;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 /**
  * Abstract Base Controller - Demonstrates Inheritance & Abstraction
@@ -15,33 +16,55 @@ import java.nio.charset.StandardCharsets;
  */
 public abstract class BaseController {
 
-    // Protected field - accessible by child classes
-    protected final ObjectMapper objectMapper = new ObjectMapper();
+    protected static final String NDJSON = "application/x-ndjson";
+
+    // Shared by all controllers; readers and writers are cached per type
+    private static final JsonCodec JSON = new JsonCodec();
+
+    /**
+     * Parse the JSON request body straight from the request stream
+     */
+    protected <T> T readJson(HttpExchange exchange, Class<T> type) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return JSON.read(in, type);
+        }
+    }
+
+    protected <T> T readJson(HttpExchange exchange, TypeReference<T> type) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return JSON.read(in, type);
+        }
+    }
 
     /**
-     * Read HTTP request body as String
-     * Template Method Pattern - common implementation for all controllers
+     * Serialize a value to UTF-8 JSON. A {@link PreEncoded} value is encoded
+     * once and its bytes reused from then on.
      */
-    protected String readRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                body.append(line);
+    protected byte[] encodeJson(Object data) throws IOException {
+        if (data instanceof PreEncoded preEncoded) {
+            byte[] json = preEncoded.encodedJson();
+            if (json == null) {
+                json = JSON.encode(data);
+                preEncoded.attachEncodedJson(json);
             }
-            return body.toString();
+            return json;
         }
+        return JSON.encode(data);
     }
 
     /**
-     * Send JSON response to client
+     * Send JSON response to client, with a known Content-Length
      * Polymorphism - each controller can call this method
      */
     protected void sendJsonResponse(HttpExchange exchange, int statusCode, Object data) throws IOException {
-        String json = objectMapper.writeValueAsString(data);
-        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        sendJsonBytes(exchange, statusCode, encodeJson(data));
+    }
 
+    /**
+     * Send a response body that is already serialized JSON, e.g. one shared
+     * between several requests
+     */
+    protected void sendJsonBytes(HttpExchange exchange, int statusCode, byte[] bytes) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(statusCode, bytes.length);
 
@@ -50,19 +73,68 @@ public abstract class BaseController {
         }
     }
 
+    /**
+     * Send a large JSON response chunked, serializing straight into the
+     * response stream instead of building the whole body first. The status
+     * is sent before serializing, so a failure halfway cuts the response short.
+     */
+    protected void streamJsonResponse(HttpExchange exchange, int statusCode, Object data) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, 0); // 0 = chunked
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            JSON.write(os, data);
+        }
+    }
+
     /**
      * Send error response to client
      * Common error handling for all controllers
      */
     protected void sendErrorResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
-        String json = "{\"error\":\"" + message.replace("\"", "\\\"") + "\"}";
-        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
-
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, bytes.length);
+        sendJsonBytes(exchange, statusCode, JSON.encode(Collections.singletonMap("error", message)));
+    }
 
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(bytes);
+    /**
+     * Sends 401 or 403 unless the request comes from an admin
+     */
+    protected boolean requireAdmin(HttpExchange exchange, AdminAccess adminAccess) throws IOException {
+        switch (adminAccess.check(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            case ALLOWED:
+                return true;
+            case FORBIDDEN:
+                sendErrorResponse(exchange, 403, "Admin role required");
+                return false;
+            default:
+                sendErrorResponse(exchange, 401, "Unauthorized");
+                return false;
         }
     }
+
+    /**
+     * True if the client asked for newline-delimited JSON (Accept: application/x-ndjson)
+     */
+    protected boolean acceptsNdjson(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(NDJSON);
+    }
+
+    /**
+     * Start a streamed NDJSON response with chunked transfer encoding.
+     * Write records with {@link #writeNdjsonLine} and close the stream when done.
+     */
+    protected OutputStream startNdjsonResponse(HttpExchange exchange, int statusCode) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", NDJSON);
+        exchange.sendResponseHeaders(statusCode, 0); // 0 = chunked
+        return exchange.getResponseBody();
+    }
+
+    /**
+     * Write one record as a JSON line and flush it, so the client sees it right away
+     */
+    protected void writeNdjsonLine(OutputStream os, Object data) throws IOException {
+        JSON.write(os, data);
+        os.write('\n');
+        os.flush();
+    }
 }
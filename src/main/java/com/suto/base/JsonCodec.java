@@ -0,0 +1,66 @@
+package com.suto.base;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JSON reading and writing for the HTTP layer.
+ *
+ * Readers and writers are resolved once per type and reused, so a request
+ * does not look up its (de)serializers again. Values are parsed straight from
+ * an input stream and written straight to an output stream or into a single
+ * byte array, never through an intermediate String. Streams passed in are
+ * left open.
+ */
+public final class JsonCodec {
+
+    private final ObjectMapper mapper;
+    private final Map<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public JsonCodec() {
+        this.mapper = new ObjectMapper();
+        // Response streams are closed by the handler, which knows when the exchange is done
+        this.mapper.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    public <T> T read(InputStream in, Class<T> type) throws IOException {
+        return readerFor(type).readValue(in);
+    }
+
+    public <T> T read(InputStream in, TypeReference<T> type) throws IOException {
+        return readerFor(type.getType()).readValue(in);
+    }
+
+    /**
+     * @return the value as UTF-8 JSON
+     */
+    public byte[] encode(Object value) throws IOException {
+        return writerFor(value).writeValueAsBytes(value);
+    }
+
+    public void write(OutputStream out, Object value) throws IOException {
+        writerFor(value).writeValue(out, value);
+    }
+
+    private ObjectReader readerFor(Type type) {
+        return readers.computeIfAbsent(type, t -> mapper.readerFor(mapper.constructType(t)));
+    }
+
+    private ObjectWriter writerFor(Object value) {
+        if (value == null) {
+            return mapper.writer();
+        }
+        return writers.computeIfAbsent(value.getClass(), mapper::writerFor);
+    }
+}
@@ -0,0 +1,56 @@
+package com.suto.controller;
+
+import com.suto.base.BaseController;
+import com.suto.dto.GraphChangeRequest;
+import com.suto.exception.SutoException;
+import com.suto.security.AdminAccess;
+import com.suto.service.GraphService;
+import com.suto.service.GraphUpdate;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.*;
+
+/**
+ * Admin Controller - Demonstrates Inheritance
+ * Extends BaseController to inherit common HTTP handling methods
+ */
+public class AdminController extends BaseController {
+
+    private final GraphService graphService;
+    private final AdminAccess adminAccess;
+
+    public AdminController(GraphService graphService, AdminAccess adminAccess) {
+        this.graphService = graphService;
+        this.adminAccess = adminAccess;
+    }
+
+    /**
+     * Applies one disruption (see {@link GraphChangeRequest}) to the live graph.
+     */
+    public void handleApplyGraphChange(HttpExchange exchange) throws IOException {
+        if (!requireAdmin(exchange, adminAccess)) {
+            return;
+        }
+        try {
+            GraphChangeRequest request = readJson(exchange, GraphChangeRequest.class);
+
+            GraphUpdate update = graphService.applyChange(request);
+            sendJsonResponse(exchange, 200, update);
+        } catch (SutoException e) {
+            sendErrorResponse(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, 500, "Internal Server Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lists the disruptions currently applied to the graph.
+     */
+    public void handleGetGraphChanges(HttpExchange exchange) throws IOException {
+        if (!requireAdmin(exchange, adminAccess)) {
+            return;
+        }
+        sendJsonResponse(exchange, 200, graphService.getDisruptions());
+    }
+}
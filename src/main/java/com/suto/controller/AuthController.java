@@ -23,8 +23,7 @@ public class AuthController extends BaseController {
 
     public void handleSignup(HttpExchange exchange) throws IOException {
         try {
-            String body = readRequestBody(exchange);
-            SignupRequest request = objectMapper.readValue(body, SignupRequest.class);
+            SignupRequest request = readJson(exchange, SignupRequest.class);
 
             AuthResponse response = authService.signup(request);
             sendJsonResponse(exchange, 200, response);
@@ -35,8 +34,7 @@ public class AuthController extends BaseController {
 
     public void handleLogin(HttpExchange exchange) throws IOException {
         try {
-            String body = readRequestBody(exchange);
-            LoginRequest request = objectMapper.readValue(body, LoginRequest.class);
+            LoginRequest request = readJson(exchange, LoginRequest.class);
 
             AuthResponse response = authService.login(request);
             sendJsonResponse(exchange, 200, response);
@@ -25,8 +25,7 @@ public class BookingController extends BaseController {
     public void handleCreateBooking(HttpExchange exchange) throws IOException {
         try {
             String token = exchange.getRequestHeaders().getFirst("Authorization");
-            String body = readRequestBody(exchange);
-            BookingRequest request = objectMapper.readValue(body, BookingRequest.class);
+            BookingRequest request = readJson(exchange, BookingRequest.class);
 
             Booking booking = bookingService.createBooking(request, token);
             sendJsonResponse(exchange, 200, booking);
@@ -39,7 +38,7 @@ public class BookingController extends BaseController {
         try {
             String token = exchange.getRequestHeaders().getFirst("Authorization");
             List<Booking> bookings = bookingService.getUserBookings(token);
-            sendJsonResponse(exchange, 200, bookings);
+            streamJsonResponse(exchange, 200, bookings);
         } catch (Exception e) {
             sendErrorResponse(exchange, 500, "Error fetching bookings");
         }
@@ -1,12 +1,23 @@
 package com.suto.controller;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.suto.base.BaseController;
+import com.suto.dto.ReachableStop;
 import com.suto.dto.RouteRequest;
 import com.suto.dto.RouteResponse;
+import com.suto.exception.SutoException;
 import com.suto.service.PathFinderService;
+import com.suto.service.RouteListener;
+import com.suto.util.SingleFlight;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Route Controller - Demonstrates Inheritance
@@ -14,27 +25,33 @@ import java.io.*;
  */
 public class RouteController extends BaseController {
 
+    // Largest number of routes accepted by one batch request
+    private static final int MAX_BATCH_SIZE = 500;
+
     private final PathFinderService pathFinderService;
 
+    // Route queries being computed right now, joined by identical ones
+    private final SingleFlight<RouteQuery, RouteResponse> inFlightRoutes = new SingleFlight<>();
+
     public RouteController(PathFinderService pathFinderService) {
         this.pathFinderService = pathFinderService;
     }
 
     public void handleFindRoute(HttpExchange exchange) throws IOException {
         try {
-            String body = readRequestBody(exchange);
-            RouteRequest request = objectMapper.readValue(body, RouteRequest.class);
+            RouteRequest request = readJson(exchange, RouteRequest.class);
 
             if (request.getSource() == null || request.getDestination() == null) {
                 sendErrorResponse(exchange, 400, "Origin and Destination are required");
                 return;
             }
 
-            RouteResponse response = pathFinderService.findBestRoute(
-                    request.getSource(),
-                    request.getDestination());
+            if (acceptsNdjson(exchange)) {
+                streamFindRoute(exchange, request);
+                return;
+            }
 
-            sendJsonResponse(exchange, 200, response);
+            sendJsonBytes(exchange, 200, findRouteJson(request));
         } catch (RuntimeException e) {
             sendErrorResponse(exchange, 400, e.getMessage());
         } catch (Exception e) {
@@ -42,4 +59,261 @@ public class RouteController extends BaseController {
             sendErrorResponse(exchange, 500, "Internal Server Error: " + e.getMessage());
         }
     }
+
+    /**
+     * Runs a route query and serializes the response, sharing both with any
+     * identical query that arrives while it runs. Queries are identical when
+     * they ask for the same stops (ignoring case) with the same normalized
+     * options on the same graph version. The JSON is attached to the
+     * response, so followers and later cache hits that spelled the stops
+     * exactly like the leader send it as it is; one that spelled them
+     * differently gets its own copy of the response, encoded for it alone.
+     */
+    private byte[] findRouteJson(RouteRequest request) throws IOException {
+        RouteQuery query = new RouteQuery(pathFinderService.getGraphVersion(),
+                request.getSource().toLowerCase(), request.getDestination().toLowerCase(),
+                PathFinderService.normalizedOptions(request));
+        RouteResponse response = inFlightRoutes.run(query, () -> {
+            RouteResponse found = pathFinderService.findBestRoute(request);
+            try {
+                encodeJson(found);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return found;
+        });
+        if (request.getSource().equals(response.getSource())
+                && request.getDestination().equals(response.getDestination())) {
+            return encodeJson(response);
+        }
+        RouteResponse echoed = new RouteResponse();
+        echoed.setSource(request.getSource());
+        echoed.setDestination(request.getDestination());
+        echoed.setStatus(response.getStatus());
+        echoed.setMessage(response.getMessage());
+        echoed.setDirectRoutes(response.getDirectRoutes());
+        echoed.setCombinedRoutes(response.getCombinedRoutes());
+        return encodeJson(echoed);
+    }
+
+    private record RouteQuery(long graphVersion, String source, String destination, String options) {
+    }
+
+    /**
+     * Streams a route query as NDJSON: one line per route as soon as it is
+     * final (direct routes first, then combined ones), then a closing line
+     * with the status and message. The response starts with the first line,
+     * so a query that fails before any route is found still gets a plain
+     * error response.
+     */
+    private void streamFindRoute(HttpExchange exchange, RouteRequest request) throws IOException {
+        NdjsonRouteStream stream = new NdjsonRouteStream(exchange);
+        try {
+            RouteResponse response = pathFinderService.findBestRoute(request, stream);
+
+            Map<String, Object> done = new LinkedHashMap<>();
+            done.put("type", "done");
+            done.put("source", response.getSource());
+            done.put("destination", response.getDestination());
+            done.put("status", response.getStatus());
+            done.put("message", response.getMessage());
+            stream.write(done);
+        } catch (RuntimeException e) {
+            if (!stream.isStarted()) {
+                throw e;
+            }
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("type", "error");
+            error.put("message", e.getMessage());
+            try {
+                stream.write(error);
+            } catch (IOException ignored) {
+                // The client is gone, nobody left to tell
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes routes as NDJSON lines, starting the chunked response on first use.
+     */
+    private class NdjsonRouteStream implements RouteListener {
+        private final HttpExchange exchange;
+        private OutputStream os;
+
+        NdjsonRouteStream(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        boolean isStarted() {
+            return os != null;
+        }
+
+        @Override
+        public void onDirectRoute(RouteResponse.DirectRoute route) {
+            writeRoute("direct", route);
+        }
+
+        @Override
+        public void onCombinedRoute(RouteResponse.CombinedRoute route) {
+            writeRoute("combined", route);
+        }
+
+        private void writeRoute(String type, Object route) {
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("type", type);
+            line.put("route", route);
+            try {
+                write(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Client went away; ends the search
+            }
+        }
+
+        void write(Object line) throws IOException {
+            if (os == null) {
+                os = startNdjsonResponse(exchange, 200);
+            }
+            writeNdjsonLine(os, line);
+        }
+
+        void close() throws IOException {
+            if (os != null) {
+                os.close();
+            }
+        }
+    }
+
+    public void handleBatch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "Method not allowed");
+                return;
+            }
+            List<RouteRequest> requests = readJson(exchange, new TypeReference<List<RouteRequest>>() {});
+
+            if (requests == null || requests.isEmpty()) {
+                sendErrorResponse(exchange, 400, "At least one route is required");
+                return;
+            }
+            if (requests.size() > MAX_BATCH_SIZE) {
+                sendErrorResponse(exchange, 400, "At most " + MAX_BATCH_SIZE + " routes per batch");
+                return;
+            }
+            for (RouteRequest request : requests) {
+                if (request == null || request.getSource() == null || request.getDestination() == null) {
+                    sendErrorResponse(exchange, 400, "Origin and Destination are required");
+                    return;
+                }
+            }
+
+            List<RouteResponse> responses = pathFinderService.findBestRoutes(requests);
+
+            streamJsonResponse(exchange, 200, responses);
+        } catch (RuntimeException e) {
+            sendErrorResponse(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendErrorResponse(exchange, 500, "Internal Server Error: " + e.getMessage());
+        }
+    }
+
+    public void handleTransfers(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "Method not allowed");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String source = params.get("from");
+            String destination = params.get("to");
+
+            if (source == null || destination == null) {
+                sendErrorResponse(exchange, 400, "Query parameters 'from' and 'to' are required");
+                return;
+            }
+
+            sendJsonResponse(exchange, 200, pathFinderService.findTransferBounds(source, destination));
+        } catch (RuntimeException e) {
+            sendErrorResponse(exchange, 400, e.getMessage());
+        }
+    }
+
+    public void handleReachable(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "Method not allowed");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String source = params.get("from");
+
+            if (source == null) {
+                sendErrorResponse(exchange, 400, "Query parameter 'from' is required");
+                return;
+            }
+            Integer maxTransfers = parseLimit(params, "maxTransfers");
+            Integer maxStops = parseLimit(params, "maxStops");
+
+            List<ReachableStop> stops = pathFinderService.findReachableStops(source, maxTransfers, maxStops);
+
+            if (acceptsNdjson(exchange)) {
+                // One stop per line, so large networks can be consumed as they arrive
+                try (OutputStream os = startNdjsonResponse(exchange, 200)) {
+                    for (ReachableStop stop : stops) {
+                        writeNdjsonLine(os, stop);
+                    }
+                }
+                return;
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("source", source);
+            result.put("maxTransfers", maxTransfers);
+            result.put("maxStops", maxStops);
+            result.put("count", stops.size());
+            result.put("stops", stops);
+            sendJsonResponse(exchange, 200, result);
+        } catch (RuntimeException e) {
+            sendErrorResponse(exchange, 400, e.getMessage());
+        }
+    }
+
+    private Integer parseLimit(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new SutoException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String part : query.split("&")) {
+            int eq = part.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(part.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(part.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    public void handleCacheStats(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendErrorResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        Map<String, Object> stats = new LinkedHashMap<>(pathFinderService.getRouteCache().getStats());
+        stats.put("coalescing", inFlightRoutes.getStats());
+        sendJsonResponse(exchange, 200, stats);
+    }
 }
@@ -0,0 +1,60 @@
+package com.suto.controller;
+
+import com.suto.base.BaseController;
+import com.suto.security.AdminAccess;
+import com.suto.security.ClientRateLimiter;
+import com.suto.util.AdaptiveConcurrencyLimit;
+import com.suto.util.RequestExecutor;
+import com.suto.util.WorkloadScheduler;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server Controller - Demonstrates Inheritance
+ * Reports how the HTTP front end is coping with its load
+ */
+public class ServerController extends BaseController {
+
+    private final RequestExecutor requestExecutor; // null when requests run in the bulkheads
+    private final WorkloadScheduler scheduler;
+    private final ClientRateLimiter rateLimiter;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final AdminAccess adminAccess;
+
+    public ServerController(RequestExecutor requestExecutor, WorkloadScheduler scheduler,
+            ClientRateLimiter rateLimiter, AdaptiveConcurrencyLimit concurrencyLimit, AdminAccess adminAccess) {
+        this.requestExecutor = requestExecutor;
+        this.scheduler = scheduler;
+        this.rateLimiter = rateLimiter;
+        this.concurrencyLimit = concurrencyLimit;
+        this.adminAccess = adminAccess;
+    }
+
+    /**
+     * Gauges of admission control, the request executor or each bulkhead:
+     * limits, active and queued requests, rejections and totals. Admins only.
+     */
+    public void handleStats(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendErrorResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        if (!requireAdmin(exchange, adminAccess)) {
+            return;
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> admission = new LinkedHashMap<>();
+        admission.put("rateLimit", rateLimiter.getStats());
+        admission.put("concurrency", concurrencyLimit.getStats());
+        stats.put("admission", admission);
+        if (requestExecutor != null) {
+            stats.put("executor", requestExecutor.getStats());
+        } else {
+            stats.put("bulkheads", scheduler.getStats());
+        }
+        sendJsonResponse(exchange, 200, stats);
+    }
+}
@@ -0,0 +1,94 @@
+package com.suto.dto;
+
+public class GraphChangeRequest {
+
+    // Supported actions
+    public static final String ADD_LINK = "addLink";
+    public static final String REMOVE_LINK = "removeLink";
+    public static final String CLOSE_STOP = "closeStop";
+    public static final String REOPEN_STOP = "reopenStop";
+    public static final String SUSPEND_TRANSPORT = "suspendTransport";
+    public static final String RESUME_TRANSPORT = "resumeTransport";
+
+    private String action;
+    private String stop; // closeStop / reopenStop
+    private String from; // addLink / removeLink
+    private String to; // addLink / removeLink
+    private String transport; // addLink, suspendTransport / resumeTransport; removeLink: all transports if not set
+    private String mode; // addLink: mode of a transport the graph does not have yet
+    private Double cost; // addLink, 10 if not set
+    private Double distance; // addLink, 1 if not set
+
+    // Default constructor
+    public GraphChangeRequest() {
+    }
+
+    public GraphChangeRequest(String action) {
+        this.action = action;
+    }
+
+    // Getters and Setters
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getStop() {
+        return stop;
+    }
+
+    public void setStop(String stop) {
+        this.stop = stop;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public void setTo(String to) {
+        this.to = to;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public Double getCost() {
+        return cost;
+    }
+
+    public void setCost(Double cost) {
+        this.cost = cost;
+    }
+
+    public Double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(Double distance) {
+        this.distance = distance;
+    }
+}
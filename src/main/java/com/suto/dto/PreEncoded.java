@@ -0,0 +1,16 @@
+package com.suto.dto;
+
+/**
+ * A response that can keep its own serialized JSON, so one that is served
+ * many times (a cached route) is only encoded once. Only attach bytes to a
+ * response that no longer changes.
+ */
+public interface PreEncoded {
+
+    /**
+     * @return the JSON attached to this response, or null if none yet
+     */
+    byte[] encodedJson();
+
+    void attachEncodedJson(byte[] json);
+}
@@ -0,0 +1,42 @@
+package com.suto.dto;
+
+public class ReachableStop {
+    private String name;
+    private int transfers; // fewest transfers needed to get there
+    private int stops; // fewest stops needed to get there
+
+    // Default constructor
+    public ReachableStop() {
+    }
+
+    public ReachableStop(String name, int transfers, int stops) {
+        this.name = name;
+        this.transfers = transfers;
+        this.stops = stops;
+    }
+
+    // Getters and Setters
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getTransfers() {
+        return transfers;
+    }
+
+    public void setTransfers(int transfers) {
+        this.transfers = transfers;
+    }
+
+    public int getStops() {
+        return stops;
+    }
+
+    public void setStops(int stops) {
+        this.stops = stops;
+    }
+}
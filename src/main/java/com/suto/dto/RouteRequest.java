@@ -3,6 +3,10 @@ package com.suto.dto;
 public class RouteRequest {
     private String source;
     private String destination;
+    private String engine; // "label" (default) or "raptor"
+    private boolean parallel; // run sub-searches concurrently, stop at k final routes or the latency budget
+    private Integer k; // number of combined routes, 5 if not set
+    private boolean preferMetro; // answer combined routes metro-first from precomputed access paths
 
     // Default constructor
     public RouteRequest() {
@@ -27,6 +31,22 @@ public class RouteRequest {
         return source; // Alias for backward compatibility
     }
 
+    public String getEngine() {
+        return engine;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public Integer getK() {
+        return k;
+    }
+
+    public boolean isPreferMetro() {
+        return preferMetro;
+    }
+
     // Setters
     public void setSource(String source) {
         this.source = source;
@@ -35,4 +55,20 @@ public class RouteRequest {
     public void setDestination(String destination) {
         this.destination = destination;
     }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setK(Integer k) {
+        this.k = k;
+    }
+
+    public void setPreferMetro(boolean preferMetro) {
+        this.preferMetro = preferMetro;
+    }
 }
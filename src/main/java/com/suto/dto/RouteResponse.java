@@ -2,13 +2,14 @@ package com.suto.dto;
 
 import java.util.List;
 
-public class RouteResponse {
+public class RouteResponse implements PreEncoded {
     private String source;
     private String destination;
     private List<DirectRoute> directRoutes;
     private List<CombinedRoute> combinedRoutes;
     private String status;
     private String message;
+    private boolean partial; // a parallel query ran out of time before all routes were final
 
     // Legacy fields for backward compatibility
     private List<RouteSegment> segments;
@@ -16,10 +17,23 @@ public class RouteResponse {
     private double totalDistance;
     private double estimatedTime;
 
+    // Serialized form, attached once the response is final
+    private volatile byte[] encodedJson;
+
     // Default constructor
     public RouteResponse() {
     }
 
+    @Override
+    public byte[] encodedJson() {
+        return encodedJson;
+    }
+
+    @Override
+    public void attachEncodedJson(byte[] json) {
+        this.encodedJson = json;
+    }
+
     // Getters and Setters
     public String getSource() {
         return source;
@@ -37,6 +51,14 @@ public class RouteResponse {
         this.destination = destination;
     }
 
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
     public List<DirectRoute> getDirectRoutes() {
         return directRoutes;
     }
@@ -1,5 +1,7 @@
 package com.suto.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.time.LocalDateTime;
 import java.util.UUID;
 
@@ -53,7 +55,9 @@ public abstract class BaseEntity {
     /**
      * Abstract method - forces child classes to implement
      * Demonstrates Abstraction & Polymorphism
+     * Not a stored field: written out it would make the JSON files unreadable
      */
+    @JsonIgnore
     public abstract String getEntityName();
 
     @Override
@@ -1,52 +1,1255 @@
 package com.suto.model;
 
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
+import java.util.stream.IntStream;
 
-public class Graph {
-    // Map of Stop UUID -> List of Edges (neighbors)
-    private final Map<UUID, List<Edge>> adjacencyList = new HashMap<>();
+/**
+ * Immutable transport graph in compressed-sparse-row (CSR) form.
+ *
+ * Stops are numbered densely (0..stopCount-1) in breadth-first order so that
+ * neighbouring stops sit next to each other in memory. The outgoing edges of
+ * stop {@code s} occupy the index range {@code [edgeStart(s), edgeEnd(s))} of
+ * the parallel edge arrays. UUIDs and stop names are only translated to and
+ * from these indices at the API boundary.
+ *
+ * Parallel edges between the same two stops (one per transport) are also
+ * grouped into links: a link has one target, the contiguous range of its
+ * edges and a bitset of the transports serving it, so searches that only care
+ * where they can go branch once per neighbour instead of once per transport.
+ *
+ * The CSR, link, pattern and line-index arrays are held as buffers and only
+ * read with absolute gets: a built graph wraps heap arrays, a graph loaded
+ * by {@link GraphFormat} reads them straight from the mapped file.
+ *
+ * Instances are created through {@link Builder}, or derived from another
+ * graph with {@link Patch}.
+ */
+public final class Graph {
 
-    // Map of Stop Name -> Stop UUID (for searching)
-    private final Map<String, UUID> nameToId = new HashMap<>();
+    // Stop mode flags
+    public static final int MODE_BUS = 1;
+    public static final int MODE_METRO = 2;
 
-    // Map of Stop UUID -> Stop Object (for details)
-    private final Map<UUID, Stop> stops = new HashMap<>();
+    // Monotonic load counter assigned by the builder's owner
+    private final long version;
 
-    public void addStop(Stop stop) {
-        stops.put(stop.getId(), stop);
-        nameToId.put(stop.getName().toLowerCase(), stop.getId());
-        adjacencyList.putIfAbsent(stop.getId(), new ArrayList<>());
+    // Stop index -> Stop object (for details)
+    private final Stop[] stops;
+
+    // Stop UUID / lowercase name -> stop index (API boundary only)
+    private final Map<UUID, Integer> idToIndex;
+    private final Map<String, Integer> nameToIndex;
+
+    // CSR adjacency: edges of stop s are [rowOffsets[s], rowOffsets[s + 1])
+    private final IntBuffer rowOffsets;
+    private final IntBuffer edgeTargets;
+    private final IntBuffer edgeTransports;
+    private final DoubleBuffer edgeCosts;
+    private final DoubleBuffer edgeDistances;
+
+    // Links: parallel edges grouped by target. Links of stop s are [linkOffsets[s], linkOffsets[s + 1]);
+    // edges of link l are [linkEdgeOffsets[l], linkEdgeOffsets[l + 1]); its transports are the set bits of
+    // linkTransportBits[l * transportWords .. (l + 1) * transportWords)
+    private final IntBuffer linkOffsets;
+    private final IntBuffer linkTargets;
+    private final IntBuffer linkEdgeOffsets;
+    private final LongBuffer linkTransportBits;
+    private final int transportWords;
+
+    // Transport dictionary: index -> name / mode, name -> index, and a bitset of metro transports
+    private final String[] transportNames;
+    private final String[] transportModes;
+    private final Map<String, Integer> transportIndex;
+    private final long[] metroTransportBits;
+
+    // Stop index -> MODE_* flags of the transports calling there
+    private final byte[] stopModes;
+
+    // Route patterns: ordered stop sequences of one transport, one per direction.
+    // Stops of pattern p are [patternOffsets[p], patternOffsets[p + 1]) of patternStops;
+    // patternHopCosts[i] is the cost of riding from the previous position to i.
+    private final IntBuffer patternOffsets;
+    private final IntBuffer patternStops;
+    private final DoubleBuffer patternHopCosts;
+    private final IntBuffer patternTransports;
+
+    // Line index: stop -> (pattern, position) postings, sorted by pattern (and so by transport).
+    // Postings of stop s are [postingOffsets[s], postingOffsets[s + 1]).
+    private final IntBuffer postingOffsets;
+    private final IntBuffer postingPatterns;
+    private final IntBuffer postingPositions;
+
+    // Used by Builder
+    private Graph(long version, Stop[] stops, Map<UUID, Integer> idToIndex, Map<String, Integer> nameToIndex,
+            int[] rowOffsets, int[] edgeTargets, int[] edgeTransports, double[] edgeCosts,
+            double[] edgeDistances, int[] linkOffsets, int[] linkTargets, int[] linkEdgeOffsets,
+            long[] linkTransportBits, String[] transportNames, String[] transportModes,
+            Map<String, Integer> transportIndex, long[] metroTransportBits, byte[] stopModes,
+            int[] patternOffsets, int[] patternStops, double[] patternHopCosts, int[] patternTransports,
+            int[] postingOffsets, int[] postingPatterns, int[] postingPositions) {
+        this(version, stops, idToIndex, nameToIndex, IntBuffer.wrap(rowOffsets), IntBuffer.wrap(edgeTargets),
+                IntBuffer.wrap(edgeTransports), DoubleBuffer.wrap(edgeCosts), DoubleBuffer.wrap(edgeDistances),
+                IntBuffer.wrap(linkOffsets), IntBuffer.wrap(linkTargets), IntBuffer.wrap(linkEdgeOffsets),
+                LongBuffer.wrap(linkTransportBits), transportNames, transportModes, transportIndex,
+                metroTransportBits, stopModes, IntBuffer.wrap(patternOffsets), IntBuffer.wrap(patternStops),
+                DoubleBuffer.wrap(patternHopCosts), IntBuffer.wrap(patternTransports),
+                IntBuffer.wrap(postingOffsets), IntBuffer.wrap(postingPatterns), IntBuffer.wrap(postingPositions));
+    }
+
+    // Used by Patch and GraphFormat; buffers are shared between graphs, so never read with relative gets
+    Graph(long version, Stop[] stops, Map<UUID, Integer> idToIndex, Map<String, Integer> nameToIndex,
+            IntBuffer rowOffsets, IntBuffer edgeTargets, IntBuffer edgeTransports, DoubleBuffer edgeCosts,
+            DoubleBuffer edgeDistances, IntBuffer linkOffsets, IntBuffer linkTargets, IntBuffer linkEdgeOffsets,
+            LongBuffer linkTransportBits, String[] transportNames, String[] transportModes,
+            Map<String, Integer> transportIndex, long[] metroTransportBits, byte[] stopModes,
+            IntBuffer patternOffsets, IntBuffer patternStops, DoubleBuffer patternHopCosts,
+            IntBuffer patternTransports, IntBuffer postingOffsets, IntBuffer postingPatterns,
+            IntBuffer postingPositions) {
+        this.version = version;
+        this.stops = stops;
+        this.idToIndex = idToIndex;
+        this.nameToIndex = nameToIndex;
+        this.rowOffsets = rowOffsets;
+        this.edgeTargets = edgeTargets;
+        this.edgeTransports = edgeTransports;
+        this.edgeCosts = edgeCosts;
+        this.edgeDistances = edgeDistances;
+        this.linkOffsets = linkOffsets;
+        this.linkTargets = linkTargets;
+        this.linkEdgeOffsets = linkEdgeOffsets;
+        this.linkTransportBits = linkTransportBits;
+        this.transportWords = words(transportNames.length);
+        this.transportNames = transportNames;
+        this.transportModes = transportModes;
+        this.transportIndex = transportIndex;
+        this.metroTransportBits = metroTransportBits;
+        this.stopModes = stopModes;
+        this.patternOffsets = patternOffsets;
+        this.patternStops = patternStops;
+        this.patternHopCosts = patternHopCosts;
+        this.patternTransports = patternTransports;
+        this.postingOffsets = postingOffsets;
+        this.postingPatterns = postingPatterns;
+        this.postingPositions = postingPositions;
+    }
+
+    /**
+     * @return the load version; a newer graph always has a larger version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if both graphs have the same stops (by id and name), edges,
+     *         transports and patterns, whatever their versions
+     */
+    public boolean hasSameContent(Graph other) {
+        if (stops.length != other.stops.length) {
+            return false;
+        }
+        for (int s = 0; s < stops.length; s++) {
+            Stop stop = stops[s];
+            Stop otherStop = other.stops[s];
+            if (!Objects.equals(stop.getId(), otherStop.getId()) || !Objects.equals(stop.getName(), otherStop.getName())
+                    || !Objects.equals(stop.getType(), otherStop.getType())
+                    || stop.getStableId() != otherStop.getStableId()) {
+                return false;
+            }
+        }
+        // Buffer equality compares the elements, whether on the heap or mapped
+        return rowOffsets.equals(other.rowOffsets) && edgeTargets.equals(other.edgeTargets)
+                && edgeTransports.equals(other.edgeTransports) && edgeCosts.equals(other.edgeCosts)
+                && edgeDistances.equals(other.edgeDistances)
+                && Arrays.equals(transportNames, other.transportNames)
+                && Arrays.equals(transportModes, other.transportModes)
+                && patternOffsets.equals(other.patternOffsets)
+                && patternStops.equals(other.patternStops)
+                && patternHopCosts.equals(other.patternHopCosts)
+                && patternTransports.equals(other.patternTransports);
+    }
+
+    /**
+     * @return true if the edge arrays are read from outside the heap, as for a graph loaded from a mapped file
+     */
+    boolean isDirect() {
+        return edgeTargets.isDirect();
+    }
+
+    // --- Index based access (hot path) ---
+
+    public int stopCount() {
+        return stops.length;
+    }
+
+    public int edgeCount() {
+        return edgeTargets.limit();
+    }
+
+    public int transportCount() {
+        return transportNames.length;
+    }
+
+    public int edgeStart(int stop) {
+        return rowOffsets.get(stop);
+    }
+
+    public int edgeEnd(int stop) {
+        return rowOffsets.get(stop + 1);
+    }
+
+    public int target(int edge) {
+        return edgeTargets.get(edge);
+    }
+
+    public int transport(int edge) {
+        return edgeTransports.get(edge);
+    }
+
+    public double cost(int edge) {
+        return edgeCosts.get(edge);
+    }
+
+    public double distance(int edge) {
+        return edgeDistances.get(edge);
+    }
+
+    public String transportName(int transport) {
+        return transportNames[transport];
+    }
+
+    public String transportMode(int transport) {
+        return transportModes[transport];
+    }
+
+    /**
+     * @return the dense index of the transport with this name, or -1
+     */
+    public int indexOfTransport(String name) {
+        Integer index = transportIndex.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public boolean isMetroTransport(int transport) {
+        return (metroTransportBits[transport >>> 6] & (1L << transport)) != 0;
+    }
+
+    /**
+     * @return {@link #MODE_BUS} / {@link #MODE_METRO} flags of the transports calling at the stop
+     */
+    public int stopModes(int stop) {
+        return stopModes[stop];
+    }
+
+    public boolean isMetroStation(int stop) {
+        return (stopModes[stop] & MODE_METRO) != 0;
+    }
+
+    // --- Links (parallel edges merged) ---
+
+    public int linkCount() {
+        return linkTargets.limit();
+    }
+
+    public int linkStart(int stop) {
+        return linkOffsets.get(stop);
+    }
+
+    public int linkEnd(int stop) {
+        return linkOffsets.get(stop + 1);
+    }
+
+    public int linkTarget(int link) {
+        return linkTargets.get(link);
+    }
+
+    /**
+     * @return first of the link's per-transport edges, sorted by transport
+     */
+    public int linkEdgeStart(int link) {
+        return linkEdgeOffsets.get(link);
+    }
+
+    public int linkEdgeEnd(int link) {
+        return linkEdgeOffsets.get(link + 1);
+    }
+
+    /**
+     * @return true if the transport runs along this link
+     */
+    public boolean linkServes(int link, int transport) {
+        return (linkTransportBits.get(link * transportWords + (transport >>> 6)) & (1L << transport)) != 0;
     }
 
-    public void addEdge(UUID from, UUID to, double cost, double distance, String mode, String busName) {
-        adjacencyList.get(from).add(new Edge(to, cost, distance, mode, busName));
+    static int words(int transports) {
+        return Math.max(1, (transports + 63) >>> 6);
     }
 
+    // --- Route patterns ---
+
+    public int patternCount() {
+        return patternTransports.limit();
+    }
+
+    public int patternStart(int pattern) {
+        return patternOffsets.get(pattern);
+    }
+
+    public int patternEnd(int pattern) {
+        return patternOffsets.get(pattern + 1);
+    }
+
+    /**
+     * @param position absolute position in [patternStart(p), patternEnd(p))
+     */
+    public int patternStop(int position) {
+        return patternStops.get(position);
+    }
+
+    /**
+     * @return cost of riding from {@code position - 1} to {@code position}
+     */
+    public double patternHopCost(int position) {
+        return patternHopCosts.get(position);
+    }
+
+    public int patternTransport(int pattern) {
+        return patternTransports.get(pattern);
+    }
+
+    // --- Line index (stop -> pattern positions) ---
+
+    public int postingStart(int stop) {
+        return postingOffsets.get(stop);
+    }
+
+    public int postingEnd(int stop) {
+        return postingOffsets.get(stop + 1);
+    }
+
+    public int postingPattern(int posting) {
+        return postingPatterns.get(posting);
+    }
+
+    /**
+     * @return absolute position of the stop within {@link #postingPattern(int)}
+     */
+    public int postingPosition(int posting) {
+        return postingPositions.get(posting);
+    }
+
+    public Stop stopAt(int index) {
+        return stops[index];
+    }
+
+    public String stopName(int index) {
+        return stops[index].getName();
+    }
+
+    // --- API boundary: names / UUIDs <-> indices ---
+
+    /**
+     * @return the dense index of the stop with this name (case-insensitive), or -1
+     */
+    public int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer index = nameToIndex.get(name.toLowerCase());
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the dense index of the stop with this id, or -1
+     */
+    public int indexOf(UUID id) {
+        Integer index = idToIndex.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public UUID getStopId(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : stops[index].getId();
+    }
+
+    public Stop getStop(UUID id) {
+        int index = indexOf(id);
+        return index < 0 ? null : stops[index];
+    }
+
+    public Collection<Stop> getStops() {
+        return Collections.unmodifiableList(Arrays.asList(stops));
+    }
+
+    /**
+     * Materializes the outgoing edges of a stop as {@link Edge} objects.
+     * Convenience for callers outside the routing engine; searches should use
+     * the index based accessors instead.
+     */
     public List<Edge> getNeighbors(UUID stopId) {
-        return adjacencyList.getOrDefault(stopId, new ArrayList<>());
+        int index = indexOf(stopId);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        List<Edge> edges = new ArrayList<>(edgeEnd(index) - edgeStart(index));
+        for (int e = edgeStart(index); e < edgeEnd(index); e++) {
+            edges.add(toEdge(e));
+        }
+        return edges;
     }
 
     // Helper to get edges between specific nodes (for multi-graph behavior)
     public List<Edge> getEdges(UUID from, UUID to) {
+        int fromIndex = indexOf(from);
+        int toIndex = indexOf(to);
+        if (fromIndex < 0 || toIndex < 0) {
+            return Collections.emptyList();
+        }
         List<Edge> edges = new ArrayList<>();
-        List<Edge> neighbors = getNeighbors(from);
-        for (Edge e : neighbors) {
-            if (e.getStopId().equals(to)) {
-                edges.add(e);
+        for (int e = edgeStart(fromIndex); e < edgeEnd(fromIndex); e++) {
+            if (edgeTargets.get(e) == toIndex) {
+                edges.add(toEdge(e));
             }
         }
         return edges;
     }
 
-    public UUID getStopId(String name) {
-        return nameToId.get(name.toLowerCase());
+    private Edge toEdge(int e) {
+        int t = edgeTransports.get(e);
+        return new Edge(stops[edgeTargets.get(e)].getId(), edgeCosts.get(e), edgeDistances.get(e), transportModes[t],
+                transportNames[t]);
     }
 
-    public Stop getStop(UUID id) {
-        return stops.get(id);
+    /**
+     * Collects stops and links, then freezes them into a {@link Graph}.
+     */
+    public static class Builder {
+
+        // Inputs at least this large sort their rows on all cores
+        public static final int PARALLEL_LINKS = 1 << 16;
+        private static final int INSERTION_SORT_ROW = 32;
+
+        private final List<Stop> stops = new ArrayList<>();
+        private final Map<String, Integer> nameToInput = new HashMap<>();
+        private final Map<UUID, Integer> idToInput = new HashMap<>();
+
+        // Links in input order, endpoints as input indices
+        private int[] linkFrom = new int[64];
+        private int[] linkTo = new int[64];
+        private int[] linkTransport = new int[64];
+        private double[] linkCost = new double[64];
+        private double[] linkDistance = new double[64];
+        private int linkCount;
+
+        private final Map<String, Integer> transportIds = new HashMap<>();
+        private final List<String> transportNames = new ArrayList<>();
+        private final List<String> transportModes = new ArrayList<>();
+
+        private long version;
+
+        public Builder setVersion(long version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder addStop(Stop stop) {
+            int index = stops.size();
+            stops.add(stop);
+            nameToInput.put(stop.getName().toLowerCase(), index);
+            idToInput.put(stop.getId(), index);
+            return this;
+        }
+
+        public UUID getStopId(String name) {
+            int index = stopIndex(name);
+            return index < 0 ? null : stops.get(index).getId();
+        }
+
+        /**
+         * @return the position of a stop in the order stops were added (matched
+         *         case-insensitively by name), or -1
+         */
+        public int stopIndex(String name) {
+            Integer index = nameToInput.get(name.toLowerCase());
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * @return the index of a transport, registered with the given mode on first use
+         */
+        public int transportIndex(String busName, String mode) {
+            Integer transport = transportIds.get(busName);
+            if (transport == null) {
+                transport = transportNames.size();
+                transportIds.put(busName, transport);
+                transportNames.add(busName);
+                transportModes.add(mode);
+            }
+            return transport;
+        }
+
+        public Builder addEdge(UUID from, UUID to, double cost, double distance, String mode, String busName) {
+            Integer fromIndex = idToInput.get(from);
+            Integer toIndex = idToInput.get(to);
+            if (fromIndex == null || toIndex == null) {
+                throw new IllegalArgumentException("Edge references unknown stop");
+            }
+            return addLink(fromIndex, toIndex, transportIndex(busName, mode), cost, distance);
+        }
+
+        /**
+         * Adds a link between stops given by {@link #stopIndex} on a transport
+         * given by {@link #transportIndex}.
+         */
+        public Builder addLink(int fromIndex, int toIndex, int transport, double cost, double distance) {
+            if (linkCount == linkFrom.length) {
+                int capacity = linkCount * 2;
+                linkFrom = Arrays.copyOf(linkFrom, capacity);
+                linkTo = Arrays.copyOf(linkTo, capacity);
+                linkTransport = Arrays.copyOf(linkTransport, capacity);
+                linkCost = Arrays.copyOf(linkCost, capacity);
+                linkDistance = Arrays.copyOf(linkDistance, capacity);
+            }
+            linkFrom[linkCount] = fromIndex;
+            linkTo[linkCount] = toIndex;
+            linkTransport[linkCount] = transport;
+            linkCost[linkCount] = cost;
+            linkDistance[linkCount] = distance;
+            linkCount++;
+            return this;
+        }
+
+        public Graph build() {
+            int n = stops.size();
+            int[] order = bfsOrder(n);
+
+            // Renumber stops
+            Stop[] ordered = new Stop[n];
+            Map<UUID, Integer> idToIndex = new HashMap<>(n * 2);
+            Map<String, Integer> nameToIndex = new HashMap<>(n * 2);
+            for (int input = 0; input < n; input++) {
+                int index = order[input];
+                Stop stop = stops.get(input);
+                ordered[index] = stop;
+                idToIndex.put(stop.getId(), index);
+                nameToIndex.put(stop.getName().toLowerCase(), index);
+            }
+
+            // Counting sort links into rows
+            int[] rowOffsets = new int[n + 1];
+            for (int i = 0; i < linkCount; i++) {
+                rowOffsets[order[linkFrom[i]] + 1]++;
+            }
+            for (int s = 0; s < n; s++) {
+                rowOffsets[s + 1] += rowOffsets[s];
+            }
+
+            int[] fill = Arrays.copyOf(rowOffsets, n);
+            int[] targets = new int[linkCount];
+            int[] transports = new int[linkCount];
+            double[] costs = new double[linkCount];
+            double[] distances = new double[linkCount];
+            for (int i = 0; i < linkCount; i++) {
+                int e = fill[order[linkFrom[i]]]++;
+                targets[e] = order[linkTo[i]];
+                transports[e] = linkTransport[i];
+                costs[e] = linkCost[i];
+                distances[e] = linkDistance[i];
+            }
+
+            // Sort each row by (target, transport) so scans walk targets in order
+            IntStream rows = IntStream.range(0, n);
+            if (linkCount >= PARALLEL_LINKS) {
+                rows = rows.parallel(); // Rows are disjoint slices of the arrays
+            }
+            rows.forEach(s -> sortRow(rowOffsets[s], rowOffsets[s + 1], targets, transports, costs, distances));
+
+            // Group each row's parallel edges (now adjacent) into links
+            int[] linkOffsets = new int[n + 1];
+            int links = 0;
+            for (int s = 0; s < n; s++) {
+                for (int e = rowOffsets[s]; e < rowOffsets[s + 1]; e++) {
+                    if (e == rowOffsets[s] || targets[e] != targets[e - 1]) {
+                        links++;
+                    }
+                }
+                linkOffsets[s + 1] = links;
+            }
+            int words = words(transportNames.size());
+            int[] linkTargets = new int[links];
+            int[] linkEdgeOffsets = new int[links + 1];
+            long[] linkTransportBits = new long[links * words];
+            int link = -1;
+            for (int s = 0; s < n; s++) {
+                for (int e = rowOffsets[s]; e < rowOffsets[s + 1]; e++) {
+                    if (e == rowOffsets[s] || targets[e] != targets[e - 1]) {
+                        link++;
+                        linkTargets[link] = targets[e];
+                        linkEdgeOffsets[link] = e;
+                    }
+                    linkTransportBits[link * words + (transports[e] >>> 6)] |= 1L << transports[e];
+                }
+            }
+            linkEdgeOffsets[links] = linkCount;
+
+            // Transport dictionary extras: metro bitset and per-stop mode flags
+            String[] names = transportNames.toArray(new String[0]);
+            long[] metroTransportBits = metroBits(names);
+            byte[] stopModes = stopModes(n, rowOffsets, targets, transports, metroTransportBits);
+
+            Patterns patterns = buildPatterns(order);
+            LineIndex lines = new LineIndex(n, patterns);
+
+            return new Graph(version, ordered, idToIndex, nameToIndex, rowOffsets, targets, transports, costs, distances,
+                    linkOffsets, linkTargets, linkEdgeOffsets, linkTransportBits,
+                    names, transportModes.toArray(new String[0]),
+                    new HashMap<>(transportIds), metroTransportBits, stopModes,
+                    patterns.offsets, patterns.stops, patterns.hopCosts, patterns.transports,
+                    lines.offsets, lines.patterns, lines.positions);
+        }
+
+        private static long[] metroBits(String[] transportNames) {
+            long[] bits = new long[words(transportNames.length)];
+            for (int t = 0; t < transportNames.length; t++) {
+                if (isMetroName(transportNames[t])) {
+                    bits[t >>> 6] |= 1L << t;
+                }
+            }
+            return bits;
+        }
+
+        private static byte[] stopModes(int n, int[] rowOffsets, int[] targets, int[] transports, long[] metroBits) {
+            byte[] stopModes = new byte[n];
+            for (int s = 0; s < n; s++) {
+                for (int e = rowOffsets[s]; e < rowOffsets[s + 1]; e++) {
+                    boolean metro = (metroBits[transports[e] >>> 6] & (1L << transports[e])) != 0;
+                    int mode = metro ? MODE_METRO : MODE_BUS;
+                    stopModes[s] |= mode;
+                    stopModes[targets[e]] |= mode;
+                }
+            }
+            return stopModes;
+        }
+
+        /**
+         * Metro lines are recognised by name, as the data has no reliable mode field.
+         */
+        private static boolean isMetroName(String name) {
+            return name != null && (name.contains("MRT") || name.contains("Metro"));
+        }
+
+        /**
+         * Assigns dense indices in breadth-first order over the undirected link
+         * structure, component by component in input order.
+         */
+        private int[] bfsOrder(int n) {
+            int[] degree = new int[n + 1];
+            for (int i = 0; i < linkCount; i++) {
+                degree[linkFrom[i] + 1]++;
+                degree[linkTo[i] + 1]++;
+            }
+            for (int s = 0; s < n; s++) {
+                degree[s + 1] += degree[s];
+            }
+            int[] fill = Arrays.copyOf(degree, n);
+            int[] adjacent = new int[linkCount * 2];
+            for (int i = 0; i < linkCount; i++) {
+                adjacent[fill[linkFrom[i]]++] = linkTo[i];
+                adjacent[fill[linkTo[i]]++] = linkFrom[i];
+            }
+
+            int[] order = new int[n];
+            Arrays.fill(order, -1);
+            int[] queue = new int[n];
+            int next = 0;
+            for (int root = 0; root < n; root++) {
+                if (order[root] >= 0) {
+                    continue;
+                }
+                int head = 0;
+                int tail = 0;
+                queue[tail++] = root;
+                order[root] = next++;
+                while (head < tail) {
+                    int s = queue[head++];
+                    for (int i = degree[s]; i < degree[s + 1]; i++) {
+                        int t = adjacent[i];
+                        if (order[t] < 0) {
+                            order[t] = next++;
+                            queue[tail++] = t;
+                        }
+                    }
+                }
+            }
+            return order;
+        }
+
+        /**
+         * Rebuilds every transport into ordered route patterns.
+         *
+         * Links of a transport are listed along its route, each hop followed by
+         * its reverse. Walking the first link of every stop pair in input order
+         * yields the route; a link that does not continue from the current
+         * tail starts a new chain (branching off the current chain when it
+         * leaves from a stop already on it). Each chain becomes one pattern per
+         * direction in which all of its links exist.
+         */
+        private Patterns buildPatterns(int[] order) {
+            int transportCount = transportNames.size();
+            long n = stops.size();
+
+            // Cheapest directed link per (from, to, transport)
+            Map<Long, Double> linkCosts = new HashMap<>(linkCount * 2);
+            for (int i = 0; i < linkCount; i++) {
+                linkCosts.merge(linkKey(linkFrom[i], linkTo[i], linkTransport[i], n, transportCount), linkCost[i],
+                        Math::min);
+            }
+
+            List<List<List<Integer>>> chains = new ArrayList<>();
+            List<List<Integer>> current = new ArrayList<>();
+            for (int t = 0; t < transportCount; t++) {
+                chains.add(new ArrayList<>());
+                current.add(null);
+            }
+
+            Set<Long> seenPairs = new HashSet<>();
+            for (int i = 0; i < linkCount; i++) {
+                int t = linkTransport[i];
+                int from = linkFrom[i];
+                int to = linkTo[i];
+                if (from == to || !seenPairs.add(linkKey(Math.min(from, to), Math.max(from, to), t, n,
+                        transportCount))) {
+                    continue;
+                }
+
+                List<Integer> chain = current.get(t);
+                if (chain != null && chain.get(chain.size() - 1) == from && !chain.contains(to)) {
+                    chain.add(to);
+                    continue;
+                }
+
+                List<Integer> next = new ArrayList<>();
+                int branch = chain == null ? -1 : chain.indexOf(from);
+                if (branch >= 0 && !chain.subList(0, branch).contains(to)) {
+                    next.addAll(chain.subList(0, branch + 1));
+                } else {
+                    next.add(from);
+                }
+                next.add(to);
+                current.set(t, next);
+                chains.get(t).add(next);
+            }
+
+            Patterns patterns = new Patterns();
+            for (int t = 0; t < transportCount; t++) {
+                for (List<Integer> chain : chains.get(t)) {
+                    for (boolean reverse : new boolean[] { false, true }) {
+                        int size = chain.size();
+                        double[] hops = new double[size];
+                        boolean complete = true;
+                        for (int k = 1; k < size && complete; k++) {
+                            int from = chain.get(reverse ? size - k : k - 1);
+                            int to = chain.get(reverse ? size - k - 1 : k);
+                            Double cost = linkCosts.get(linkKey(from, to, t, n, transportCount));
+                            complete = cost != null;
+                            hops[k] = complete ? cost : 0;
+                        }
+                        if (!complete) {
+                            continue;
+                        }
+                        int[] sequence = new int[size];
+                        for (int k = 0; k < size; k++) {
+                            sequence[k] = order[chain.get(reverse ? size - 1 - k : k)];
+                        }
+                        patterns.add(sequence, hops, t);
+                    }
+                }
+            }
+            return patterns.freeze();
+        }
+
+        private static long linkKey(int from, int to, int transport, long n, int transportCount) {
+            return (from * n + to) * transportCount + transport;
+        }
+
+        /**
+         * Stop -> (pattern, position) postings. Walking patterns in id order
+         * keeps every posting list sorted by pattern.
+         */
+        private static class LineIndex {
+            private final int[] offsets;
+            private final int[] patterns;
+            private final int[] positions;
+
+            LineIndex(int n, Patterns source) {
+                offsets = new int[n + 1];
+                for (int i = 0; i < source.stops.length; i++) {
+                    offsets[source.stops[i] + 1]++;
+                }
+                for (int s = 0; s < n; s++) {
+                    offsets[s + 1] += offsets[s];
+                }
+                int[] fill = Arrays.copyOf(offsets, n);
+                patterns = new int[source.stops.length];
+                positions = new int[source.stops.length];
+                for (int p = 0; p < source.transports.length; p++) {
+                    for (int i = source.offsets[p]; i < source.offsets[p + 1]; i++) {
+                        int posting = fill[source.stops[i]]++;
+                        patterns[posting] = p;
+                        positions[posting] = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Accumulates pattern sequences into flat arrays.
+         */
+        private static class Patterns {
+            private int[] offsets = new int[] { 0 };
+            private int[] stops = new int[0];
+            private double[] hopCosts = new double[0];
+            private int[] transports = new int[0];
+            private int count;
+
+            void add(int[] sequence, double[] hops, int transport) {
+                int start = offsets[count];
+                int end = start + sequence.length;
+                if (count + 1 >= offsets.length) {
+                    offsets = Arrays.copyOf(offsets, (count + 1) * 2);
+                    transports = Arrays.copyOf(transports, (count + 1) * 2);
+                }
+                if (end > stops.length) {
+                    stops = Arrays.copyOf(stops, Math.max(end, stops.length * 2));
+                    hopCosts = Arrays.copyOf(hopCosts, stops.length);
+                }
+                System.arraycopy(sequence, 0, stops, start, sequence.length);
+                System.arraycopy(hops, 0, hopCosts, start, hops.length);
+                transports[count] = transport;
+                offsets[++count] = end;
+            }
+
+            Patterns freeze() {
+                offsets = Arrays.copyOf(offsets, count + 1);
+                transports = Arrays.copyOf(transports, count);
+                stops = Arrays.copyOf(stops, offsets[count]);
+                hopCosts = Arrays.copyOf(hopCosts, offsets[count]);
+                return this;
+            }
+        }
+
+        /**
+         * Stable sort of one row by (target, transport).
+         */
+        private static void sortRow(int from, int to, int[] targets, int[] transports, double[] costs,
+                double[] distances) {
+            if (to - from > INSERTION_SORT_ROW && sortLongRow(from, to, targets, transports, costs, distances)) {
+                return;
+            }
+            // Most rows are short (tens of edges), insertion sort is enough
+            for (int i = from + 1; i < to; i++) {
+                int target = targets[i];
+                int transport = transports[i];
+                double cost = costs[i];
+                double distance = distances[i];
+                int j = i - 1;
+                while (j >= from && (targets[j] > target || (targets[j] == target && transports[j] > transport))) {
+                    targets[j + 1] = targets[j];
+                    transports[j + 1] = transports[j];
+                    costs[j + 1] = costs[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                targets[j + 1] = target;
+                transports[j + 1] = transport;
+                costs[j + 1] = cost;
+                distances[j + 1] = distance;
+            }
+        }
+
+        /**
+         * Sorts hub rows through packed (target, transport, position) keys, so
+         * they cost O(k log k) instead of quadratic insertion sort.
+         *
+         * @return false, leaving the row untouched, if the keys would overflow
+         */
+        private static boolean sortLongRow(int from, int to, int[] targets, int[] transports, double[] costs,
+                double[] distances) {
+            int length = to - from;
+            long targetBound = 0;
+            int transportBound = 0;
+            for (int e = from; e < to; e++) {
+                targetBound = Math.max(targetBound, targets[e] + 1L);
+                transportBound = Math.max(transportBound, transports[e] + 1);
+            }
+            if (targetBound * transportBound >= Long.MAX_VALUE / length) {
+                return false;
+            }
+            long[] keys = new long[length];
+            for (int i = 0; i < length; i++) {
+                int e = from + i;
+                keys[i] = ((long) targets[e] * transportBound + transports[e]) * length + i;
+            }
+            Arrays.sort(keys);
+
+            int[] oldTargets = Arrays.copyOfRange(targets, from, to);
+            int[] oldTransports = Arrays.copyOfRange(transports, from, to);
+            double[] oldCosts = Arrays.copyOfRange(costs, from, to);
+            double[] oldDistances = Arrays.copyOfRange(distances, from, to);
+            for (int i = 0; i < length; i++) {
+                int old = (int) (keys[i] % length);
+                targets[from + i] = oldTargets[old];
+                transports[from + i] = oldTransports[old];
+                costs[from + i] = oldCosts[old];
+                distances[from + i] = oldDistances[old];
+            }
+            return true;
+        }
     }
 
-    public Collection<Stop> getStops() {
-        return stops.values();
+    /**
+     * Copy-on-write edit of a built graph.
+     *
+     * Replaces the outgoing edges of single stops and the route patterns of
+     * single transports, and can add transports; stops stay as they are.
+     * Untouched rows are carried over with bulk copies into heap arrays (also
+     * out of a mapped graph), sections the edit leaves alone and the stop
+     * tables are shared, so an edit costs a few copies plus the replaced
+     * rows. The source graph is not modified and stays valid for searches
+     * still running on it.
+     */
+    public static final class Patch {
+
+        private final Graph graph;
+        private final long version;
+
+        private final TreeMap<Integer, Row> rows = new TreeMap<>();
+        private final Map<Integer, Builder.Patterns> patterns = new HashMap<>();
+
+        private final List<String> addedNames = new ArrayList<>();
+        private final List<String> addedModes = new ArrayList<>();
+        private final Map<String, Integer> addedIndex = new HashMap<>();
+
+        // Output of build(), filled row range by row range
+        private int words;
+        private int[] rowOffsets;
+        private int[] targets;
+        private int[] transports;
+        private double[] costs;
+        private double[] distances;
+        private int[] linkOffsets;
+        private int[] linkTargets;
+        private int[] linkEdgeOffsets;
+        private long[] linkTransportBits;
+        private int edge;
+        private int link;
+
+        public Patch(Graph graph, long version) {
+            this.graph = graph;
+            this.version = version;
+        }
+
+        /**
+         * @return the index of the transport with this name, added to the graph if it has none yet
+         */
+        public int transport(String name, String mode) {
+            int index = graph.indexOfTransport(name);
+            if (index >= 0) {
+                return index;
+            }
+            Integer added = addedIndex.get(name);
+            if (added == null) {
+                added = graph.transportCount() + addedNames.size();
+                addedIndex.put(name, added);
+                addedNames.add(name);
+                addedModes.add(mode);
+            }
+            return added;
+        }
+
+        /**
+         * Drops every outgoing edge of a stop; {@link #addEdge} then fills the row again.
+         */
+        public Patch clearRow(int stop) {
+            rows.put(stop, new Row());
+            return this;
+        }
+
+        /**
+         * Adds an edge to a row cleared with {@link #clearRow}.
+         */
+        public Patch addEdge(int from, int to, int transport, double cost, double distance) {
+            Row row = rows.get(from);
+            if (row == null) {
+                throw new IllegalStateException("Row " + from + " was not cleared");
+            }
+            row.add(to, transport, cost, distance);
+            return this;
+        }
+
+        /**
+         * Drops every route pattern of a transport; {@link #addPattern} then adds new ones.
+         */
+        public Patch clearPatterns(int transport) {
+            patterns.put(transport, new Builder.Patterns());
+            return this;
+        }
+
+        /**
+         * Adds a pattern to a transport cleared with {@link #clearPatterns}.
+         *
+         * @param hopCosts cost of riding to each position from the one before (the first is unused)
+         */
+        public Patch addPattern(int transport, int[] stops, double[] hopCosts) {
+            Builder.Patterns replaced = patterns.get(transport);
+            if (replaced == null) {
+                throw new IllegalStateException("Patterns of transport " + transport + " were not cleared");
+            }
+            replaced.add(stops, hopCosts, transport);
+            return this;
+        }
+
+        public Graph build() {
+            int n = graph.stopCount();
+            String[] names = graph.transportNames;
+            String[] modes = graph.transportModes;
+            Map<String, Integer> transportIndex = graph.transportIndex;
+            long[] metroTransportBits = graph.metroTransportBits;
+            if (!addedNames.isEmpty()) {
+                names = concat(names, addedNames);
+                modes = concat(modes, addedModes);
+                transportIndex = new HashMap<>(transportIndex);
+                transportIndex.putAll(addedIndex);
+                metroTransportBits = Builder.metroBits(names);
+            }
+            words = words(names.length);
+
+            // Only patterns or transports change: share the adjacency as is, mapped or not
+            IntBuffer sharedRowOffsets = graph.rowOffsets;
+            IntBuffer sharedTargets = graph.edgeTargets;
+            IntBuffer sharedTransports = graph.edgeTransports;
+            DoubleBuffer sharedCosts = graph.edgeCosts;
+            DoubleBuffer sharedDistances = graph.edgeDistances;
+            IntBuffer sharedLinkOffsets = graph.linkOffsets;
+            IntBuffer sharedLinkTargets = graph.linkTargets;
+            IntBuffer sharedLinkEdgeOffsets = graph.linkEdgeOffsets;
+            LongBuffer sharedLinkTransportBits = graph.linkTransportBits;
+            byte[] stopModes = graph.stopModes;
+            if (!rows.isEmpty() || words != graph.transportWords) {
+                buildAdjacency();
+                sharedRowOffsets = IntBuffer.wrap(rowOffsets);
+                sharedTargets = IntBuffer.wrap(targets);
+                sharedTransports = IntBuffer.wrap(transports);
+                sharedCosts = DoubleBuffer.wrap(costs);
+                sharedDistances = DoubleBuffer.wrap(distances);
+                sharedLinkOffsets = IntBuffer.wrap(linkOffsets);
+                sharedLinkTargets = IntBuffer.wrap(linkTargets);
+                sharedLinkEdgeOffsets = IntBuffer.wrap(linkEdgeOffsets);
+                sharedLinkTransportBits = LongBuffer.wrap(linkTransportBits);
+                if (!rows.isEmpty()) {
+                    stopModes = Builder.stopModes(n, rowOffsets, targets, transports, metroTransportBits);
+                }
+            }
+
+            IntBuffer patternOffsets = graph.patternOffsets;
+            IntBuffer patternStops = graph.patternStops;
+            DoubleBuffer patternHopCosts = graph.patternHopCosts;
+            IntBuffer patternTransports = graph.patternTransports;
+            IntBuffer postingOffsets = graph.postingOffsets;
+            IntBuffer postingPatterns = graph.postingPatterns;
+            IntBuffer postingPositions = graph.postingPositions;
+            if (!patterns.isEmpty()) {
+                Builder.Patterns merged = mergePatterns(names.length);
+                Builder.LineIndex lines = new Builder.LineIndex(n, merged);
+                patternOffsets = IntBuffer.wrap(merged.offsets);
+                patternStops = IntBuffer.wrap(merged.stops);
+                patternHopCosts = DoubleBuffer.wrap(merged.hopCosts);
+                patternTransports = IntBuffer.wrap(merged.transports);
+                postingOffsets = IntBuffer.wrap(lines.offsets);
+                postingPatterns = IntBuffer.wrap(lines.patterns);
+                postingPositions = IntBuffer.wrap(lines.positions);
+            }
+
+            return new Graph(version, graph.stops, graph.idToIndex, graph.nameToIndex, sharedRowOffsets,
+                    sharedTargets, sharedTransports, sharedCosts, sharedDistances, sharedLinkOffsets,
+                    sharedLinkTargets, sharedLinkEdgeOffsets, sharedLinkTransportBits,
+                    names, modes, transportIndex, metroTransportBits, stopModes,
+                    patternOffsets, patternStops, patternHopCosts, patternTransports,
+                    postingOffsets, postingPatterns, postingPositions);
+        }
+
+        /**
+         * Writes the replaced rows and copies the runs of untouched rows between them.
+         */
+        private void buildAdjacency() {
+            int n = graph.stopCount();
+            int edgeCount = graph.edgeCount();
+            int linkCount = graph.linkCount();
+            for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+                int s = entry.getKey();
+                Row row = entry.getValue();
+                row.sort();
+                edgeCount += row.size - (graph.edgeEnd(s) - graph.edgeStart(s));
+                linkCount += row.links() - (graph.linkEnd(s) - graph.linkStart(s));
+            }
+            rowOffsets = new int[n + 1];
+            targets = new int[edgeCount];
+            transports = new int[edgeCount];
+            costs = new double[edgeCount];
+            distances = new double[edgeCount];
+            linkOffsets = new int[n + 1];
+            linkTargets = new int[linkCount];
+            linkEdgeOffsets = new int[linkCount + 1];
+            linkTransportBits = new long[linkCount * words];
+            int next = 0;
+            for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+                copyRows(next, entry.getKey());
+                writeRow(entry.getKey(), entry.getValue());
+                next = entry.getKey() + 1;
+            }
+            copyRows(next, n);
+            rowOffsets[n] = edge;
+            linkOffsets[n] = link;
+            linkEdgeOffsets[link] = edge;
+        }
+
+        /**
+         * Copies rows [from, to) of the source graph, with their links.
+         */
+        private void copyRows(int from, int to) {
+            int e0 = graph.rowOffsets.get(from);
+            int e1 = graph.rowOffsets.get(to);
+            int edgeShift = edge - e0;
+            graph.edgeTargets.get(e0, targets, edge, e1 - e0);
+            graph.edgeTransports.get(e0, transports, edge, e1 - e0);
+            graph.edgeCosts.get(e0, costs, edge, e1 - e0);
+            graph.edgeDistances.get(e0, distances, edge, e1 - e0);
+
+            int l0 = graph.linkOffsets.get(from);
+            int l1 = graph.linkOffsets.get(to);
+            int linkShift = link - l0;
+            graph.linkTargets.get(l0, linkTargets, link, l1 - l0);
+            for (int l = l0; l < l1; l++) {
+                linkEdgeOffsets[l + linkShift] = graph.linkEdgeOffsets.get(l) + edgeShift;
+            }
+            int oldWords = graph.transportWords;
+            if (oldWords == words) {
+                graph.linkTransportBits.get(l0 * words, linkTransportBits, link * words, (l1 - l0) * words);
+            } else {
+                for (int l = l0; l < l1; l++) {
+                    graph.linkTransportBits.get(l * oldWords, linkTransportBits, (l + linkShift) * words, oldWords);
+                }
+            }
+            for (int s = from; s < to; s++) {
+                rowOffsets[s] = graph.rowOffsets.get(s) + edgeShift;
+                linkOffsets[s] = graph.linkOffsets.get(s) + linkShift;
+            }
+            edge += e1 - e0;
+            link += l1 - l0;
+        }
+
+        private void writeRow(int stop, Row row) {
+            rowOffsets[stop] = edge;
+            linkOffsets[stop] = link;
+            for (int i = 0; i < row.size; i++) {
+                if (i == 0 || row.targets[i] != row.targets[i - 1]) {
+                    linkTargets[link] = row.targets[i];
+                    linkEdgeOffsets[link] = edge;
+                    link++;
+                }
+                int t = row.transports[i];
+                linkTransportBits[(link - 1) * words + (t >>> 6)] |= 1L << t;
+                targets[edge] = row.targets[i];
+                transports[edge] = t;
+                costs[edge] = row.costs[i];
+                distances[edge] = row.distances[i];
+                edge++;
+            }
+        }
+
+        /**
+         * Patterns of the source graph with the replaced transports swapped
+         * in, still grouped by transport in index order.
+         */
+        private Builder.Patterns mergePatterns(int transportCount) {
+            Builder.Patterns merged = new Builder.Patterns();
+            int p = 0;
+            for (int t = 0; t < transportCount; t++) {
+                int first = p;
+                while (p < graph.patternCount() && graph.patternTransports.get(p) == t) {
+                    p++;
+                }
+                Builder.Patterns replaced = patterns.get(t);
+                if (replaced != null) {
+                    for (int i = 0; i < replaced.count; i++) {
+                        int from = replaced.offsets[i];
+                        int to = replaced.offsets[i + 1];
+                        merged.add(Arrays.copyOfRange(replaced.stops, from, to),
+                                Arrays.copyOfRange(replaced.hopCosts, from, to), t);
+                    }
+                    continue;
+                }
+                for (int i = first; i < p; i++) {
+                    int from = graph.patternOffsets.get(i);
+                    int to = graph.patternOffsets.get(i + 1);
+                    int[] stops = new int[to - from];
+                    double[] hopCosts = new double[to - from];
+                    graph.patternStops.get(from, stops);
+                    graph.patternHopCosts.get(from, hopCosts);
+                    merged.add(stops, hopCosts, t);
+                }
+            }
+            return merged.freeze();
+        }
+
+        private static String[] concat(String[] first, List<String> second) {
+            String[] joined = Arrays.copyOf(first, first.length + second.size());
+            for (int i = 0; i < second.size(); i++) {
+                joined[first.length + i] = second.get(i);
+            }
+            return joined;
+        }
+
+        /**
+         * A replaced adjacency row.
+         */
+        private static final class Row {
+            private int[] targets = new int[8];
+            private int[] transports = new int[8];
+            private double[] costs = new double[8];
+            private double[] distances = new double[8];
+            private int size;
+
+            void add(int target, int transport, double cost, double distance) {
+                if (size == targets.length) {
+                    targets = Arrays.copyOf(targets, size * 2);
+                    transports = Arrays.copyOf(transports, size * 2);
+                    costs = Arrays.copyOf(costs, size * 2);
+                    distances = Arrays.copyOf(distances, size * 2);
+                }
+                targets[size] = target;
+                transports[size] = transport;
+                costs[size] = cost;
+                distances[size] = distance;
+                size++;
+            }
+
+            void sort() {
+                Builder.sortRow(0, size, targets, transports, costs, distances);
+            }
+
+            int links() {
+                int links = 0;
+                for (int i = 0; i < size; i++) {
+                    if (i == 0 || targets[i] != targets[i - 1]) {
+                        links++;
+                    }
+                }
+                return links;
+            }
+        }
     }
 }
@@ -0,0 +1,487 @@
+package com.suto.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact binary form of a built {@link Graph}.
+ *
+ * The file is the graph's own arrays, little-endian, each section padded to
+ * 8 bytes: a header of counts, a string table shared by stop names, stop
+ * types, transport names and modes, the stop ids, stable ids and coordinates, the CSR
+ * edge arrays, links, the metro bitset and stop mode flags, route patterns
+ * and the line index. Nothing is recomputed on load.
+ *
+ * Loading maps the file with {@link FileChannel#map} and queries it in
+ * place: the CSR edges, links, patterns and line index of the loaded graph
+ * are little-endian buffer views of the mapping, so they live in the page
+ * cache instead of counting against the heap, and there is no parsing, no
+ * per-edge object and no rebuild of links, patterns or the line index. Only
+ * the stops, names and lookup maps are built on the heap. A {@link
+ * Graph.Patch} of a mapped graph shares the sections it leaves alone and
+ * copies the rest onto the heap. {@link #write} moves a new file into place
+ * rather than writing over the old one, so a graph mapped from the old file
+ * stays readable.
+ *
+ * Every count, section length, offset table and index is checked while
+ * loading, so a truncated or corrupt file fails with an IOException instead
+ * of yielding a graph that breaks on its first query.
+ */
+public final class GraphFormat {
+
+    private static final long MAGIC = 0x5355544F47524146L; // "SUTOGRAF"
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int NO_STRING = -1;
+
+    private GraphFormat() {
+    }
+
+    /**
+     * Writes a graph. The file is written next to its target and moved into
+     * place, so a reader never sees a partly written graph.
+     */
+    public static void write(Graph graph, Path file) throws IOException {
+        int n = graph.stopCount();
+        int transportCount = graph.transportCount();
+        int edgeCount = graph.edgeCount();
+        int linkCount = graph.linkCount();
+        int patternCount = graph.patternCount();
+        int positions = patternCount == 0 ? 0 : graph.patternEnd(patternCount - 1);
+
+        // String table, each distinct string once
+        Map<String, Integer> stringIds = new LinkedHashMap<>();
+        int[] stopNames = new int[n];
+        int[] stopTypes = new int[n];
+        long[] stopIds = new long[n * 2];
+        int[] stableIds = new int[n];
+        double[] coordinates = new double[n * 2];
+        for (int s = 0; s < n; s++) {
+            Stop stop = graph.stopAt(s);
+            stopNames[s] = intern(stringIds, stop.getName());
+            stopTypes[s] = intern(stringIds, stop.getType());
+            stopIds[s * 2] = stop.getId().getMostSignificantBits();
+            stopIds[s * 2 + 1] = stop.getId().getLeastSignificantBits();
+            stableIds[s] = stop.getStableId();
+            coordinates[s * 2] = stop.getLat() == null ? Double.NaN : stop.getLat();
+            coordinates[s * 2 + 1] = stop.getLng() == null ? Double.NaN : stop.getLng();
+        }
+        int[] transportNames = new int[transportCount];
+        int[] transportModes = new int[transportCount];
+        for (int t = 0; t < transportCount; t++) {
+            transportNames[t] = intern(stringIds, graph.transportName(t));
+            transportModes[t] = intern(stringIds, graph.transportMode(t));
+        }
+        int[] stringOffsets = new int[stringIds.size() + 1];
+        byte[][] encoded = new byte[stringIds.size()][];
+        int i = 0;
+        for (String string : stringIds.keySet()) {
+            encoded[i] = string.getBytes(StandardCharsets.UTF_8);
+            stringOffsets[i + 1] = stringOffsets[i] + encoded[i].length;
+            i++;
+        }
+        byte[] stringBytes = new byte[stringOffsets[encoded.length]];
+        for (i = 0; i < encoded.length; i++) {
+            System.arraycopy(encoded[i], 0, stringBytes, stringOffsets[i], encoded[i].length);
+        }
+
+        // Adjacency and links
+        int[] rowOffsets = new int[n + 1];
+        int[] linkOffsets = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            rowOffsets[s] = graph.edgeStart(s);
+            linkOffsets[s] = graph.linkStart(s);
+        }
+        rowOffsets[n] = edgeCount;
+        linkOffsets[n] = linkCount;
+        int[] targets = new int[edgeCount];
+        int[] transports = new int[edgeCount];
+        double[] costs = new double[edgeCount];
+        double[] distances = new double[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            targets[e] = graph.target(e);
+            transports[e] = graph.transport(e);
+            costs[e] = graph.cost(e);
+            distances[e] = graph.distance(e);
+        }
+        int words = Graph.words(transportCount);
+        int[] linkTargets = new int[linkCount];
+        int[] linkEdgeOffsets = new int[linkCount + 1];
+        long[] linkTransportBits = new long[linkCount * words];
+        for (int l = 0; l < linkCount; l++) {
+            linkTargets[l] = graph.linkTarget(l);
+            linkEdgeOffsets[l] = graph.linkEdgeStart(l);
+            for (int e = graph.linkEdgeStart(l); e < graph.linkEdgeEnd(l); e++) {
+                linkTransportBits[l * words + (transports[e] >>> 6)] |= 1L << transports[e];
+            }
+        }
+        linkEdgeOffsets[linkCount] = edgeCount;
+        long[] metroTransportBits = new long[words];
+        for (int t = 0; t < transportCount; t++) {
+            if (graph.isMetroTransport(t)) {
+                metroTransportBits[t >>> 6] |= 1L << t;
+            }
+        }
+        byte[] stopModes = new byte[n];
+        for (int s = 0; s < n; s++) {
+            stopModes[s] = (byte) graph.stopModes(s);
+        }
+
+        // Patterns and line index
+        int[] patternOffsets = new int[patternCount + 1];
+        int[] patternTransports = new int[patternCount];
+        for (int p = 0; p < patternCount; p++) {
+            patternOffsets[p] = graph.patternStart(p);
+            patternTransports[p] = graph.patternTransport(p);
+        }
+        patternOffsets[patternCount] = positions;
+        int[] patternStops = new int[positions];
+        double[] patternHopCosts = new double[positions];
+        for (int position = 0; position < positions; position++) {
+            patternStops[position] = graph.patternStop(position);
+            patternHopCosts[position] = graph.patternHopCost(position);
+        }
+        int[] postingOffsets = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            postingOffsets[s] = graph.postingStart(s);
+        }
+        postingOffsets[n] = positions;
+        int[] postingPatterns = new int[positions];
+        int[] postingPositions = new int[positions];
+        for (int posting = 0; posting < positions; posting++) {
+            postingPatterns[posting] = graph.postingPattern(posting);
+            postingPositions[posting] = graph.postingPosition(posting);
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.longs(new long[] { MAGIC });
+            out.ints(new int[] { FORMAT_VERSION, n, transportCount, edgeCount, linkCount, patternCount, positions,
+                    stringIds.size() });
+            out.ints(stringOffsets);
+            out.bytes(stringBytes);
+            out.ints(stopNames);
+            out.ints(stopTypes);
+            out.longs(stopIds);
+            out.ints(stableIds);
+            out.doubles(coordinates);
+            out.ints(transportNames);
+            out.ints(transportModes);
+            out.ints(rowOffsets);
+            out.ints(targets);
+            out.ints(transports);
+            out.doubles(costs);
+            out.doubles(distances);
+            out.ints(linkOffsets);
+            out.ints(linkTargets);
+            out.ints(linkEdgeOffsets);
+            out.longs(linkTransportBits);
+            out.longs(metroTransportBits);
+            out.bytes(stopModes);
+            out.ints(patternOffsets);
+            out.ints(patternStops);
+            out.doubles(patternHopCosts);
+            out.ints(patternTransports);
+            out.ints(postingOffsets);
+            out.ints(postingPatterns);
+            out.ints(postingPositions);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a graph written by {@link #write}.
+     *
+     * @param version load version to give the graph
+     */
+    public static Graph read(Path file, long version) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large for a graph file");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Reader in = new Reader(file, buffer);
+        if (in.remaining() < 8 || in.longs(1)[0] != MAGIC) {
+            throw new IOException(file + " is not a graph file");
+        }
+        int[] header = in.ints(8);
+        if (header[0] != FORMAT_VERSION) {
+            throw new IOException(file + " has format version " + header[0] + ", expected " + FORMAT_VERSION);
+        }
+        for (int i = 1; i < header.length; i++) {
+            if (header[i] < 0) {
+                throw in.corrupt("negative count in header");
+            }
+        }
+        int n = header[1];
+        int transportCount = header[2];
+        int edgeCount = header[3];
+        int linkCount = header[4];
+        int patternCount = header[5];
+        int positions = header[6];
+        int stringCount = header[7];
+        int words = Graph.words(transportCount);
+
+        IntBuffer stringOffsets = in.offsets(stringCount + 1, -1);
+        byte[] stringBytes = in.bytes(stringOffsets.get(stringCount));
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = new String(stringBytes, stringOffsets.get(i), stringOffsets.get(i + 1) - stringOffsets.get(i),
+                    StandardCharsets.UTF_8);
+        }
+
+        IntBuffer stopNames = in.indices(n, stringCount, false);
+        IntBuffer stopTypes = in.indices(n, stringCount, true);
+        long[] stopIds = in.longs(n * 2L);
+        int[] stableIds = in.ints(n);
+        double[] coordinates = in.doubles(n * 2L);
+        Stop[] stops = new Stop[n];
+        Map<UUID, Integer> idToIndex = new HashMap<>(n * 2);
+        Map<String, Integer> nameToIndex = new HashMap<>(n * 2);
+        for (int s = 0; s < n; s++) {
+            Stop stop = new Stop();
+            stop.setId(new UUID(stopIds[s * 2], stopIds[s * 2 + 1]));
+            stop.setStableId(stableIds[s]);
+            stop.setName(strings[stopNames.get(s)]);
+            stop.setType(stopTypes.get(s) == NO_STRING ? null : strings[stopTypes.get(s)]);
+            stop.setLat(Double.isNaN(coordinates[s * 2]) ? null : coordinates[s * 2]);
+            stop.setLng(Double.isNaN(coordinates[s * 2 + 1]) ? null : coordinates[s * 2 + 1]);
+            stops[s] = stop;
+            idToIndex.put(stop.getId(), s);
+            nameToIndex.put(stop.getName().toLowerCase(), s);
+        }
+
+        IntBuffer transportNameIds = in.indices(transportCount, stringCount, false);
+        IntBuffer transportModeIds = in.indices(transportCount, stringCount, true);
+        String[] transportNames = new String[transportCount];
+        String[] transportModes = new String[transportCount];
+        Map<String, Integer> transportIndex = new HashMap<>(transportCount * 2);
+        for (int t = 0; t < transportCount; t++) {
+            transportNames[t] = strings[transportNameIds.get(t)];
+            transportModes[t] = transportModeIds.get(t) == NO_STRING ? null : strings[transportModeIds.get(t)];
+            transportIndex.put(transportNames[t], t);
+        }
+
+        // Served from the mapping from here on; the small metro bitset and stop modes are copied
+        IntBuffer rowOffsets = in.offsets(n + 1, edgeCount);
+        IntBuffer targets = in.indices(edgeCount, n, false);
+        IntBuffer transports = in.indices(edgeCount, transportCount, false);
+        DoubleBuffer costs = in.doubleSection(edgeCount);
+        DoubleBuffer distances = in.doubleSection(edgeCount);
+        IntBuffer linkOffsets = in.offsets(n + 1, linkCount);
+        IntBuffer linkTargets = in.indices(linkCount, n, false);
+        IntBuffer linkEdgeOffsets = in.offsets(linkCount + 1, edgeCount);
+        LongBuffer linkTransportBits = in.longSection((long) linkCount * words);
+        long[] metroTransportBits = in.longs(words);
+        byte[] stopModes = in.bytes(n);
+        IntBuffer patternOffsets = in.offsets(patternCount + 1, positions);
+        IntBuffer patternStops = in.indices(positions, n, false);
+        DoubleBuffer patternHopCosts = in.doubleSection(positions);
+        IntBuffer patternTransports = in.indices(patternCount, transportCount, false);
+        IntBuffer postingOffsets = in.offsets(n + 1, positions);
+        IntBuffer postingPatterns = in.indices(positions, patternCount, false);
+        IntBuffer postingPositions = in.indices(positions, positions, false);
+        if (in.remaining() != 0) {
+            throw in.corrupt(in.remaining() + " bytes after the last section");
+        }
+
+        return new Graph(version, stops, idToIndex, nameToIndex, rowOffsets, targets, transports, costs, distances,
+                linkOffsets, linkTargets, linkEdgeOffsets, linkTransportBits, transportNames, transportModes,
+                transportIndex, metroTransportBits, stopModes, patternOffsets, patternStops, patternHopCosts,
+                patternTransports, postingOffsets, postingPatterns, postingPositions);
+    }
+
+    private static int intern(Map<String, Integer> stringIds, String string) {
+        if (string == null) {
+            return NO_STRING;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * Writes array sections, each padded to 8 bytes.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ints(int[] values) throws IOException {
+            ByteBuffer buffer = allocate(values.length * 4L);
+            buffer.asIntBuffer().put(values);
+            write(buffer);
+        }
+
+        void longs(long[] values) throws IOException {
+            ByteBuffer buffer = allocate(values.length * 8L);
+            buffer.asLongBuffer().put(values);
+            write(buffer);
+        }
+
+        void doubles(double[] values) throws IOException {
+            ByteBuffer buffer = allocate(values.length * 8L);
+            buffer.asDoubleBuffer().put(values);
+            write(buffer);
+        }
+
+        void bytes(byte[] values) throws IOException {
+            ByteBuffer buffer = allocate(values.length);
+            buffer.put(values);
+            buffer.clear();
+            write(buffer);
+        }
+
+        private static ByteBuffer allocate(long size) {
+            return ByteBuffer.allocate((int) ((size + 7) & ~7L)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads array sections of the mapped file, checking each one fits in what
+     * is left of the file before reading it. Small tables are copied out; the
+     * large ones are returned as views of the mapping.
+     */
+    private static final class Reader {
+        private final Path file;
+        private final ByteBuffer buffer;
+
+        Reader(Path file, ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        IOException corrupt(String problem) {
+            return new IOException(file + " is corrupt: " + problem);
+        }
+
+        int[] ints(long count) throws IOException {
+            IntBuffer section = intSection(count);
+            int[] values = new int[section.limit()];
+            section.get(0, values);
+            return values;
+        }
+
+        long[] longs(long count) throws IOException {
+            LongBuffer section = longSection(count);
+            long[] values = new long[section.limit()];
+            section.get(0, values);
+            return values;
+        }
+
+        double[] doubles(long count) throws IOException {
+            DoubleBuffer section = doubleSection(count);
+            double[] values = new double[section.limit()];
+            section.get(0, values);
+            return values;
+        }
+
+        byte[] bytes(long count) throws IOException {
+            byte[] values = new byte[require(count, 1)];
+            buffer.slice().get(values);
+            skip(count);
+            return values;
+        }
+
+        IntBuffer intSection(long count) throws IOException {
+            IntBuffer values = view(require(count, 4) * 4).asIntBuffer();
+            skip(count * 4L);
+            return values;
+        }
+
+        LongBuffer longSection(long count) throws IOException {
+            LongBuffer values = view(require(count, 8) * 8).asLongBuffer();
+            skip(count * 8L);
+            return values;
+        }
+
+        DoubleBuffer doubleSection(long count) throws IOException {
+            DoubleBuffer values = view(require(count, 8) * 8).asDoubleBuffer();
+            skip(count * 8L);
+            return values;
+        }
+
+        /**
+         * Reads an offset table: starting at 0, never decreasing, ending at
+         * total (or anywhere when total is -1).
+         */
+        IntBuffer offsets(int count, int total) throws IOException {
+            IntBuffer values = intSection(count);
+            if (values.get(0) != 0 || (total >= 0 && values.get(count - 1) != total)) {
+                throw corrupt("offset table does not span its section");
+            }
+            for (int i = 1; i < count; i++) {
+                if (values.get(i) < values.get(i - 1)) {
+                    throw corrupt("offset table decreases at " + i);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Reads indices into a table of the given size, {@link #NO_STRING} allowed if noneAllowed.
+         */
+        IntBuffer indices(int count, int bound, boolean noneAllowed) throws IOException {
+            IntBuffer values = intSection(count);
+            for (int i = 0; i < count; i++) {
+                int value = values.get(i);
+                if (value >= bound || (value < 0 && !(noneAllowed && value == NO_STRING))) {
+                    throw corrupt("index " + value + " out of range [0, " + bound + ")");
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the next size bytes of the file, on their own position and byte order
+         */
+        private ByteBuffer view(int size) {
+            return buffer.slice(buffer.position(), size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private int require(long count, int width) throws IOException {
+            if (count < 0 || count * width > buffer.remaining()) {
+                throw corrupt("section of " + count + " values runs past the end of the file");
+            }
+            return (int) count;
+        }
+
+        private void skip(long size) {
+            long padded = (size + 7) & ~7L;
+            // The last section's padding may be all that is missing; the length check catches real truncation
+            buffer.position((int) Math.min(buffer.limit(), buffer.position() + padded));
+        }
+    }
+}
@@ -14,6 +14,7 @@ public class Stop extends BaseEntity {
     private String type; // "METRO", "BUS"
     private Double lat; // Latitude
     private Double lng; // Longitude
+    private int stableId = -1; // Dense id that survives reloads, -1 if unassigned
 
     public Stop() {
         super();
@@ -58,6 +59,14 @@ public class Stop extends BaseEntity {
         this.lng = lng;
     }
 
+    public int getStableId() {
+        return stableId;
+    }
+
+    public void setStableId(int stableId) {
+        this.stableId = stableId;
+    }
+
     /**
      * Polymorphism Example
      */
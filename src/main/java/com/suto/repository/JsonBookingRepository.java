@@ -24,8 +24,9 @@ public class JsonBookingRepository implements BookingRepository {
         this.jsonFileService = new JsonFileService();
     }
 
+    // Writers are serialized, as each save rewrites the whole file
     @Override
-    public Booking save(Booking booking) {
+    public synchronized Booking save(Booking booking) {
         List<Booking> bookings = getAllBookings();
 
         if (booking.getId() == null) {
@@ -68,7 +69,7 @@ public class JsonBookingRepository implements BookingRepository {
     }
 
     @Override
-    public void updateStatus(UUID bookingId, String status) {
+    public synchronized void updateStatus(UUID bookingId, String status) {
         List<Booking> bookings = getAllBookings();
         for (Booking b : bookings) {
             if (b.getId().equals(bookingId)) {
@@ -33,8 +33,9 @@ public class JsonUserRepository implements UserRepository {
                 .findFirst();
     }
 
+    // Writers are serialized, as each save rewrites the whole file
     @Override
-    public User save(User user) {
+    public synchronized User save(User user) {
         List<User> users = getAllUsers();
 
         // Check if user already exists (update)
@@ -0,0 +1,54 @@
+package com.suto.security;
+
+import com.suto.model.User;
+import com.suto.repository.UserRepository;
+import io.jsonwebtoken.JwtException;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Decides whether a request comes from an administrator.
+ *
+ * The token only identifies the user; the role is read from the user store.
+ * Admins are provisioned on the server by setting {@code "role": "admin"} in
+ * the user's record, never through the API, and revoking the role there
+ * takes effect at once, even for tokens issued before.
+ */
+public class AdminAccess {
+
+    public static final String ADMIN_ROLE = "admin";
+
+    public enum Verdict {
+        ALLOWED, UNAUTHENTICATED, FORBIDDEN
+    }
+
+    private final JwtUtil jwtUtil;
+    private final UserRepository userRepository;
+
+    public AdminAccess(JwtUtil jwtUtil, UserRepository userRepository) {
+        this.jwtUtil = jwtUtil;
+        this.userRepository = userRepository;
+    }
+
+    public Verdict check(String authorizationHeader) {
+        if (authorizationHeader == null) {
+            return Verdict.UNAUTHENTICATED;
+        }
+        Optional<User> user;
+        try {
+            String userId = jwtUtil.extractClaim(authorizationHeader.replace("Bearer ", ""),
+                    claims -> claims.get("userId", String.class));
+            if (userId == null) {
+                return Verdict.UNAUTHENTICATED;
+            }
+            user = userRepository.findById(UUID.fromString(userId));
+        } catch (JwtException | IllegalArgumentException e) {
+            return Verdict.UNAUTHENTICATED;
+        }
+        if (user.isEmpty()) {
+            return Verdict.UNAUTHENTICATED;
+        }
+        return ADMIN_ROLE.equalsIgnoreCase(user.get().getRole()) ? Verdict.ALLOWED : Verdict.FORBIDDEN;
+    }
+}
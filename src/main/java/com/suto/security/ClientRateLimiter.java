@@ -0,0 +1,142 @@
+package com.suto.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limit per client, where a client is a signed-in user or
+ * else a remote address.
+ *
+ * Each client's bucket holds up to {@code burst} tokens and refills at
+ * {@code ratePerSecond}; a request takes one token or is refused with the
+ * time until the next one.
+ *
+ * The table holds at most about {@link #MAX_CLIENTS} buckets. Buckets of
+ * clients that have been quiet long enough to refill completely carry no
+ * state worth keeping, so once the table is full they are swept out, at
+ * most once per refill interval (burst / rate): within an interval a sweep
+ * could only find the buckets the previous one left. A new client that
+ * still finds the table full is refused until the next sweep is due, so a
+ * flood of new clients costs a map lookup each, not a scan of the table.
+ */
+public class ClientRateLimiter {
+
+    static final int MAX_CLIENTS = 10_000;
+
+    private final double ratePerSecond;
+    private final double burst;
+    private final long refillNanos; // from empty to full
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    public ClientRateLimiter(double ratePerSecond, double burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.refillNanos = Math.max(1, (long) (burst / ratePerSecond * 1e9));
+        this.nextSweep = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return a limiter sized by the {@code suto.admission.rate} and
+     *         {@code suto.admission.burst} system properties
+     */
+    public static ClientRateLimiter fromSystemProperties() {
+        double rate = Double.parseDouble(System.getProperty("suto.admission.rate", "10"));
+        double burst = Double.parseDouble(System.getProperty("suto.admission.burst", "20"));
+        return new ClientRateLimiter(rate, burst);
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     *
+     * @return 0 if the request may go ahead, otherwise the whole seconds
+     *         until the client has a token again
+     */
+    public long tryAcquire(String client) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_CLIENTS) {
+                sweep(now);
+                if (buckets.size() >= MAX_CLIENTS) {
+                    shed.increment();
+                    rejected.increment();
+                    return seconds(nextSweep.get() - now);
+                }
+            }
+            bucket = buckets.computeIfAbsent(client, c -> new Bucket(now));
+        }
+        long waitNanos = bucket.take(now);
+        if (waitNanos == 0) {
+            return 0;
+        }
+        rejected.increment();
+        return seconds(waitNanos);
+    }
+
+    /**
+     * Drops the buckets that have refilled completely, unless the last sweep
+     * was less than a refill interval ago. Only the caller that claims the
+     * sweep runs it; the others carry on at once.
+     */
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + refillNanos)) {
+            return;
+        }
+        buckets.values().removeIf(b -> b.isFull(now));
+    }
+
+    private static long seconds(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ratePerSecond", ratePerSecond);
+        stats.put("burst", burst);
+        stats.put("clients", buckets.size());
+        stats.put("rejected", rejected.sum());
+        stats.put("shed", shed.sum());
+        return stats;
+    }
+
+    private final class Bucket {
+        private double tokens = burst;
+        private long refilledAt;
+
+        Bucket(long now) {
+            this.refilledAt = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, else nanoseconds until one is available
+         */
+        synchronized long take(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) ((1 - tokens) / ratePerSecond * 1e9);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * ratePerSecond);
+                refilledAt = now;
+            }
+        }
+    }
+}
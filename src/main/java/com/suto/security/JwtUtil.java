@@ -1,6 +1,7 @@
 package com.suto.security;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
@@ -24,6 +25,21 @@ public class JwtUtil {
         return extractClaim(token, Claims::getSubject);
     }
 
+    /**
+     * @return the subject of a valid "Bearer" Authorization header, or null
+     *         if the header is missing, malformed, forged or expired
+     */
+    public String verifiedSubject(String authorizationHeader) {
+        if (authorizationHeader == null) {
+            return null;
+        }
+        try {
+            return extractUsername(authorizationHeader.replace("Bearer ", ""));
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
         final Claims claims = extractAllClaims(token);
         return claimsResolver.apply(claims);
@@ -5,16 +5,22 @@ import com.suto.dto.LoginRequest;
 import com.suto.dto.SignupRequest;
 import com.suto.exception.DuplicateEmailException;
 import com.suto.exception.InvalidCredentialsException;
+import com.suto.exception.SutoException;
 import com.suto.exception.UserNotFoundException;
 import com.suto.model.User;
 import com.suto.repository.UserRepository;
 import com.suto.security.JwtUtil;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
+import java.util.Set;
 import java.util.UUID;
 
 public class AuthService {
 
+    // Roles users may pick for themselves; admins are only provisioned on the server
+    private static final String DEFAULT_ROLE = "passenger";
+    private static final Set<String> SIGNUP_ROLES = Set.of("passenger", "driver", "owner");
+
     private final UserRepository userRepository;
     private final BCryptPasswordEncoder passwordEncoder;
     private final JwtUtil jwtUtil;
@@ -26,6 +32,11 @@ public class AuthService {
     }
 
     public AuthResponse signup(SignupRequest request) {
+        String role = request.getRole() != null ? request.getRole().toLowerCase() : DEFAULT_ROLE;
+        if (!SIGNUP_ROLES.contains(role)) {
+            throw new SutoException("Role not available at signup: " + request.getRole());
+        }
+
         // Check if email exists
         if (userRepository.findByEmail(request.getEmail()).isPresent()) {
             throw new DuplicateEmailException(request.getEmail());
@@ -36,7 +47,7 @@ public class AuthService {
         user.setEmail(request.getEmail());
         user.setPasswordHash(passwordEncoder.encode(request.getPassword()));
         user.setFullName(request.getFullName());
-        user.setRole(request.getRole() != null ? request.getRole() : "passenger");
+        user.setRole(role);
 
         // Save to DB
         userRepository.save(user);
@@ -0,0 +1,304 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import com.suto.util.IntStack;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * All-pairs lower bounds on the transfers and stops needed between two stops.
+ *
+ * A row holds the distances from every stop to one destination, computed by a
+ * backwards search from that destination, so a route search reads a single
+ * contiguous row for its pruning bounds. Transfers count any ride along links
+ * of one transport as a single leg, which is never more than either engine
+ * needs; stops are plain link hops. Both are therefore valid lower bounds.
+ *
+ * Small networks get every row computed up front in parallel, one destination
+ * per fork-join task. When the full matrix would exceed
+ * {@link #MAX_EAGER_CELLS} rows are computed on first use instead and held
+ * through soft references, so they can be reclaimed under memory pressure.
+ *
+ * A graph published by an incremental change starts with a {@link #lazy}
+ * matrix, so the change is visible at once; the graph service replaces it
+ * with a full one in the background.
+ */
+public final class DistanceMatrix {
+
+    public static final int UNREACHABLE = -1;
+
+    static final long MAX_EAGER_CELLS = 4_000_000L;
+
+    private final Graph graph;
+    private final int stopCount;
+
+    // (stop, transport) states: the states of stop w are [stopStates[w], stopStates[w + 1])
+    private final int[] stopStates;
+    private final int[] stateStop;
+
+    // For state (w, T): the states (v, T) of every link v -> w on T
+    private final int[] inStart;
+    private final int[] inFrom;
+
+    private final Row[] rows; // null when rows are computed lazily
+    private final AtomicReferenceArray<SoftReference<Row>> lazyRows;
+
+    public DistanceMatrix(Graph graph) {
+        this(graph, (long) graph.stopCount() * graph.stopCount() <= MAX_EAGER_CELLS);
+    }
+
+    /**
+     * @return a matrix that computes every row on first use, whatever the
+     *         size of the graph; only the stop and transport states are
+     *         set up here
+     */
+    public static DistanceMatrix lazy(Graph graph) {
+        return new DistanceMatrix(graph, false);
+    }
+
+    private DistanceMatrix(Graph graph, boolean eager) {
+        this.graph = graph;
+        this.stopCount = graph.stopCount();
+
+        // Number the (stop, transport) pairs touched by any link
+        long[] pairs = new long[graph.edgeCount() * 2];
+        int count = 0;
+        for (int v = 0; v < stopCount; v++) {
+            for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                pairs[count++] = pair(v, graph.transport(e));
+                pairs[count++] = pair(graph.target(e), graph.transport(e));
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+        int states = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || pairs[i] != pairs[i - 1]) {
+                pairs[states++] = pairs[i];
+            }
+        }
+        long[] statePairs = Arrays.copyOf(pairs, states);
+
+        this.stateStop = new int[states];
+        this.stopStates = new int[stopCount + 1];
+        for (int s = 0; s < states; s++) {
+            stateStop[s] = (int) (statePairs[s] >>> 32);
+            stopStates[stateStop[s] + 1]++;
+        }
+        for (int v = 0; v < stopCount; v++) {
+            stopStates[v + 1] += stopStates[v];
+        }
+
+        // Group links by the state they arrive in
+        this.inStart = new int[states + 1];
+        int[] linkFrom = new int[graph.edgeCount()];
+        int[] linkTo = new int[graph.edgeCount()];
+        for (int v = 0; v < stopCount; v++) {
+            for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                int transport = graph.transport(e);
+                linkFrom[e] = Arrays.binarySearch(statePairs, pair(v, transport));
+                linkTo[e] = Arrays.binarySearch(statePairs, pair(graph.target(e), transport));
+                inStart[linkTo[e] + 1]++;
+            }
+        }
+        for (int s = 0; s < states; s++) {
+            inStart[s + 1] += inStart[s];
+        }
+        this.inFrom = new int[graph.edgeCount()];
+        int[] fill = Arrays.copyOf(inStart, states);
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            inFrom[fill[linkTo[e]]++] = linkFrom[e];
+        }
+
+        if (eager) {
+            this.rows = new Row[stopCount];
+            this.lazyRows = null;
+            if (stopCount > 0) {
+                ForkJoinPool.commonPool().invoke(new RowTask(0, stopCount));
+            }
+        } else {
+            this.rows = null;
+            this.lazyRows = new AtomicReferenceArray<>(stopCount);
+        }
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    public boolean isEager() {
+        return rows != null;
+    }
+
+    /**
+     * @return the fewest transfers from one stop to another, or {@link #UNREACHABLE}
+     */
+    public int minTransfers(int from, int to) {
+        return transfersTo(to)[from];
+    }
+
+    /**
+     * @return the fewest stops from one stop to another, or {@link #UNREACHABLE}
+     */
+    public int minStops(int from, int to) {
+        return stopsTo(to)[from];
+    }
+
+    /**
+     * @return the fewest transfers from every stop to {@code to}
+     */
+    byte[] transfersTo(int to) {
+        return row(to).transfers;
+    }
+
+    /**
+     * @return the fewest stops from every stop to {@code to}
+     */
+    short[] stopsTo(int to) {
+        return row(to).stops;
+    }
+
+    private Row row(int to) {
+        if (rows != null) {
+            return rows[to];
+        }
+        SoftReference<Row> ref = lazyRows.get(to);
+        Row row = ref == null ? null : ref.get();
+        if (row == null) {
+            row = computeRow(to);
+            lazyRows.set(to, new SoftReference<>(row));
+        }
+        return row;
+    }
+
+    private Row computeRow(int to) {
+        return new Row(computeTransfers(to), computeStops(to));
+    }
+
+    /**
+     * Backwards 0-1 BFS over stops and (stop, transport) states: boarding costs
+     * one leg, riding on and alighting are free.
+     */
+    private byte[] computeTransfers(int to) {
+        int states = stateStop.length;
+        int[] dist = new int[stopCount + states];
+        Arrays.fill(dist, Integer.MAX_VALUE);
+        IntStack current = new IntStack();
+        IntStack next = new IntStack();
+
+        dist[to] = 0;
+        current.push(to);
+        int d = 0;
+        while (true) {
+            if (current.isEmpty()) {
+                if (next.isEmpty()) {
+                    break;
+                }
+                IntStack swap = current;
+                current = next;
+                next = swap;
+                d++;
+            }
+            int node = current.pop();
+            if (dist[node] != d) {
+                continue; // Reached with fewer legs already
+            }
+            if (node < stopCount) {
+                // Alighted at this stop: any transport calling here could have been ridden
+                for (int s = stopStates[node]; s < stopStates[node + 1]; s++) {
+                    relax(dist, stopCount + s, d, current);
+                }
+            } else {
+                int s = node - stopCount;
+                relax(dist, stateStop[s], d + 1, next); // Boarded here
+                for (int i = inStart[s]; i < inStart[s + 1]; i++) {
+                    relax(dist, stopCount + inFrom[i], d, current); // Rode in on the same transport
+                }
+            }
+        }
+
+        byte[] transfers = new byte[stopCount];
+        for (int v = 0; v < stopCount; v++) {
+            int legs = dist[v];
+            if (legs == Integer.MAX_VALUE) {
+                transfers[v] = UNREACHABLE;
+            } else {
+                transfers[v] = (byte) Math.min(Math.max(legs - 1, 0), Byte.MAX_VALUE);
+            }
+        }
+        return transfers;
+    }
+
+    private short[] computeStops(int to) {
+        short[] stops = new short[stopCount];
+        Arrays.fill(stops, (short) UNREACHABLE);
+        int[] queue = new int[stopCount];
+        int head = 0;
+        int tail = 0;
+        stops[to] = 0;
+        queue[tail++] = to;
+        while (head < tail) {
+            int w = queue[head++];
+            short d = (short) Math.min(stops[w] + 1, Short.MAX_VALUE);
+            for (int s = stopStates[w]; s < stopStates[w + 1]; s++) {
+                for (int i = inStart[s]; i < inStart[s + 1]; i++) {
+                    int v = stateStop[inFrom[i]];
+                    if (stops[v] == UNREACHABLE) {
+                        stops[v] = d;
+                        queue[tail++] = v;
+                    }
+                }
+            }
+        }
+        return stops;
+    }
+
+    private static void relax(int[] dist, int node, int d, IntStack bucket) {
+        if (d < dist[node]) {
+            dist[node] = d;
+            bucket.push(node);
+        }
+    }
+
+    private static long pair(int stop, int transport) {
+        return ((long) stop << 32) | transport;
+    }
+
+    private static final class Row {
+        private final byte[] transfers;
+        private final short[] stops;
+
+        Row(byte[] transfers, short[] stops) {
+            this.transfers = transfers;
+            this.stops = stops;
+        }
+    }
+
+    /**
+     * Splits the destinations until each task computes a single row.
+     */
+    private final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        RowTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                rows[from] = computeRow(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowTask(from, mid), new RowTask(mid, to));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import com.suto.model.GraphFormat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Offline step that compiles {@code transport_graph.json} into the binary
+ * {@link GraphFormat} file, which the server loads in place of the JSON.
+ *
+ * Usage: {@code GraphCompiler [input.json] [output.bin]}, defaulting to the
+ * files in the {@code data} directory. Stop ids are taken from, and new ones
+ * added to, the {@code stop_ids.json} next to the output.
+ */
+public final class GraphCompiler {
+
+    private GraphCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path input = Paths.get(args.length > 0 ? args[0] : "data/" + GraphService.GRAPH_FILE);
+        Path output = Paths.get(args.length > 1 ? args[1] : "data/" + GraphService.BINARY_GRAPH_FILE);
+
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        long started = System.nanoTime();
+        StopIdRegistry stopIds = StopIdRegistry.load(output.resolveSibling(GraphService.STOP_IDS_FILE));
+        Graph graph = new GraphImporter(0, stopIds).read(input);
+        if (graph == null) {
+            System.err.println("No transport data found in " + input);
+            System.exit(1);
+        }
+        GraphFormat.write(graph, output);
+        stopIds.save(); // The server must hand out the same ids for new stops
+        long millis = (System.nanoTime() - started) / 1_000_000;
+
+        System.out.println("Compiled " + graph.stopCount() + " stops, " + graph.edgeCount() + " edges and "
+                + graph.patternCount() + " patterns from " + input + " (" + Files.size(input) + " bytes) to "
+                + output + " (" + Files.size(output) + " bytes) in " + millis + " ms");
+    }
+}
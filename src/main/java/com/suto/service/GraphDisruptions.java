@@ -0,0 +1,617 @@
+package com.suto.service;
+
+import com.suto.dto.GraphChangeRequest;
+import com.suto.exception.RouteNotFoundException;
+import com.suto.exception.SutoException;
+import com.suto.model.Graph;
+
+import java.util.*;
+
+/**
+ * Service disruptions on top of the graph loaded from the data file: closed
+ * stops, suspended transports, and added or removed links.
+ *
+ * The state is kept by stop and transport name, so it is applied again when
+ * the file is reloaded. A change only rebuilds the adjacency rows it can
+ * affect, each from the loaded graph's row filtered by the current state plus
+ * the added links leaving that stop, and publishes them as a
+ * {@link Graph.Patch} of the current graph. Route patterns are rebuilt only
+ * for the transports that gained or lost an edge: the loaded patterns are
+ * split wherever a hop is gone, and added links become patterns of their own.
+ *
+ * Not thread-safe; {@link GraphService} serializes all changes.
+ */
+final class GraphDisruptions {
+
+    static final double DEFAULT_COST = 10.0;
+    static final double DEFAULT_DISTANCE = 1.0;
+    static final String DEFAULT_MODE = "bus";
+
+    // Graph as loaded from the data file; changed rows are rebuilt from it
+    private Graph base;
+
+    // Disruptions by name; links are keyed by (from, to, transport)
+    private final Set<String> closedStops = new LinkedHashSet<>();
+    private final Set<String> suspendedTransports = new LinkedHashSet<>();
+    private final Map<List<String>, AddedLink> addedLinks = new LinkedHashMap<>();
+    private final Set<List<String>> removedLinks = new LinkedHashSet<>();
+
+    // Indexes over the base graph, built on first use: stops linking into each
+    // stop, stops with an edge on each transport, patterns of each transport
+    private int[] inStart;
+    private int[] inSource;
+    private int[] transportStart;
+    private int[] transportStops;
+    private int[] patternStart;
+
+    GraphDisruptions(Graph base) {
+        this.base = base;
+    }
+
+    /**
+     * @return the graph as loaded, before any disruption
+     */
+    Graph getBase() {
+        return base;
+    }
+
+    boolean isEmpty() {
+        return closedStops.isEmpty() && suspendedTransports.isEmpty() && addedLinks.isEmpty()
+                && removedLinks.isEmpty();
+    }
+
+    /**
+     * Records a change and derives the graph it leads to from {@code current},
+     * the graph published last.
+     */
+    GraphUpdate apply(Graph current, GraphChangeRequest change, long version) {
+        String action = change.getAction();
+        if (action == null) {
+            throw new SutoException("Action is required");
+        }
+        Set<Integer> rows = new TreeSet<>();
+        switch (action) {
+            case GraphChangeRequest.CLOSE_STOP:
+            case GraphChangeRequest.REOPEN_STOP: {
+                String stop = requireStop(change.getStop(), "Stop");
+                if (GraphChangeRequest.CLOSE_STOP.equals(action)) {
+                    closedStops.add(stop);
+                } else {
+                    closedStops.remove(stop);
+                }
+                touchStop(stop, rows);
+                break;
+            }
+            case GraphChangeRequest.SUSPEND_TRANSPORT:
+            case GraphChangeRequest.RESUME_TRANSPORT: {
+                String transport = requireTransport(change.getTransport());
+                if (GraphChangeRequest.SUSPEND_TRANSPORT.equals(action)) {
+                    suspendedTransports.add(transport);
+                } else {
+                    suspendedTransports.remove(transport);
+                }
+                touchTransport(transport, rows);
+                break;
+            }
+            case GraphChangeRequest.ADD_LINK: {
+                String from = requireStop(change.getFrom(), "From");
+                String to = requireStop(change.getTo(), "To");
+                String transport = change.getTransport();
+                if (transport == null || transport.isBlank()) {
+                    throw new SutoException("Transport is required");
+                }
+                if (from.equals(to)) {
+                    throw new SutoException("A link needs two different stops");
+                }
+                String mode = change.getMode();
+                if (mode == null) {
+                    int t = current.indexOfTransport(transport);
+                    mode = t >= 0 ? current.transportMode(t) : DEFAULT_MODE;
+                }
+                double cost = change.getCost() == null ? DEFAULT_COST : change.getCost();
+                double distance = change.getDistance() == null ? DEFAULT_DISTANCE : change.getDistance();
+                List<String> key = List.of(from, to, transport);
+                removedLinks.remove(key);
+                addedLinks.put(key, new AddedLink(mode, cost, distance));
+                rows.add(base.indexOf(from));
+                break;
+            }
+            case GraphChangeRequest.REMOVE_LINK: {
+                String from = requireStop(change.getFrom(), "From");
+                String to = requireStop(change.getTo(), "To");
+                List<String> transports = linkTransports(from, to, change.getTransport());
+                if (transports.isEmpty()) {
+                    throw new RouteNotFoundException("No " + (change.getTransport() == null ? "" : change.getTransport()
+                            + " ") + "link from " + from + " to " + to);
+                }
+                for (String transport : transports) {
+                    List<String> key = List.of(from, to, transport);
+                    addedLinks.remove(key);
+                    if (hasBaseEdge(from, to, transport)) {
+                        removedLinks.add(key);
+                    }
+                }
+                rows.add(base.indexOf(from));
+                break;
+            }
+            default:
+                throw new SutoException("Unknown action: " + action);
+        }
+        return derive(current, rows, version);
+    }
+
+    /**
+     * Switches to a newly loaded graph and applies the disruptions to it.
+     * Disruptions naming stops or transports the new graph lacks are dropped.
+     *
+     * @return the graph to publish, with the loaded graph's version
+     */
+    Graph reapply(Graph loaded) {
+        base = loaded;
+        inStart = null;
+        transportStart = null;
+        patternStart = null;
+
+        closedStops.removeIf(stop -> loaded.indexOf(stop) < 0);
+        addedLinks.keySet().removeIf(key -> loaded.indexOf(key.get(0)) < 0 || loaded.indexOf(key.get(1)) < 0);
+        removedLinks.removeIf(key -> !hasBaseEdge(key.get(0), key.get(1), key.get(2)));
+        suspendedTransports.removeIf(transport -> !isKnownTransport(transport));
+        if (isEmpty()) {
+            return loaded;
+        }
+
+        Set<Integer> rows = new TreeSet<>();
+        for (String stop : closedStops) {
+            touchStop(stop, rows);
+        }
+        for (String transport : suspendedTransports) {
+            touchTransport(transport, rows);
+        }
+        for (List<String> key : addedLinks.keySet()) {
+            rows.add(loaded.indexOf(key.get(0)));
+        }
+        for (List<String> key : removedLinks) {
+            rows.add(loaded.indexOf(key.get(0)));
+        }
+        System.out.println("Reapplying " + describe() + " to graph version " + loaded.getVersion());
+        return derive(loaded, rows, loaded.getVersion()).graph();
+    }
+
+    /**
+     * @return the active disruptions, for display
+     */
+    Map<String, Object> describe() {
+        List<Map<String, Object>> added = new ArrayList<>();
+        for (Map.Entry<List<String>, AddedLink> entry : addedLinks.entrySet()) {
+            Map<String, Object> link = describeLink(entry.getKey());
+            link.put("mode", entry.getValue().mode);
+            link.put("cost", entry.getValue().cost);
+            link.put("distance", entry.getValue().distance);
+            added.add(link);
+        }
+        List<Map<String, Object>> removed = new ArrayList<>();
+        for (List<String> key : removedLinks) {
+            removed.add(describeLink(key));
+        }
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("closedStops", new ArrayList<>(closedStops));
+        state.put("suspendedTransports", new ArrayList<>(suspendedTransports));
+        state.put("addedLinks", added);
+        state.put("removedLinks", removed);
+        return state;
+    }
+
+    private static Map<String, Object> describeLink(List<String> key) {
+        Map<String, Object> link = new LinkedHashMap<>();
+        link.put("from", key.get(0));
+        link.put("to", key.get(1));
+        link.put("transport", key.get(2));
+        return link;
+    }
+
+    // --- Deriving the graph ---
+
+    private GraphUpdate derive(Graph current, Set<Integer> rows, long version) {
+        long started = System.nanoTime();
+        Graph.Patch patch = new Graph.Patch(current, version);
+        State state = resolve(patch, current.stopCount());
+        for (int stop : rows) {
+            fillRow(patch, stop, state);
+        }
+        Graph withRows = patch.build();
+
+        // Compare the rebuilt rows with the current ones; both are sorted by (target, transport)
+        BitSet changed = new BitSet();
+        int changedRows = 0;
+        int removed = 0;
+        int added = 0;
+        for (int stop : rows) {
+            int i = current.edgeStart(stop);
+            int j = withRows.edgeStart(stop);
+            int before = removed + added;
+            while (i < current.edgeEnd(stop) || j < withRows.edgeEnd(stop)) {
+                int order = i == current.edgeEnd(stop) ? 1
+                        : j == withRows.edgeEnd(stop) ? -1
+                        : compareEdges(current, i, withRows, j);
+                if (order == 0 && current.cost(i) == withRows.cost(j)
+                        && current.distance(i) == withRows.distance(j)) {
+                    i++;
+                    j++;
+                    continue;
+                }
+                if (order <= 0) {
+                    changed.set(current.transport(i++));
+                    removed++;
+                }
+                if (order >= 0) {
+                    changed.set(withRows.transport(j++));
+                    added++;
+                }
+            }
+            if (removed + added > before) {
+                changedRows++;
+            }
+        }
+        if (removed == 0 && added == 0) {
+            return new GraphUpdate(current, current.getVersion(), current.getVersion(), 0, 0, 0,
+                    Collections.emptyList(), (System.nanoTime() - started) / 1000);
+        }
+
+        Graph.Patch patterns = new Graph.Patch(withRows, version);
+        List<String> transports = new ArrayList<>();
+        for (int t = changed.nextSetBit(0); t >= 0; t = changed.nextSetBit(t + 1)) {
+            rebuildPatterns(patterns, withRows, t, state);
+            transports.add(withRows.transportName(t));
+        }
+        Graph graph = patterns.build();
+        return new GraphUpdate(graph, current.getVersion(), version, changedRows, removed, added, transports,
+                (System.nanoTime() - started) / 1000);
+    }
+
+    /**
+     * Translates the state to indices of the graph being patched, adding
+     * transports that only added links use.
+     */
+    private State resolve(Graph.Patch patch, int stopCount) {
+        State state = new State(stopCount);
+        for (String stop : closedStops) {
+            state.closed[base.indexOf(stop)] = true;
+        }
+        for (Map.Entry<List<String>, AddedLink> entry : addedLinks.entrySet()) {
+            List<String> key = entry.getKey();
+            AddedLink link = entry.getValue();
+            link.from = base.indexOf(key.get(0));
+            link.to = base.indexOf(key.get(1));
+            link.transport = patch.transport(key.get(2), link.mode);
+            state.added.put(List.of(link.from, link.to, link.transport), link);
+            state.addedFrom.computeIfAbsent(link.from, stop -> new ArrayList<>()).add(link);
+        }
+        for (String transport : suspendedTransports) {
+            int t = base.indexOfTransport(transport);
+            if (t < 0) {
+                // Known only from added links
+                t = patch.transport(transport, DEFAULT_MODE);
+            }
+            state.suspended.set(t);
+        }
+        for (List<String> key : removedLinks) {
+            state.removed.add(List.of(base.indexOf(key.get(0)), base.indexOf(key.get(1)),
+                    base.indexOfTransport(key.get(2))));
+        }
+        return state;
+    }
+
+    private void fillRow(Graph.Patch patch, int stop, State state) {
+        patch.clearRow(stop);
+        if (state.closed[stop]) {
+            return;
+        }
+        for (int e = base.edgeStart(stop); e < base.edgeEnd(stop); e++) {
+            int to = base.target(e);
+            int t = base.transport(e);
+            if (state.closed[to] || state.suspended.get(t)) {
+                continue;
+            }
+            List<Integer> key = List.of(stop, to, t);
+            if (state.removed.contains(key) || state.added.containsKey(key)) {
+                continue; // Removed, or replaced by an added link
+            }
+            patch.addEdge(stop, to, t, base.cost(e), base.distance(e));
+        }
+        for (AddedLink link : state.addedFrom.getOrDefault(stop, Collections.emptyList())) {
+            if (!state.closed[link.to] && !state.suspended.get(link.transport)) {
+                patch.addEdge(stop, link.to, link.transport, link.cost, link.distance);
+            }
+        }
+    }
+
+    /**
+     * Loaded patterns of the transport split at every hop {@code graph} no
+     * longer has, plus one pattern per added link that is not a loaded hop.
+     */
+    private void rebuildPatterns(Graph.Patch patch, Graph graph, int transport, State state) {
+        patch.clearPatterns(transport);
+        Set<List<Integer>> hops = new HashSet<>();
+        if (transport < base.transportCount()) {
+            buildPatternIndex();
+            for (int p = patternStart[transport]; p < patternStart[transport + 1]; p++) {
+                int run = base.patternStart(p);
+                for (int i = run + 1; i < base.patternEnd(p); i++) {
+                    int from = base.patternStop(i - 1);
+                    int to = base.patternStop(i);
+                    hops.add(List.of(from, to));
+                    if (Double.isNaN(hopCost(graph, from, to, transport))) {
+                        addPattern(patch, graph, transport, run, i);
+                        run = i;
+                    }
+                }
+                addPattern(patch, graph, transport, run, base.patternEnd(p));
+            }
+        }
+        for (AddedLink link : state.added.values()) {
+            if (link.transport == transport && !hops.contains(List.of(link.from, link.to))
+                    && !Double.isNaN(hopCost(graph, link.from, link.to, transport))) {
+                patch.addPattern(transport, new int[] { link.from, link.to },
+                        new double[] { 0, hopCost(graph, link.from, link.to, transport) });
+            }
+        }
+    }
+
+    /**
+     * Adds positions [from, to) of a loaded pattern, if they make at least one hop.
+     */
+    private void addPattern(Graph.Patch patch, Graph graph, int transport, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] stops = new int[to - from];
+        double[] hopCosts = new double[to - from];
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = base.patternStop(from + i);
+            if (i > 0) {
+                hopCosts[i] = hopCost(graph, stops[i - 1], stops[i], transport);
+            }
+        }
+        patch.addPattern(transport, stops, hopCosts);
+    }
+
+    /**
+     * @return the cheapest edge from one stop to another on the transport, or NaN if there is none
+     */
+    private static double hopCost(Graph graph, int from, int to, int transport) {
+        for (int l = graph.linkStart(from); l < graph.linkEnd(from); l++) {
+            if (graph.linkTarget(l) != to) {
+                continue;
+            }
+            double best = Double.NaN;
+            if (graph.linkServes(l, transport)) {
+                for (int e = graph.linkEdgeStart(l); e < graph.linkEdgeEnd(l); e++) {
+                    if (graph.transport(e) == transport && (Double.isNaN(best) || graph.cost(e) < best)) {
+                        best = graph.cost(e);
+                    }
+                }
+            }
+            return best;
+        }
+        return Double.NaN;
+    }
+
+    private static int compareEdges(Graph a, int i, Graph b, int j) {
+        int order = Integer.compare(a.target(i), b.target(j));
+        return order != 0 ? order : Integer.compare(a.transport(i), b.transport(j));
+    }
+
+    // --- Rows a change can affect ---
+
+    /**
+     * Adds the stop's own row and the rows of every stop linking into it.
+     */
+    private void touchStop(String stop, Set<Integer> rows) {
+        int s = base.indexOf(stop);
+        rows.add(s);
+        buildInIndex();
+        for (int i = inStart[s]; i < inStart[s + 1]; i++) {
+            rows.add(inSource[i]);
+        }
+        for (List<String> key : addedLinks.keySet()) {
+            if (key.get(1).equals(stop)) {
+                rows.add(base.indexOf(key.get(0)));
+            }
+        }
+    }
+
+    /**
+     * Adds the rows of every stop with an edge on the transport.
+     */
+    private void touchTransport(String transport, Set<Integer> rows) {
+        int t = base.indexOfTransport(transport);
+        if (t >= 0) {
+            buildTransportIndex();
+            for (int i = transportStart[t]; i < transportStart[t + 1]; i++) {
+                rows.add(transportStops[i]);
+            }
+        }
+        for (List<String> key : addedLinks.keySet()) {
+            if (key.get(2).equals(transport)) {
+                rows.add(base.indexOf(key.get(0)));
+            }
+        }
+    }
+
+    private void buildInIndex() {
+        if (inStart != null) {
+            return;
+        }
+        int n = base.stopCount();
+        int[] start = new int[n + 1];
+        for (int l = 0; l < base.linkCount(); l++) {
+            start[base.linkTarget(l) + 1]++;
+        }
+        for (int s = 0; s < n; s++) {
+            start[s + 1] += start[s];
+        }
+        int[] fill = Arrays.copyOf(start, n);
+        inSource = new int[base.linkCount()];
+        for (int s = 0; s < n; s++) {
+            for (int l = base.linkStart(s); l < base.linkEnd(s); l++) {
+                inSource[fill[base.linkTarget(l)]++] = s;
+            }
+        }
+        inStart = start;
+    }
+
+    private void buildTransportIndex() {
+        if (transportStart != null) {
+            return;
+        }
+        // Edges of a row are sorted by target, so a stop can appear once per target; dedupe per stop
+        int transports = base.transportCount();
+        int[] start = new int[transports + 1];
+        int[] seen = new int[transports];
+        Arrays.fill(seen, -1);
+        for (int s = 0; s < base.stopCount(); s++) {
+            for (int e = base.edgeStart(s); e < base.edgeEnd(s); e++) {
+                if (seen[base.transport(e)] != s) {
+                    seen[base.transport(e)] = s;
+                    start[base.transport(e) + 1]++;
+                }
+            }
+        }
+        for (int t = 0; t < transports; t++) {
+            start[t + 1] += start[t];
+        }
+        int[] fill = Arrays.copyOf(start, transports);
+        Arrays.fill(seen, -1);
+        transportStops = new int[start[transports]];
+        for (int s = 0; s < base.stopCount(); s++) {
+            for (int e = base.edgeStart(s); e < base.edgeEnd(s); e++) {
+                if (seen[base.transport(e)] != s) {
+                    seen[base.transport(e)] = s;
+                    transportStops[fill[base.transport(e)]++] = s;
+                }
+            }
+        }
+        transportStart = start;
+    }
+
+    private void buildPatternIndex() {
+        if (patternStart != null) {
+            return;
+        }
+        // Patterns are grouped by transport in index order
+        int[] start = new int[base.transportCount() + 1];
+        for (int p = 0; p < base.patternCount(); p++) {
+            start[base.patternTransport(p) + 1]++;
+        }
+        for (int t = 0; t < base.transportCount(); t++) {
+            start[t + 1] += start[t];
+        }
+        patternStart = start;
+    }
+
+    // --- Validation ---
+
+    private String requireStop(String name, String field) {
+        if (name == null || name.isBlank()) {
+            throw new SutoException(field + " is required");
+        }
+        int index = base.indexOf(name);
+        if (index < 0) {
+            throw new RouteNotFoundException("Unknown stop: " + name);
+        }
+        return base.stopName(index);
+    }
+
+    private String requireTransport(String name) {
+        if (name == null || name.isBlank()) {
+            throw new SutoException("Transport is required");
+        }
+        if (!isKnownTransport(name)) {
+            throw new RouteNotFoundException("Unknown transport: " + name);
+        }
+        return name;
+    }
+
+    private boolean isKnownTransport(String name) {
+        if (base.indexOfTransport(name) >= 0) {
+            return true;
+        }
+        for (List<String> key : addedLinks.keySet()) {
+            if (key.get(2).equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the transports of the link (loaded or added), or just the given one if the link has it
+     */
+    private List<String> linkTransports(String from, String to, String transport) {
+        Set<String> transports = new LinkedHashSet<>();
+        int s = base.indexOf(from);
+        int target = base.indexOf(to);
+        for (int e = base.edgeStart(s); e < base.edgeEnd(s); e++) {
+            if (base.target(e) == target) {
+                transports.add(base.transportName(base.transport(e)));
+            }
+        }
+        for (List<String> key : addedLinks.keySet()) {
+            if (key.get(0).equals(from) && key.get(1).equals(to)) {
+                transports.add(key.get(2));
+            }
+        }
+        if (transport != null) {
+            return transports.contains(transport) ? List.of(transport) : Collections.emptyList();
+        }
+        return new ArrayList<>(transports);
+    }
+
+    private boolean hasBaseEdge(String from, String to, String transport) {
+        int s = base.indexOf(from);
+        int target = base.indexOf(to);
+        int t = base.indexOfTransport(transport);
+        if (s < 0 || target < 0 || t < 0) {
+            return false;
+        }
+        for (int e = base.edgeStart(s); e < base.edgeEnd(s); e++) {
+            if (base.target(e) == target && base.transport(e) == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An added link; the indices are filled in for each derivation.
+     */
+    private static final class AddedLink {
+        final String mode;
+        final double cost;
+        final double distance;
+        int from;
+        int to;
+        int transport;
+
+        AddedLink(String mode, double cost, double distance) {
+            this.mode = mode;
+            this.cost = cost;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * The disruptions in index form, for one derivation.
+     */
+    private static final class State {
+        final boolean[] closed;
+        final BitSet suspended = new BitSet();
+        final Set<List<Integer>> removed = new HashSet<>();
+        final Map<List<Integer>, AddedLink> added = new HashMap<>();
+        final Map<Integer, List<AddedLink>> addedFrom = new HashMap<>();
+
+        State(int stopCount) {
+            this.closed = new boolean[stopCount];
+        }
+    }
+}
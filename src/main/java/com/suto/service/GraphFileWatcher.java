@@ -0,0 +1,95 @@
+package com.suto.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the graph whenever one of its data files changes.
+ *
+ * Watches the files' directories on a daemon thread. Editors and deploy scripts
+ * often write a file in several steps, so a reload only starts once no
+ * further change arrived for {@link #QUIET_MILLIS}. The reload itself runs on
+ * the watcher thread; requests keep using the current graph until the new one
+ * is published.
+ */
+public class GraphFileWatcher implements Closeable {
+
+    static final long QUIET_MILLIS = 500;
+
+    private final GraphService graphService;
+    private final Set<Path> files = new HashSet<>();
+    private final WatchService watchService;
+    private final Thread thread;
+
+    public GraphFileWatcher(GraphService graphService, Path... files) throws IOException {
+        this.graphService = graphService;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        for (Path file : files) {
+            Path absolute = file.toAbsolutePath();
+            this.files.add(absolute);
+            if (directories.add(absolute.getParent())) {
+                absolute.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+        this.thread = new Thread(this::run, "graph-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        System.out.println("Watching " + files + " for graph updates");
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = concernsFile(key);
+                // Wait until the writer is done
+                while (true) {
+                    WatchKey next = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    changed |= concernsFile(next);
+                }
+                if (changed) {
+                    graphService.refreshGraph();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed: stop watching
+        }
+    }
+
+    /**
+     * Drains a key and resets it.
+     *
+     * @return true if any of its events is about a watched file
+     */
+    private boolean concernsFile(WatchKey key) {
+        boolean changed = false;
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && files.contains(directory.resolve((Path) context)))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,343 @@
+package com.suto.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.suto.model.Graph;
+import com.suto.model.Stop;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Streams {@code transport_graph.json} into a {@link Graph.Builder} token by token.
+ *
+ * Nodes are kept as name and type until the file is read, then become stops
+ * with deterministic ids from a {@link StopIdRegistry} under the file's
+ * optional {@code network} name. Link endpoints and transport names
+ * are interned straight from the parser's character buffer, so a link only
+ * costs a few array slots, and each distinct name is allocated and lowercased
+ * once. Endpoints are resolved to stops after the whole file is read, so
+ * links may come before nodes; the resolution runs on all cores for large
+ * inputs. Links with an unknown endpoint are skipped, as before.
+ *
+ * One importer loads one graph and keeps its timings for the load log.
+ */
+final class GraphImporter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final double DEFAULT_COST = 10.0;
+    private static final double DEFAULT_DISTANCE = 1.0;
+    private static final String DEFAULT_TRANSPORT = "Unknown";
+
+    private final long version;
+    private final StopIdRegistry stopIds;
+
+    private String network = StopIdRegistry.DEFAULT_NETWORK;
+    private final List<String> nodeNames = new ArrayList<>();
+    private final List<String> nodeTypes = new ArrayList<>();
+
+    // Links as read: endpoints, transport and mode as symbols
+    private final Symbols stopNames = new Symbols();
+    private final Symbols transportNames = new Symbols();
+    private final Symbols modes = new Symbols();
+    private int[] sources = new int[1024];
+    private int[] targets = new int[1024];
+    private int[] transports = new int[1024];
+    private int[] linkModes = new int[1024];
+    private double[] costs = new double[1024];
+    private double[] distances = new double[1024];
+    private int linkCount;
+
+    private boolean sawNodes;
+    private long parseNanos;
+    private long buildNanos;
+    private long allocatedBytes = -1;
+    private int skippedLinks;
+
+    GraphImporter(long version, StopIdRegistry stopIds) {
+        this.version = version;
+        this.stopIds = stopIds;
+    }
+
+    /**
+     * @return the graph in the file, or null if it has no {@code nodes}
+     */
+    Graph read(Path file) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        try (JsonParser parser = JSON.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in " + file);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("nodes".equals(field) && value == JsonToken.START_ARRAY) {
+                    sawNodes = true;
+                    readNodes(parser);
+                } else if ("links".equals(field) && value == JsonToken.START_ARRAY) {
+                    readLinks(parser);
+                } else if ("network".equals(field) && value == JsonToken.VALUE_STRING) {
+                    network = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        long parsed = System.nanoTime();
+        parseNanos = parsed - started;
+        if (!sawNodes) {
+            return null;
+        }
+
+        Graph.Builder builder = new Graph.Builder().setVersion(version);
+        addStops(builder);
+        addLinks(builder);
+        Graph graph = builder.build();
+        buildNanos = System.nanoTime() - parsed;
+        if (allocatedBefore >= 0) {
+            allocatedBytes = allocatedBytes() - allocatedBefore;
+        }
+        return graph;
+    }
+
+    /**
+     * @return timings and allocation of the last {@link #read}, for the load log
+     */
+    String describe() {
+        StringBuilder text = new StringBuilder()
+                .append("parsed in ").append(parseNanos / 1_000_000).append(" ms, built in ")
+                .append(buildNanos / 1_000_000).append(" ms");
+        if (allocatedBytes >= 0) {
+            text.append(", ").append(allocatedBytes / (1024 * 1024)).append(" MB allocated");
+        }
+        if (skippedLinks > 0) {
+            text.append(", ").append(skippedLinks).append(" links to unknown stops skipped");
+        }
+        return text.toString();
+    }
+
+    private void readNodes(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String name = null;
+            String type = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("id".equals(field)) {
+                    name = parser.getValueAsString(); // The "id" field is actually the stop name
+                } else if ("type".equals(field)) {
+                    type = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (name != null) {
+                nodeNames.add(name);
+                nodeTypes.add(type);
+            }
+        }
+    }
+
+    private void readLinks(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int source = -1;
+            int target = -1;
+            int transport = -1;
+            int mode = -1;
+            double cost = DEFAULT_COST;
+            double distance = DEFAULT_DISTANCE;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "source" -> source = intern(parser, value, stopNames);
+                    case "target" -> target = intern(parser, value, stopNames);
+                    case "transport" -> transport = intern(parser, value, transportNames);
+                    case "mode" -> mode = intern(parser, value, modes);
+                    case "cost" -> cost = value.isNumeric() ? parser.getDoubleValue() : cost;
+                    case "distance" -> distance = value.isNumeric() ? parser.getDoubleValue() : distance;
+                    default -> parser.skipChildren();
+                }
+            }
+            if (source < 0 || target < 0) {
+                skippedLinks++;
+                continue;
+            }
+            if (transport < 0) {
+                transport = transportNames.intern(DEFAULT_TRANSPORT);
+            }
+            addRawLink(source, target, transport, mode, cost, distance);
+        }
+    }
+
+    private static int intern(JsonParser parser, JsonToken value, Symbols symbols) throws IOException {
+        if (value != JsonToken.VALUE_STRING) {
+            parser.skipChildren();
+            return -1;
+        }
+        return symbols.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
+    private void addRawLink(int source, int target, int transport, int mode, double cost, double distance) {
+        if (linkCount == sources.length) {
+            int capacity = linkCount * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            transports = Arrays.copyOf(transports, capacity);
+            linkModes = Arrays.copyOf(linkModes, capacity);
+            costs = Arrays.copyOf(costs, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+        }
+        sources[linkCount] = source;
+        targets[linkCount] = target;
+        transports[linkCount] = transport;
+        linkModes[linkCount] = mode;
+        costs[linkCount] = cost;
+        distances[linkCount] = distance;
+        linkCount++;
+    }
+
+    private void addStops(Graph.Builder builder) {
+        for (int i = 0; i < nodeNames.size(); i++) {
+            String name = nodeNames.get(i);
+            Stop stop = new Stop();
+            stop.setId(StopIdRegistry.uuidFor(network, name));
+            stop.setStableId(stopIds.stableIdFor(network, name));
+            stop.setName(name);
+            stop.setType(nodeTypes.get(i));
+            stop.setLat(0.0);
+            stop.setLng(0.0);
+            builder.addStop(stop);
+        }
+    }
+
+    /**
+     * Resolves link endpoints to stops and hands the links to the builder in
+     * file order, which fixes transport numbering and pattern order.
+     */
+    private void addLinks(Graph.Builder builder) {
+        // One case-insensitive lookup per distinct name; the builder is read-only here
+        int[] stopOfName = new int[stopNames.size()];
+        IntStream names = IntStream.range(0, stopOfName.length);
+        if (linkCount >= Graph.Builder.PARALLEL_LINKS) {
+            names = names.parallel();
+        }
+        names.forEach(i -> stopOfName[i] = builder.stopIndex(stopNames.get(i)));
+
+        int[] transportOfName = new int[transportNames.size()];
+        Arrays.fill(transportOfName, -1);
+        for (int i = 0; i < linkCount; i++) {
+            int from = stopOfName[sources[i]];
+            int to = stopOfName[targets[i]];
+            if (from < 0 || to < 0) {
+                skippedLinks++;
+                continue;
+            }
+            int t = transports[i];
+            if (transportOfName[t] < 0) {
+                String mode = linkModes[i] < 0 ? null : modes.get(linkModes[i]);
+                transportOfName[t] = builder.transportIndex(transportNames.get(t), mode);
+            }
+            builder.addLink(from, to, transportOfName[t], costs[i], distances[i]);
+        }
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean allocation
+                && allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+            return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Open-addressing table that numbers distinct strings, looked up by
+     * character range so repeated names are never materialised.
+     */
+    private static final class Symbols {
+        private final List<String> strings = new ArrayList<>();
+        private int[] slots = new int[256]; // symbol + 1, 0 when empty
+        private int[] hashes = new int[256];
+
+        int size() {
+            return strings.size();
+        }
+
+        String get(int symbol) {
+            return strings.get(symbol);
+        }
+
+        int intern(String text) {
+            char[] chars = text.toCharArray();
+            return intern(chars, 0, chars.length);
+        }
+
+        int intern(char[] chars, int offset, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[offset + i];
+            }
+            int mask = slots.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int entry = slots[slot];
+                if (entry == 0) {
+                    int symbol = strings.size();
+                    strings.add(new String(chars, offset, length));
+                    slots[slot] = symbol + 1;
+                    hashes[slot] = hash;
+                    if (strings.size() * 2 > slots.length) {
+                        grow();
+                    }
+                    return symbol;
+                }
+                if (hashes[slot] == hash && matches(strings.get(entry - 1), chars, offset, length)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        private static boolean matches(String string, char[] chars, int offset, int length) {
+            if (string.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (string.charAt(i) != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            int[] oldSlots = slots;
+            int[] oldHashes = hashes;
+            slots = new int[oldSlots.length * 2];
+            hashes = new int[oldSlots.length * 2];
+            int mask = slots.length - 1;
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] != 0) {
+                    int slot = mix(oldHashes[i]) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = oldSlots[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -1,17 +1,60 @@
 package com.suto.service;
 
+import com.suto.dto.GraphChangeRequest;
 import com.suto.model.Graph;
-import com.suto.model.Stop;
+import com.suto.model.GraphFormat;
 import com.suto.util.JsonFileService;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads the transport graph and publishes it as immutable, versioned
+ * {@link GraphSnapshot}s. Readers take the current snapshot with one atomic
+ * read and keep it for the rest of their request, so a reload never pauses
+ * or disturbs searches in flight; they finish on the version they started
+ * with, and the old snapshot is collected once the last of them is done.
+ *
+ * Small changes such as a closed stop are applied with {@link #applyChange}
+ * as a patch of the current graph instead of a reload; see
+ * {@link GraphDisruptions}.
+ */
 public class GraphService {
 
+    public static final String GRAPH_FILE = "transport_graph.json";
+    public static final String BINARY_GRAPH_FILE = "transport_graph.bin";
+    public static final String STOP_IDS_FILE = "stop_ids.json";
+
     private final JsonFileService jsonFileService;
-    private Graph graph;
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicReference<GraphSnapshot> snapshot = new AtomicReference<>();
+    private final List<UpdateListener> updateListeners = new CopyOnWriteArrayList<>();
+    // Builds full bounds for versions published by a change, off the admin request
+    private final ExecutorService boundsBuilder = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "graph-bounds");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Disruptions applied on top of the loaded graph; guarded by this
+    private GraphDisruptions disruptions;
+    // Dense stop ids handed out so far; guarded by this, loaded on first use
+    private StopIdRegistry stopIds;
+
+    /**
+     * Called for every incremental change, just before its graph is published.
+     */
+    public interface UpdateListener {
+        void beforePublish(GraphUpdate update);
+    }
 
     public GraphService() {
         this.jsonFileService = new JsonFileService();
@@ -22,69 +65,182 @@ public class GraphService {
         refreshGraph();
     }
 
-    public Graph getGraph() {
-        return graph;
+    /**
+     * @return the current graph and its bounds, always from the same version
+     */
+    public GraphSnapshot getSnapshot() {
+        return snapshot.get();
     }
 
-    public void refreshGraph() {
-        Graph newGraph = new Graph();
-
-        try {
-            // Load transport graph from JSON file
-            Map<String, Object> transportData = jsonFileService.readObject("transport_graph.json", Map.class);
+    public Graph getGraph() {
+        return snapshot.get().getGraph();
+    }
 
-            if (transportData == null || !transportData.containsKey("nodes")) {
-                System.err.println("No transport data found, initializing empty graph");
-                this.graph = newGraph;
-                return;
-            }
+    /**
+     * @return transfer and stop bounds for the current graph
+     */
+    public DistanceMatrix getDistanceMatrix() {
+        return snapshot.get().getDistanceMatrix();
+    }
 
-            // Load nodes (stops)
-            @SuppressWarnings("unchecked")
-            List<Map<String, String>> nodes = (List<Map<String, String>>) transportData.get("nodes");
-
-            for (Map<String, String> node : nodes) {
-                Stop stop = new Stop();
-                stop.setId(UUID.randomUUID());
-                stop.setName(node.get("id")); // The "id" field is actually the stop name
-                // You can add lat/lng if available in the data
-                stop.setLat(0.0); // Default for now
-                stop.setLng(0.0); // Default for now
-                newGraph.addStop(stop);
-            }
+    public void addUpdateListener(UpdateListener listener) {
+        updateListeners.add(listener);
+    }
 
-            // Load edges (connections)
-            if (transportData.containsKey("links")) {
-                @SuppressWarnings("unchecked")
-                List<Map<String, Object>> edges = (List<Map<String, Object>>) transportData.get("links");
+    /**
+     * Applies one disruption to the current graph and publishes the result
+     * as a new version at once. Its bounds compute rows on first use until
+     * full bounds, built in the background, take their place.
+     *
+     * @return what changed; the version stays the same if nothing did
+     */
+    public synchronized GraphUpdate applyChange(GraphChangeRequest change) {
+        long start = System.nanoTime();
+        Graph current = snapshot.get().getGraph();
+        GraphUpdate update = disruptions.apply(current, change, versions.get() + 1);
+        if (update.graph() == current) {
+            return update;
+        }
+        versions.incrementAndGet();
+        for (UpdateListener listener : updateListeners) {
+            listener.beforePublish(update);
+        }
+        GraphSnapshot published = new GraphSnapshot(update.graph(), DistanceMatrix.lazy(update.graph()));
+        snapshot.set(published);
+        update.published((System.nanoTime() - start) / 1_000);
+        boundsBuilder.execute(() -> completeBounds(published));
+        System.out.println("Graph version " + update.getVersion() + ": " + change.getAction() + " changed "
+                + update.getChangedRows() + " rows in " + update.getElapsedMicros() + " us, published in "
+                + update.getPublishMicros() + " us");
+        return update;
+    }
 
-                for (Map<String, Object> edge : edges) {
-                    String fromName = (String) edge.get("source");
-                    String toName = (String) edge.get("target");
-                    String mode = (String) edge.get("mode");
-                    String busName = (String) edge.getOrDefault("transport", "Unknown");
+    /**
+     * Replaces the lazy bounds of a snapshot published by a change with full
+     * ones, unless a newer version has been published since.
+     */
+    private void completeBounds(GraphSnapshot published) {
+        if (snapshot.get() != published) {
+            return;
+        }
+        DistanceMatrix bounds = new DistanceMatrix(published.getGraph());
+        if (bounds.isEager()) {
+            snapshot.compareAndSet(published, new GraphSnapshot(published.getGraph(), bounds));
+        }
+    }
 
-                    Number cost = (Number) edge.getOrDefault("cost", 10.0);
-                    Number distance = (Number) edge.getOrDefault("distance", 1.0);
+    /**
+     * @return the current graph version and the disruptions applied to it
+     */
+    public synchronized Map<String, Object> getDisruptions() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("graphVersion", snapshot.get().getVersion());
+        result.putAll(disruptions.describe());
+        return result;
+    }
 
-                    UUID fromId = newGraph.getStopId(fromName);
-                    UUID toId = newGraph.getStopId(toName);
+    /**
+     * Watches the graph files and reloads the graph in the background whenever one changes.
+     */
+    public GraphFileWatcher watchGraphFile() throws IOException {
+        GraphFileWatcher watcher = new GraphFileWatcher(this, jsonFileService.getPath(GRAPH_FILE),
+                jsonFileService.getPath(BINARY_GRAPH_FILE));
+        watcher.start();
+        return watcher;
+    }
 
-                    if (fromId != null && toId != null) {
-                        newGraph.addEdge(fromId, toId, cost.doubleValue(), distance.doubleValue(), mode, busName);
-                    }
+    /**
+     * Rebuilds the graph from the data file and publishes it as a new version.
+     * A compiled {@link #BINARY_GRAPH_FILE} is loaded instead of the JSON file
+     * unless the JSON file is newer (see {@link GraphCompiler}). Stops get
+     * deterministic ids (see {@link StopIdRegistry}), so a reload that finds
+     * the same network keeps the current version and everything cached for
+     * it. If the file cannot be read, the current graph stays in place (an
+     * empty graph is used only when there is none yet).
+     *
+     * @return true if a new version was published
+     */
+    public synchronized boolean refreshGraph() {
+        try {
+            long started = System.nanoTime();
+            File source = graphSource();
+            Graph newGraph = null;
+            String details = "";
+            if (source.getName().equals(BINARY_GRAPH_FILE)) {
+                try {
+                    newGraph = GraphFormat.read(source.toPath(), versions.incrementAndGet());
+                } catch (IOException | RuntimeException e) {
+                    // GraphFormat validates the file; anything it still trips over is no reason to lose the JSON
+                    System.err.println("Cannot read " + BINARY_GRAPH_FILE + " (" + e + "), loading JSON instead");
+                    source = jsonFileService.getPath(GRAPH_FILE).toFile();
                 }
             }
-
-            this.graph = newGraph;
-            System.out
-                    .println("✅ Graph loaded with " + newGraph.getStops().size() + " stops from transport_graph.json");
-
+            if (newGraph == null) {
+                if (stopIds == null) {
+                    stopIds = StopIdRegistry.load(jsonFileService.getPath(STOP_IDS_FILE));
+                }
+                GraphImporter importer = new GraphImporter(versions.incrementAndGet(), stopIds);
+                newGraph = importer.read(source.toPath());
+                details = " (" + importer.describe() + ")";
+                if (stopIds.unsavedCount() > 0) {
+                    System.out.println("Assigned " + stopIds.unsavedCount() + " new stop ids");
+                    stopIds.save();
+                }
+            }
+            if (newGraph == null) {
+                System.err.println("No transport data found in " + GRAPH_FILE);
+                return publishFallback();
+            }
+            long loadMillis = (System.nanoTime() - started) / 1_000_000;
+            if (disruptions == null) {
+                disruptions = new GraphDisruptions(newGraph);
+            } else if (newGraph.hasSameContent(disruptions.getBase())) {
+                System.out.println("Graph in " + source.getName() + " is unchanged, keeping version "
+                        + snapshot.get().getVersion());
+                return false;
+            }
+            publish(disruptions.reapply(newGraph));
+            System.out.println("✅ Graph version " + newGraph.getVersion() + " loaded with " + newGraph.stopCount()
+                    + " stops and " + newGraph.edgeCount() + " edges (" + newGraph.linkCount()
+                    + " links) from " + source.getName() + " in " + loadMillis + " ms" + details);
+            return true;
         } catch (Exception e) {
             System.err.println("⚠️ Error loading transport graph: " + e.getMessage());
             e.printStackTrace();
-            this.graph = newGraph; // Use empty graph if loading fails
+            return publishFallback();
+        }
+    }
+
+    /**
+     * @return the compiled graph file if there is one at least as new as the JSON file, else the JSON file
+     */
+    private File graphSource() {
+        File json = jsonFileService.getPath(GRAPH_FILE).toFile();
+        File binary = jsonFileService.getPath(BINARY_GRAPH_FILE).toFile();
+        if (!binary.exists()) {
+            return json;
+        }
+        if (json.exists() && json.lastModified() > binary.lastModified()) {
+            System.err.println(BINARY_GRAPH_FILE + " is older than " + GRAPH_FILE + ", loading JSON instead");
+            return json;
         }
+        return binary;
     }
+
+    private boolean publishFallback() {
+        if (snapshot.get() != null) {
+            System.err.println("Keeping graph version " + snapshot.get().getVersion());
+            return false;
+        }
+        System.err.println("Initializing empty graph");
+        Graph empty = new Graph.Builder().setVersion(versions.incrementAndGet()).build();
+        disruptions = new GraphDisruptions(empty);
+        publish(empty);
+        return true;
+    }
+
+    private void publish(Graph newGraph) {
+        // Bounds are built before the swap, so readers never see a graph without them
+        snapshot.set(new GraphSnapshot(newGraph, new DistanceMatrix(newGraph)));
     }
 }
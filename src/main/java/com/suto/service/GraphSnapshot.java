@@ -0,0 +1,31 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+
+/**
+ * One published version of the network: the graph together with the bounds
+ * computed for it. Both are immutable, so a request that read a snapshot can
+ * keep using it while newer versions are published.
+ */
+public final class GraphSnapshot {
+
+    private final Graph graph;
+    private final DistanceMatrix distanceMatrix;
+
+    GraphSnapshot(Graph graph, DistanceMatrix distanceMatrix) {
+        this.graph = graph;
+        this.distanceMatrix = distanceMatrix;
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    public DistanceMatrix getDistanceMatrix() {
+        return distanceMatrix;
+    }
+
+    public long getVersion() {
+        return graph.getVersion();
+    }
+}
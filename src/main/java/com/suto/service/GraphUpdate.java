@@ -0,0 +1,94 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+
+import java.util.List;
+
+/**
+ * What one incremental graph change did: the versions before and after, and
+ * which rows, edges and transports it touched.
+ */
+public final class GraphUpdate {
+
+    private final Graph graph;
+    private final long previousVersion;
+    private final long version;
+    private final int changedRows;
+    private final int removedEdges;
+    private final int addedEdges;
+    private final List<String> affectedTransports;
+    private final long elapsedMicros;
+    private long publishMicros;
+
+    GraphUpdate(Graph graph, long previousVersion, long version, int changedRows, int removedEdges, int addedEdges,
+            List<String> affectedTransports, long elapsedMicros) {
+        this.graph = graph;
+        this.previousVersion = previousVersion;
+        this.version = version;
+        this.changedRows = changedRows;
+        this.removedEdges = removedEdges;
+        this.addedEdges = addedEdges;
+        this.affectedTransports = affectedTransports;
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    /**
+     * @return the derived graph, or the previous one itself if the change made no difference
+     */
+    Graph graph() {
+        return graph;
+    }
+
+    public long getPreviousVersion() {
+        return previousVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getChangedRows() {
+        return changedRows;
+    }
+
+    public int getRemovedEdges() {
+        return removedEdges;
+    }
+
+    public int getAddedEdges() {
+        return addedEdges;
+    }
+
+    /**
+     * @return names of the transports that gained or lost an edge
+     */
+    public List<String> getAffectedTransports() {
+        return affectedTransports;
+    }
+
+    /**
+     * @return time taken to derive the new graph, without the bounds
+     */
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    /**
+     * @return time from receiving the change until the new version was
+     *         visible to searches
+     */
+    public long getPublishMicros() {
+        return publishMicros;
+    }
+
+    void published(long publishMicros) {
+        this.publishMicros = publishMicros;
+    }
+
+    /**
+     * @return true if the change only took edges away, so no itinerary can have got better
+     */
+    public boolean isRemovalOnly() {
+        return addedEdges == 0;
+    }
+}
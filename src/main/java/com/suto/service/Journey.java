@@ -0,0 +1,38 @@
+package com.suto.service;
+
+/**
+ * An itinerary as a sequence of legs, in stop/transport indices of the
+ * {@link com.suto.model.Graph} it was computed on. Converted to a
+ * {@link com.suto.dto.RouteResponse.CombinedRoute} only when building the
+ * response.
+ */
+final class Journey {
+
+    final int[] legFrom;
+    final int[] legTo;
+    final int[] legTransport;
+    final int[] legStops;
+    final int totalStops;
+    final double totalCost;
+
+    Journey(int[] legFrom, int[] legTo, int[] legTransport, int[] legStops, double totalCost) {
+        this.legFrom = legFrom;
+        this.legTo = legTo;
+        this.legTransport = legTransport;
+        this.legStops = legStops;
+        this.totalCost = totalCost;
+        int stops = 0;
+        for (int s : legStops) {
+            stops += s;
+        }
+        this.totalStops = stops;
+    }
+
+    int legCount() {
+        return legFrom.length;
+    }
+
+    int transfers() {
+        return legFrom.length - 1;
+    }
+}
@@ -0,0 +1,328 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import com.suto.util.LongMinHeap;
+
+import java.util.*;
+
+/**
+ * Precomputed metro access and egress paths for metro-first routing.
+ *
+ * For every metro station the table keeps the best path from every stop to
+ * the station (access) and from the station to every stop (egress), plus the
+ * best metro-only path between every two stations. "Best" is the fewest legs,
+ * then the fewest stops, found by a label-setting search over (stop,
+ * transport) states. A metro-first query then only combines table entries:
+ * access to a station, a metro ride, egress from another station, which is
+ * O(stations^2) lookups instead of a search.
+ *
+ * Built once per graph; immutable afterwards and safe to share between threads.
+ */
+class MetroAccessTable {
+
+    private static final int NO_TRANSPORT = -1;
+
+    private final Graph graph;
+    private final int transportSlots;
+
+    private final int[] stations; // stop index of each metro station
+
+    // [station][stop]; null where no path exists
+    private final Path[][] access;
+    private final Path[][] egress;
+    // [from station][to station], metro links only
+    private final Path[][] metro;
+
+    // Incoming links per stop, for the backwards access searches
+    private final int[] inStart;
+    private final int[] inEdge;
+    private final int[] inSource;
+
+    // Search scratch space, reused across the searches of the build
+    private final long[] dist;
+    private final int[] parentState;
+    private final int[] parentEdge;
+    private final LongMinHeap queue = new LongMinHeap(1024);
+
+    MetroAccessTable(Graph graph) {
+        this.graph = graph;
+        this.transportSlots = graph.transportCount() + 1;
+        int n = graph.stopCount();
+
+        List<Integer> found = new ArrayList<>();
+        for (int stop = 0; stop < n; stop++) {
+            if (graph.isMetroStation(stop)) {
+                found.add(stop);
+            }
+        }
+        this.stations = found.stream().mapToInt(Integer::intValue).toArray();
+
+        this.inStart = new int[n + 1];
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            inStart[graph.target(e) + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            inStart[v + 1] += inStart[v];
+        }
+        this.inEdge = new int[graph.edgeCount()];
+        this.inSource = new int[graph.edgeCount()];
+        int[] fill = Arrays.copyOf(inStart, n);
+        for (int v = 0; v < n; v++) {
+            for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                int slot = fill[graph.target(e)]++;
+                inEdge[slot] = e;
+                inSource[slot] = v;
+            }
+        }
+
+        int states = n * transportSlots;
+        this.dist = new long[states];
+        this.parentState = new int[states];
+        this.parentEdge = new int[states];
+
+        int m = stations.length;
+        this.access = new Path[m][];
+        this.egress = new Path[m][];
+        this.metro = new Path[m][m];
+        for (int s = 0; s < m; s++) {
+            access[s] = search(stations[s], true, false);
+            egress[s] = search(stations[s], false, false);
+            Path[] rides = search(stations[s], false, true);
+            for (int t = 0; t < m; t++) {
+                metro[s][t] = rides[stations[t]];
+            }
+        }
+    }
+
+    Graph getGraph() {
+        return graph;
+    }
+
+    int stationCount() {
+        return stations.length;
+    }
+
+    /**
+     * The k best itineraries that ride metro between two different stations,
+     * ranked by transfers then stops. Itineraries that pass a stop twice are
+     * skipped, as are ones with the same transfer points as a better one.
+     *
+     * @return itineraries as arrays of edge indices
+     */
+    List<int[]> metroFirst(int start, int end, int k) {
+        List<int[]> results = new ArrayList<>();
+        int m = stations.length;
+        if (start == end || m < 2) {
+            return results;
+        }
+
+        // Rank every (board, alight) station pair by (legs, stops)
+        long[] candidates = new long[m * m];
+        int count = 0;
+        for (int a = 0; a < m; a++) {
+            Path in = stations[a] == start ? Path.EMPTY : access[a][start];
+            if (in == null) {
+                continue;
+            }
+            for (int b = 0; b < m; b++) {
+                Path ride = metro[a][b];
+                Path out = stations[b] == end ? Path.EMPTY : egress[b][end];
+                if (a == b || ride == null || out == null) {
+                    continue;
+                }
+                int legs = joinLegs(joinLegs(in, ride), ride.lastTransport, out);
+                if (legs - 1 > TransferSearch.MAX_TRANSFERS) {
+                    continue;
+                }
+                int stops = in.stops + ride.stops + out.stops;
+                candidates[count++] = ((long) legs << 48) | ((long) stops << 24) | (a * m + b);
+            }
+        }
+        Arrays.sort(candidates, 0, count);
+
+        List<int[]> seen = new ArrayList<>();
+        for (int i = 0; i < count && results.size() < k; i++) {
+            int pair = (int) (candidates[i] & 0xFFFFFF);
+            int a = pair / m;
+            int b = pair % m;
+            Path in = stations[a] == start ? Path.EMPTY : access[a][start];
+            Path out = stations[b] == end ? Path.EMPTY : egress[b][end];
+            int[] edges = concat(in.edges, metro[a][b].edges, out.edges);
+            if (isLoopless(start, edges) && isNew(seen, signature(start, edges))) {
+                results.add(edges);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Label-setting search from one stop over (stop, transport) states,
+     * forwards (to every stop) or backwards (from every stop).
+     *
+     * @return the best path per stop, null where unreachable
+     */
+    private Path[] search(int root, boolean backwards, boolean metroOnly) {
+        Arrays.fill(dist, Long.MAX_VALUE);
+        queue.clear();
+        int rootState = state(root, NO_TRANSPORT);
+        dist[rootState] = 0;
+        parentState[rootState] = -1;
+        queue.push(rootState);
+
+        while (!queue.isEmpty()) {
+            long key = queue.pop();
+            int state = (int) (key & 0xFFFFFFFFL);
+            long packed = key >>> 32;
+            if (packed != dist[state]) {
+                continue; // Stale entry
+            }
+            int stop = state / transportSlots;
+            int current = state % transportSlots - 1;
+            int legs = (int) (packed >>> 16);
+            int stops = (int) (packed & 0xFFFF);
+
+            int from = backwards ? inStart[stop] : graph.edgeStart(stop);
+            int to = backwards ? inStart[stop + 1] : graph.edgeEnd(stop);
+            for (int i = from; i < to; i++) {
+                int edge = backwards ? inEdge[i] : i;
+                int transport = graph.transport(edge);
+                if (metroOnly && !graph.isMetroTransport(transport)) {
+                    continue;
+                }
+                int next = backwards ? inSource[i] : graph.target(edge);
+                int nextState = state(next, transport);
+                long nextPacked = ((long) (legs + (transport != current ? 1 : 0)) << 16) | (stops + 1);
+                if (nextPacked < dist[nextState]) {
+                    dist[nextState] = nextPacked;
+                    parentState[nextState] = state;
+                    parentEdge[nextState] = edge;
+                    queue.push((nextPacked << 32) | nextState);
+                }
+            }
+        }
+
+        Path[] best = new Path[graph.stopCount()];
+        for (int stop = 0; stop < best.length; stop++) {
+            int bestState = -1;
+            for (int t = 1; t < transportSlots; t++) {
+                int state = stop * transportSlots + t;
+                if (dist[state] != Long.MAX_VALUE && (bestState < 0 || dist[state] < dist[bestState])) {
+                    bestState = state;
+                }
+            }
+            if (bestState >= 0) {
+                best[stop] = toPath(bestState, backwards);
+            }
+        }
+        return best;
+    }
+
+    private Path toPath(int state, boolean backwards) {
+        int length = 0;
+        for (int s = state; parentState[s] >= 0; s = parentState[s]) {
+            length++;
+        }
+        int[] edges = new int[length];
+        int i = 0;
+        for (int s = state; parentState[s] >= 0; s = parentState[s]) {
+            // Backwards searches walk parents in travel order
+            edges[backwards ? i : length - 1 - i] = parentEdge[s];
+            i++;
+        }
+        long packed = dist[state];
+        return new Path(edges, (int) (packed >>> 16), (int) (packed & 0xFFFF),
+                graph.transport(edges[0]), graph.transport(edges[length - 1]));
+    }
+
+    private boolean isLoopless(int start, int[] edges) {
+        SearchWorkspace workspace = SearchWorkspace.begin(graph);
+        workspace.visit(start, -1, -1);
+        for (int edge : edges) {
+            if (!workspace.visit(graph.target(edge), -1, edge)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The transfer points and transports, i.e. the legs a rider sees: a
+     * (stop, transport) pair per leg, then the final stop.
+     */
+    private int[] signature(int start, int[] edges) {
+        int[] legs = new int[edges.length * 2 + 1];
+        int length = 0;
+        int stop = start;
+        int transport = NO_TRANSPORT;
+        for (int edge : edges) {
+            if (graph.transport(edge) != transport) {
+                transport = graph.transport(edge);
+                legs[length++] = stop;
+                legs[length++] = transport;
+            }
+            stop = graph.target(edge);
+        }
+        legs[length++] = stop;
+        return Arrays.copyOf(legs, length);
+    }
+
+    /**
+     * Adds a signature unless an equal one was seen; at most k are kept, so a scan is enough.
+     */
+    private static boolean isNew(List<int[]> seen, int[] signature) {
+        for (int[] other : seen) {
+            if (Arrays.equals(other, signature)) {
+                return false;
+            }
+        }
+        seen.add(signature);
+        return true;
+    }
+
+    private int state(int stop, int transport) {
+        return stop * transportSlots + transport + 1;
+    }
+
+    private static int joinLegs(Path first, Path second) {
+        return joinLegs(first.legs, first.lastTransport, second.legs, second.firstTransport);
+    }
+
+    private static int joinLegs(int legs, int lastTransport, Path next) {
+        return joinLegs(legs, lastTransport, next.legs, next.firstTransport);
+    }
+
+    private static int joinLegs(int firstLegs, int lastTransport, int secondLegs, int firstTransport) {
+        // Staying on the same transport across the join is one leg, not two
+        boolean merged = firstLegs > 0 && secondLegs > 0 && lastTransport == firstTransport;
+        return firstLegs + secondLegs - (merged ? 1 : 0);
+    }
+
+    private static int[] concat(int[] first, int[] second, int[] third) {
+        int[] joined = new int[first.length + second.length + third.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        System.arraycopy(third, 0, joined, first.length + second.length, third.length);
+        return joined;
+    }
+
+    /**
+     * A stored best path with the leg summary needed to join it to others.
+     */
+    private static final class Path {
+        static final Path EMPTY = new Path(new int[0], 0, 0, NO_TRANSPORT, NO_TRANSPORT);
+
+        final int[] edges;
+        final int legs;
+        final int stops;
+        final int firstTransport;
+        final int lastTransport;
+
+        Path(int[] edges, int legs, int stops, int firstTransport, int lastTransport) {
+            this.edges = edges;
+            this.legs = legs;
+            this.stops = stops;
+            this.firstTransport = firstTransport;
+            this.lastTransport = lastTransport;
+        }
+    }
+}
@@ -1,509 +1,819 @@
 package com.suto.service;
 
+import com.suto.dto.ReachableStop;
+import com.suto.dto.RouteRequest;
 import com.suto.dto.RouteResponse;
 import com.suto.exception.RouteNotFoundException;
-import com.suto.model.Edge;
+import com.suto.exception.SutoException;
 import com.suto.model.Graph;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class PathFinderService {
 
-    private final GraphService graphService;
+    // Number of combined routes returned (k) unless the request asks otherwise
+    private static final int DEFAULT_COMBINED_ROUTES = TransferSearch.DEFAULT_K;
+    private static final int MAX_COMBINED_ROUTES = 20;
 
-    public PathFinderService(GraphService graphService) {
-        this.graphService = graphService;
-    }
+    public static final String ENGINE_LABEL = "label";
+    public static final String ENGINE_RAPTOR = "raptor";
 
-    public RouteResponse findBestRoute(String originName, String destinationName) {
-        Graph graph = graphService.getGraph();
-        UUID startNode = graph.getStopId(originName);
-        UUID endNode = graph.getStopId(destinationName);
+    // Transport modes as reported in responses
+    private static final String MODE_METRO = "METRO";
+    private static final String MODE_BUS = "BUS";
 
-        if (startNode == null || endNode == null) {
-            throw new RouteNotFoundException(originName, destinationName);
-        }
+    // Latency budget of a parallel query; slower searches return what they have, marked partial
+    private static final long PARALLEL_BUDGET_MILLIS = 1500;
+    private static final long AWAIT_GRACE_MILLIS = 250;
 
-        RouteResponse response = new RouteResponse();
-        response.setSource(originName);
-        response.setDestination(destinationName);
-        response.setStatus("success");
+    private final GraphService graphService;
+    private final RouteCache routeCache;
 
-        // 1. Find Direct Routes (0 transfers)
-        List<RouteResponse.DirectRoute> directRoutes = findDirectRoutes(graph, startNode, endNode);
-        response.setDirectRoutes(directRoutes);
+    // Runs the sub-searches of parallel queries
+    private final ExecutorService searchExecutor;
 
-        // 2. Find Combined Routes (Transfers)
-        List<RouteResponse.CombinedRoute> combinedRoutes = findCombinedRoutes(graph, startNode, endNode);
+    // Pattern index for the RAPTOR engine, rebuilt when the graph changes
+    private volatile RaptorRouter raptorRouter;
 
-        if (!directRoutes.isEmpty()) {
-            // Special Logic: If Direct routes exist, filter OUT bus-only combined routes
-            // Keep ONLY combined routes that contain METRO
-            combinedRoutes = combinedRoutes.stream()
-                    .filter(this::hasMetro) // Keep only routes with metro
-                    .collect(java.util.stream.Collectors.toList());
-        }
-        // ELSE: If no direct routes, show ALL combined routes (bus-only + metro)
+    // Metro access/egress paths for metro-first queries, rebuilt when the graph changes
+    private volatile MetroAccessTable metroAccessTable;
 
-        response.setCombinedRoutes(combinedRoutes);
+    // Label-setting search state not in use right now. Each search takes one and puts it
+    // back, so there are only as many as searches ever ran at once, whatever threads
+    // run them; a virtual thread per request would otherwise allocate one per request
+    private final Deque<TransferSearch> idleSearches = new ConcurrentLinkedDeque<>();
 
-        if (directRoutes.isEmpty() && combinedRoutes.isEmpty()) {
-            response.setMessage("No routes found.");
-        } else {
-            response.setMessage("Routes found.");
-        }
-
-        return response;
+    public PathFinderService(GraphService graphService) {
+        this(graphService, new RouteCache());
     }
 
-    // --- Direct Routes Logic (Enhanced) ---
-    private List<RouteResponse.DirectRoute> findDirectRoutes(Graph graph, UUID start, UUID end) {
-        List<RouteResponse.DirectRoute> routes = new ArrayList<>();
+    public PathFinderService(GraphService graphService, RouteCache routeCache) {
+        this.graphService = graphService;
+        this.routeCache = routeCache;
+        this.searchExecutor = newSearchExecutor();
+        graphService.addUpdateListener(this::keepUnaffectedRoutes);
+    }
 
-        // Use BFS to find all simple paths between start and end using a SINGLE
-        // transport
-        // Optimized: Check intersection of transport at start and end
-        Set<String> startTransports = getTransportsAtNode(graph, start, true);
-        Set<String> endTransports = getTransportsAtNode(graph, end, false);
-
-        // Find common transports
-        Set<String> commonTransports = new HashSet<>(startTransports);
-        commonTransports.retainAll(endTransports);
-
-        for (String transport : commonTransports) {
-            // Verify connectivity for this specific transport
-            List<UUID> path = findPathByTransport(graph, start, end, transport);
-            if (!path.isEmpty()) {
-                RouteResponse.DirectRoute route = new RouteResponse.DirectRoute();
-                route.setName(transport);
-                route.setType(isMetro(transport) ? "METRO" : "BUS");
-                route.setStops(path.size() - 1);
-                route.setDetails(transport + " (" + (path.size() - 1) + " stops)");
-                routes.add(route);
-            }
+    /**
+     * A change that only removed edges leaves every cached route that rides
+     * none of the affected transports valid, so those are kept instead of
+     * being dropped with the rest of the cache.
+     */
+    private void keepUnaffectedRoutes(GraphUpdate update) {
+        if (update.isRemovalOnly()) {
+            int kept = routeCache.carryOver(update.getPreviousVersion(), update.getVersion(),
+                    update.getAffectedTransports());
+            System.out.println("Kept " + kept + " cached routes for graph version " + update.getVersion());
         }
+    }
 
-        // Sort: Metro first, then fewer stops
-        routes.sort(Comparator.comparing((RouteResponse.DirectRoute r) -> r.getType().equals("METRO") ? 0 : 1)
-                .thenComparingInt(RouteResponse.DirectRoute::getStops)
-                .thenComparing(RouteResponse.DirectRoute::getName)); // Stable sort
+    /**
+     * One thread per core with a bounded queue; when the queue is full the
+     * request thread runs the search itself instead of piling up more work.
+     */
+    private static ExecutorService newSearchExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger ids = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                r -> {
+                    Thread thread = new Thread(r, "route-search-" + ids.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-        return routes;
+    public RouteCache getRouteCache() {
+        return routeCache;
     }
 
-    // --- Combined Routes Logic (Enhanced Multi-Path) ---
-    private List<RouteResponse.CombinedRoute> findCombinedRoutes(Graph graph, UUID start, UUID end) {
-        List<RouteResponse.CombinedRoute> allPlans = new ArrayList<>();
+    /**
+     * @return the version of the graph new queries run on
+     */
+    public long getGraphVersion() {
+        return graphService.getSnapshot().getGraph().getVersion();
+    }
+
+    /**
+     * @return the request's engine, k and flags after defaults and clamping,
+     *         equal for any two requests that get the same routes
+     */
+    public static String normalizedOptions(RouteRequest request) {
+        return optionsOf(engineOf(request), kOf(request), request.isPreferMetro())
+                + (request.isParallel() ? "/parallel" : "");
+    }
 
-        // BFS to find multiple paths
-        // State: {CurrentNode, PathSoFar, CurrentTransport, TransfersCount}
-        Queue<State> queue = new LinkedList<>();
-        queue.add(new State(start, null, 0, new ArrayList<>()));
+    public RouteResponse findBestRoute(String originName, String destinationName) {
+        return findBestRoute(new RouteRequest(originName, destinationName));
+    }
 
-        // Limit exploration to avoid explosion
-        int limitChecked = 0;
-        int maxChecked = 500000; // Enough to explore city graph deeply
-        // Map to keep track of best cost to reach (Node, Transport) to prune bad paths
-        Map<String, Integer> visitedState = new HashMap<>(); // Key: "NodeID_Transport", Value: Transfers
+    public RouteResponse findBestRoute(RouteRequest request) {
+        return findBestRoute(request, null);
+    }
 
-        List<State> validEndStates = new ArrayList<>();
+    /**
+     * Like {@link #findBestRoute(RouteRequest)}, additionally passing every
+     * route to the listener as soon as it is final: direct routes right after
+     * the index lookup, label-engine metro itineraries as the search settles
+     * them, everything else once the search is done. The sub-searches then
+     * run on the calling thread, so the listener is only called from there.
+     */
+    public RouteResponse findBestRoute(RouteRequest request, RouteListener listener) {
+        String originName = request.getSource();
+        String destinationName = request.getDestination();
+        String engine = engineOf(request);
+        int k = kOf(request);
+        boolean preferMetro = request.isPreferMetro();
+        // Streamed queries run their sub-searches on the calling thread, so they are never parallel
+        boolean parallel = request.isParallel() && listener == null;
+        String options = optionsOf(engine, k, preferMetro) + (parallel ? "/parallel" : "");
+        // The whole query runs on this snapshot, even if a newer graph is published meanwhile
+        GraphSnapshot snapshot = graphService.getSnapshot();
+        Graph graph = snapshot.getGraph();
+
+        RouteResponse cached = routeCache.get(graph.getVersion(), originName, destinationName, options);
+        if (cached != null) {
+            if (listener != null) {
+                cached.getDirectRoutes().forEach(listener::onDirectRoute);
+                cached.getCombinedRoutes().forEach(listener::onCombinedRoute);
+            }
+            return withEndpoints(cached, originName, destinationName);
+        }
 
-        while (!queue.isEmpty() && limitChecked < maxChecked) {
-            State current = queue.poll();
-            limitChecked++;
+        SearchBudget budget = parallel
+                ? SearchBudget.ofMillis(PARALLEL_BUDGET_MILLIS)
+                : SearchBudget.unlimited();
+        RouteResponse response = computeBestRoute(snapshot, originName, destinationName, engine, k, preferMetro,
+                parallel, budget, listener);
+        if (budget.wasStopped()) {
+            // Cut short by the latency budget: depends on timing, so marked and not kept
+            response.setPartial(true);
+        } else {
+            routeCache.put(graph.getVersion(), originName, destinationName, options, response);
+        }
+        return withEndpoints(response, originName, destinationName);
+    }
 
-            // Optimization: If transfers > 5, stop (allow complex city routes)
-            if (current.transfers > 5)
+    /**
+     * Answers many route queries at once, in request order. Label-engine
+     * queries that are not cached are grouped by origin and k, and each group
+     * is answered by a single one-to-many search from the origin instead of
+     * one search per destination. Other queries run one by one. A query that
+     * fails (e.g. an unknown stop) gets an error response instead of failing
+     * the batch.
+     */
+    public List<RouteResponse> findBestRoutes(List<RouteRequest> requests) {
+        GraphSnapshot snapshot = graphService.getSnapshot();
+        Graph graph = snapshot.getGraph();
+        RouteResponse[] responses = new RouteResponse[requests.size()];
+        Map<Long, List<Integer>> groups = new LinkedHashMap<>();
+
+        for (int i = 0; i < requests.size(); i++) {
+            RouteRequest request = requests.get(i);
+            String originName = request.getSource();
+            String destinationName = request.getDestination();
+            String engine = engineOf(request);
+            int k = kOf(request);
+            boolean preferMetro = request.isPreferMetro();
+            String options = optionsOf(engine, k, preferMetro);
+
+            RouteResponse cached = routeCache.get(graph.getVersion(), originName, destinationName, options);
+            if (cached != null) {
+                responses[i] = withEndpoints(cached, originName, destinationName);
                 continue;
-
-            // Pruning: If we reached this node+transport with FEWER transfers before, skip
-            String stateKey = current.nodeId + "_" + (current.lastTransport == null ? "START" : current.lastTransport);
-            if (visitedState.containsKey(stateKey) && visitedState.get(stateKey) < current.transfers) {
+            }
+            int start = graph.indexOf(originName);
+            if (start >= 0 && graph.indexOf(destinationName) >= 0 && ENGINE_LABEL.equals(engine) && !preferMetro) {
+                groups.computeIfAbsent((long) start * (MAX_COMBINED_ROUTES + 1) + k, key -> new ArrayList<>()).add(i);
                 continue;
             }
-            // Allow re-visiting if same transfers but different transport (could be better
-            // next leg)
-            // But if strictly worse, skip.
+            try {
+                RouteResponse response = computeBestRoute(snapshot, originName, destinationName, engine, k,
+                        preferMetro, false, SearchBudget.unlimited(), null);
+                routeCache.put(graph.getVersion(), originName, destinationName, options, response);
+                responses[i] = withEndpoints(response, originName, destinationName);
+            } catch (SutoException e) {
+                responses[i] = errorResponse(originName, destinationName, e.getMessage());
+            }
+        }
 
-            // Cycle detection in current path
-            if (hasCycle(current.path))
-                continue;
+        for (List<Integer> group : groups.values()) {
+            computeBatchGroup(snapshot, requests, group, responses);
+        }
+        return Arrays.asList(responses);
+    }
 
-            if (current.nodeId.equals(end)) {
-                validEndStates.add(current);
-                continue; // Don't extend paths beyond destination
+    /**
+     * Answers label-engine queries sharing an origin and k from one search tree.
+     */
+    private void computeBatchGroup(GraphSnapshot snapshot, List<RouteRequest> requests, List<Integer> group,
+            RouteResponse[] responses) {
+        Graph graph = snapshot.getGraph();
+        RouteRequest first = requests.get(group.get(0));
+        int start = graph.indexOf(first.getSource());
+        int k = kOf(first);
+        String options = optionsOf(ENGINE_LABEL, k, false);
+        DistanceMatrix bounds = snapshot.getDistanceMatrix();
+
+        // Destinations the bounds rule out are answered without searching
+        List<Integer> searched = new ArrayList<>();
+        for (int i : group) {
+            int end = graph.indexOf(requests.get(i).getDestination());
+            int minTransfers = bounds.minTransfers(start, end);
+            if (minTransfers == DistanceMatrix.UNREACHABLE || minTransfers > TransferSearch.MAX_TRANSFERS) {
+                finishBatchResponse(graph, requests.get(i), options, new ArrayList<>(), new ArrayList<>(),
+                        i, responses);
+            } else {
+                searched.add(i);
             }
+        }
+        if (searched.isEmpty()) {
+            return;
+        }
 
-            visitedState.put(stateKey, current.transfers);
+        int[] ends = new int[searched.size()];
+        for (int j = 0; j < ends.length; j++) {
+            ends[j] = graph.indexOf(requests.get(searched.get(j)).getDestination());
+        }
+        List<List<RouteResponse.CombinedRoute>> combined =
+                findCombinedRoutes(graph, start, ends, k, bounds, SearchBudget.unlimited());
+
+        for (int j = 0; j < ends.length; j++) {
+            int i = searched.get(j);
+            List<RouteResponse.DirectRoute> directRoutes = bounds.minTransfers(start, ends[j]) > 0
+                    ? new ArrayList<>()
+                    : findDirectRoutes(graph, start, ends[j]);
+            finishBatchResponse(graph, requests.get(i), options, directRoutes, combined.get(j), i, responses);
+        }
+    }
 
-            // Explore neighbors
-            List<Edge> neighbors = graph.getNeighbors(current.nodeId);
-            for (Edge edge : neighbors) {
-                boolean isTransfer = current.lastTransport != null && !current.lastTransport.equals(edge.getBusName());
-                int newTransfers = current.transfers + (isTransfer ? 1 : 0);
+    private void finishBatchResponse(Graph graph, RouteRequest request, String options,
+            List<RouteResponse.DirectRoute> directRoutes, List<RouteResponse.CombinedRoute> combinedRoutes,
+            int index, RouteResponse[] responses) {
+        String originName = request.getSource();
+        String destinationName = request.getDestination();
+        RouteResponse response = newResponse(originName, destinationName);
+        complete(response, directRoutes, combinedRoutes);
+        routeCache.put(graph.getVersion(), originName, destinationName, options, response);
+        responses[index] = withEndpoints(response, originName, destinationName);
+    }
 
-                // Construct new path
-                List<Edge> newPath = new ArrayList<>(current.path);
-                newPath.add(edge);
+    private static String engineOf(RouteRequest request) {
+        return ENGINE_RAPTOR.equalsIgnoreCase(request.getEngine()) ? ENGINE_RAPTOR : ENGINE_LABEL;
+    }
 
-                // Add to queue
-                // Prioritize "same transport" to encourage fewer transfers?
-                // BFS naturally finds shortest by edges if unweighted.
-                // We want filtered results later.
-                queue.add(new State(edge.getStopId(), edge.getBusName(), newPath, newTransfers));
-            }
-        }
+    private static int kOf(RouteRequest request) {
+        return request.getK() == null
+                ? DEFAULT_COMBINED_ROUTES
+                : Math.max(1, Math.min(MAX_COMBINED_ROUTES, request.getK()));
+    }
 
-        // Convert valid end states to CombinedRoutes
-        for (State s : validEndStates) {
-            RouteResponse.CombinedRoute route = convertToCombinedRoute(graph, s.path, start);
-            if (route != null) {
-                allPlans.add(route);
-            }
-        }
+    private static String optionsOf(String engine, int k, boolean preferMetro) {
+        return engine + "/" + k + (preferMetro ? "/metro" : "");
+    }
 
-        // Deduplicate: Keep best version (fewest stops) for each unique node sequence
-        // (or segment sequence)
-        // Python logic: "Identify unique paths by the sequence of start/end nodes of
-        // segments"
-        Map<String, RouteResponse.CombinedRoute> uniquePaths = new HashMap<>();
+    private RouteResponse computeBestRoute(GraphSnapshot snapshot, String originName, String destinationName,
+            String engine, int k, boolean preferMetro, boolean parallel, SearchBudget budget, RouteListener listener) {
+        Graph graph = snapshot.getGraph();
+        int startNode = graph.indexOf(originName);
+        int endNode = graph.indexOf(destinationName);
 
-        for (RouteResponse.CombinedRoute r : allPlans) {
-            String signature = getRouteSignature(r);
-            if (!uniquePaths.containsKey(signature) || r.getTotalStops() < uniquePaths.get(signature).getTotalStops()) {
-                uniquePaths.put(signature, r);
-            }
+        if (startNode < 0 || endNode < 0) {
+            throw new RouteNotFoundException(originName, destinationName);
         }
 
-        List<RouteResponse.CombinedRoute> distinctRoutes = new ArrayList<>(uniquePaths.values());
+        RouteResponse response = newResponse(originName, destinationName);
 
-        // Sort: Metro -> Transfers -> Stops
-        distinctRoutes.sort((r1, r2) -> {
-            boolean metro1 = hasMetro(r1);
-            boolean metro2 = hasMetro(r2);
-            if (metro1 != metro2)
-                return metro1 ? -1 : 1;
+        // 0. Bounds: skip searches that cannot find anything
+        DistanceMatrix bounds = snapshot.getDistanceMatrix();
+        int minTransfers = bounds.minTransfers(startNode, endNode);
+        if (minTransfers == DistanceMatrix.UNREACHABLE || minTransfers > TransferSearch.MAX_TRANSFERS) {
+            complete(response, new ArrayList<>(), new ArrayList<>());
+            return response;
+        }
 
-            int transferDiff = Integer.compare(r1.getTotalSteps(), r2.getTotalSteps());
-            if (transferDiff != 0)
-                return transferDiff;
+        // In parallel mode the combined search runs while direct routes are looked up,
+        // and is stopped as soon as k routes are final
+        int start = startNode;
+        int end = endNode;
+        FinalRoutes finalRoutes = parallel ? new FinalRoutes(k, budget) : null;
+        Future<List<RouteResponse.CombinedRoute>> combinedTask = parallel
+                ? searchExecutor.submit(() -> searchCombinedRoutes(graph, start, end, engine, k, preferMetro,
+                        bounds, budget, route -> finalRoutes.combinedRoute(hasMetro(route))))
+                : null;
 
-            return Integer.compare(r1.getTotalStops(), r2.getTotalStops());
-        });
+        // 1. Find Direct Routes (0 transfers)
+        List<RouteResponse.DirectRoute> directRoutes = minTransfers == 0
+                ? findDirectRoutes(graph, startNode, endNode)
+                : new ArrayList<>();
+        if (finalRoutes != null) {
+            finalRoutes.directRoutes(directRoutes.size());
+        }
+        if (listener != null) {
+            directRoutes.forEach(listener::onDirectRoute);
+        }
 
-        // Return top 5
-        return distinctRoutes.subList(0, Math.min(5, distinctRoutes.size()));
+        // 2. Find Combined Routes (Transfers)
+        List<RouteResponse.CombinedRoute> streamed = new ArrayList<>();
+        Consumer<RouteResponse.CombinedRoute> onFinal = listener == null ? null : route -> {
+            if (!directRoutes.isEmpty() && !hasMetro(route)) {
+                return; // filtered out below
+            }
+            streamed.add(route);
+            listener.onCombinedRoute(route);
+        };
+        List<RouteResponse.CombinedRoute> combinedRoutes = combinedTask != null
+                ? await(combinedTask, budget)
+                : searchCombinedRoutes(graph, startNode, endNode, engine, k, preferMetro, bounds, budget, onFinal);
+
+        complete(response, directRoutes, combinedRoutes);
+        if (finalRoutes != null) {
+            // Exactly as many as counted, however far the search got before it was stopped
+            List<RouteResponse.CombinedRoute> routes = response.getCombinedRoutes();
+            int limit = Math.min(routes.size(), finalRoutes.combinedLimit());
+            response.setCombinedRoutes(new ArrayList<>(routes.subList(0, limit)));
+        }
+        if (listener != null) {
+            // Routes passed on early are the head of the final list
+            List<RouteResponse.CombinedRoute> routes = response.getCombinedRoutes();
+            routes.subList(streamed.size(), routes.size()).forEach(listener::onCombinedRoute);
+        }
+        return response;
     }
 
-    // --- New Metro-Centric Logic ---
-
     /**
-     * Finds the optimal combined route that MUST use Metro for the middle leg.
-     * Strategy: Find ALL reachable metro stations from source and destination,
-     * evaluate ALL valid combinations, select the best one based on:
-     * 1. Minimum transfers
-     * 2. Minimum total stops
+     * Counts the routes of a parallel query that are final and stops its
+     * combined search once k are. Direct routes are final as soon as they
+     * are looked up. Both engines report combined routes that are final and
+     * in their final order: the label engine its metro itineraries, RAPTOR
+     * the journeys of each completed round. When there are direct routes only
+     * metro itineraries can follow them in the response, so only those count;
+     * without direct routes every reported route counts (the label engine
+     * also stops by itself after k itineraries).
      */
-    private RouteResponse.CombinedRoute findBestMetroRoute(Graph graph, UUID start, UUID end) {
-        // Special case: If destination itself is a metro station, find direct metro
-        // route
-        if (isMetroStation(graph, end)) {
-            // Try to find metro-only path from reachable metro station to destination
-            List<MetroPathSegment> startMetroStations = findAllReachableMetroStations(graph, start);
-
-            RouteResponse.CombinedRoute bestRoute = null;
-            int bestTransfers = Integer.MAX_VALUE;
-            int bestTotalStops = Integer.MAX_VALUE;
-
-            for (MetroPathSegment startSegment : startMetroStations) {
-                // Try direct metro path to destination
-                List<Edge> metroPath = findMetroPath(graph, startSegment.metroNode, end);
-                if (!metroPath.isEmpty()) {
-                    List<Edge> fullPath = new ArrayList<>();
-                    fullPath.addAll(startSegment.path);
-                    fullPath.addAll(metroPath);
-
-                    RouteResponse.CombinedRoute candidate = convertToCombinedRoute(graph, fullPath, start);
-                    if (candidate != null) {
-                        int transfers = candidate.getTotalSteps() - 1;
-                        int totalStops = candidate.getTotalStops();
-
-                        if (transfers < bestTransfers ||
-                                (transfers == bestTransfers && totalStops < bestTotalStops)) {
-                            bestRoute = candidate;
-                            bestTransfers = transfers;
-                            bestTotalStops = totalStops;
-                        }
-                    }
-                }
-            }
+    private static final class FinalRoutes {
+        private final int k;
+        private final SearchBudget budget;
+        private final AtomicInteger combined = new AtomicInteger();
+        private final AtomicInteger metro = new AtomicInteger();
+        private volatile int direct = -1; // not looked up yet
+
+        FinalRoutes(int k, SearchBudget budget) {
+            this.k = k;
+            this.budget = budget;
+        }
 
-            if (bestRoute != null) {
-                return bestRoute;
-            }
+        void directRoutes(int count) {
+            direct = count;
+            stopIfEnough();
         }
 
-        // 1. Find ALL reachable metro stations from Start
-        List<MetroPathSegment> startMetroStations = findAllReachableMetroStations(graph, start);
+        void combinedRoute(boolean hasMetro) {
+            if (hasMetro) {
+                metro.incrementAndGet();
+            }
+            combined.incrementAndGet();
+            stopIfEnough();
+        }
 
-        // 2. Find ALL reachable metro stations from End
-        List<MetroPathSegment> endMetroStations = findAllReachableMetroStations(graph, end);
+        /**
+         * @return how many combined routes the response keeps
+         */
+        int combinedLimit() {
+            return direct > 0 ? Math.max(0, k - direct) : k;
+        }
 
-        if (startMetroStations.isEmpty() || endMetroStations.isEmpty()) {
-            return null; // No metro access from one or both endpoints
+        private void stopIfEnough() {
+            int count = direct;
+            if ((count > 0 && metro.get() >= k - count) || (count == 0 && combined.get() >= k)) {
+                budget.finish();
+            }
         }
+    }
+
+    private static RouteResponse newResponse(String originName, String destinationName) {
+        RouteResponse response = new RouteResponse();
+        response.setSource(originName);
+        response.setDestination(destinationName);
+        response.setStatus("success");
+        return response;
+    }
 
-        // 3. Evaluate ALL combinations and find the best route
-        RouteResponse.CombinedRoute bestRoute = null;
-        int bestTransfers = Integer.MAX_VALUE;
-        int bestTotalStops = Integer.MAX_VALUE;
+    private static RouteResponse errorResponse(String originName, String destinationName, String message) {
+        RouteResponse response = new RouteResponse();
+        response.setSource(originName);
+        response.setDestination(destinationName);
+        response.setStatus("error");
+        response.setMessage(message);
+        response.setDirectRoutes(new ArrayList<>());
+        response.setCombinedRoutes(new ArrayList<>());
+        return response;
+    }
 
-        for (MetroPathSegment startSegment : startMetroStations) {
-            for (MetroPathSegment endSegment : endMetroStations) {
-                UUID metroStartNode = startSegment.metroNode;
-                UUID metroEndNode = endSegment.metroNode;
+    private void complete(RouteResponse response, List<RouteResponse.DirectRoute> directRoutes,
+            List<RouteResponse.CombinedRoute> combinedRoutes) {
+        response.setDirectRoutes(directRoutes);
 
-                // Skip if same station (no metro journey needed)
-                if (metroStartNode.equals(metroEndNode)) {
-                    continue;
-                }
+        if (!directRoutes.isEmpty()) {
+            // Special Logic: If Direct routes exist, filter OUT bus-only combined routes
+            // Keep ONLY combined routes that contain METRO
+            combinedRoutes = combinedRoutes.stream()
+                    .filter(this::hasMetro) // Keep only routes with metro
+                    .collect(java.util.stream.Collectors.toList());
+        }
+        // ELSE: If no direct routes, show ALL combined routes (bus-only + metro)
 
-                // Find metro path between these two stations
-                List<Edge> metroLegEdges = findMetroPath(graph, metroStartNode, metroEndNode);
-                if (metroLegEdges.isEmpty()) {
-                    continue; // These stations are not connected via metro
-                }
+        response.setCombinedRoutes(combinedRoutes);
 
-                // Find path from metro end station to final destination
-                List<Edge> lastLegEdges = findSimplePath(graph, metroEndNode, end);
-                if (lastLegEdges == null) {
-                    continue; // No path from metro station to destination
-                }
+        if (directRoutes.isEmpty() && combinedRoutes.isEmpty()) {
+            response.setMessage("No routes found.");
+        } else {
+            response.setMessage("Routes found.");
+        }
+    }
 
-                // Construct complete path
-                List<Edge> fullPath = new ArrayList<>();
-                fullPath.addAll(startSegment.path);
-                fullPath.addAll(metroLegEdges);
-                fullPath.addAll(lastLegEdges);
-
-                // Convert to CombinedRoute and evaluate
-                RouteResponse.CombinedRoute candidate = convertToCombinedRoute(graph, fullPath, start);
-                if (candidate != null) {
-                    int transfers = candidate.getTotalSteps() - 1; // Number of legs - 1 = transfers
-                    int totalStops = candidate.getTotalStops();
-
-                    // Select route with minimum transfers, then minimum stops
-                    if (transfers < bestTransfers ||
-                            (transfers == bestTransfers && totalStops < bestTotalStops)) {
-                        bestRoute = candidate;
-                        bestTransfers = transfers;
-                        bestTotalStops = totalStops;
-                    }
-                }
+    /**
+     * @param onFinal if not null, receives routes as soon as they are final:
+     *                metro itineraries from the label engine, every journey
+     *                among the first k from RAPTOR. They are also part of the
+     *                result
+     */
+    private List<RouteResponse.CombinedRoute> searchCombinedRoutes(Graph graph, int start, int end, String engine,
+            int k, boolean preferMetro, DistanceMatrix bounds, SearchBudget budget,
+            Consumer<RouteResponse.CombinedRoute> onFinal) {
+        if (preferMetro) {
+            // Answered from the table; a full search only when no metro itinerary exists
+            List<RouteResponse.CombinedRoute> routes = findMetroFirstRoutes(graph, start, end, k);
+            if (!routes.isEmpty()) {
+                return routes;
             }
         }
-
-        return bestRoute;
+        return ENGINE_RAPTOR.equals(engine)
+                ? findParetoRoutes(graph, start, end, k, bounds, budget, onFinal)
+                : findCombinedRoutes(graph, start, end, k, bounds, budget, onFinal);
     }
 
     /**
-     * Finds ALL reachable metro stations from a given starting node.
-     * Returns a list of MetroPathSegment, each containing the metro station
-     * and the path to reach it.
+     * Waits for a sub-search. The search stops itself when the budget runs
+     * out; if it has not even started by then (queued behind other work) it is
+     * cancelled and contributes nothing.
      */
-    private List<MetroPathSegment> findAllReachableMetroStations(Graph graph, UUID startNode) {
-        List<MetroPathSegment> metroStations = new ArrayList<>();
-
-        // Special case: If start node is already a metro station, add it with empty
-        // path
-        if (isMetroStation(graph, startNode)) {
-            metroStations.add(new MetroPathSegment(startNode, new ArrayList<>()));
+    private <T> List<T> await(Future<List<T>> task, SearchBudget budget) {
+        try {
+            return task.get(budget.remainingMillis() + AWAIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            budget.cancel();
+            task.cancel(true);
+            return new ArrayList<>();
+        } catch (InterruptedException e) {
+            budget.cancel();
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SutoException("Route search interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SutoException("Route search failed", e.getCause());
         }
+    }
 
-        Queue<PathState> q = new LinkedList<>();
-        q.add(new PathState(startNode, new ArrayList<>()));
-        Set<UUID> visited = new HashSet<>();
-        visited.add(startNode);
-
-        int limit = 50000; // Increased to ensure we find all reachable stations
+    /**
+     * Cached responses are shared, so each caller gets its own copy carrying
+     * the stop names as it spelled them.
+     */
+    private RouteResponse withEndpoints(RouteResponse cached, String originName, String destinationName) {
+        if (originName.equals(cached.getSource()) && destinationName.equals(cached.getDestination())) {
+            return cached; // Same spelling; responses are not changed once cached, so share it with its JSON
+        }
+        RouteResponse response = new RouteResponse();
+        response.setSource(originName);
+        response.setDestination(destinationName);
+        response.setStatus(cached.getStatus());
+        response.setMessage(cached.getMessage());
+        response.setDirectRoutes(cached.getDirectRoutes());
+        response.setCombinedRoutes(cached.getCombinedRoutes());
+        return response;
+    }
 
-        while (!q.isEmpty() && limit-- > 0) {
-            PathState current = q.poll();
+    // --- Direct Routes Logic (Enhanced) ---
+    private List<RouteResponse.DirectRoute> findDirectRoutes(Graph graph, int start, int end) {
+        List<RouteResponse.DirectRoute> routes = new ArrayList<>();
 
-            // Check if current node is a metro station (but not the start node)
-            if (!current.node.equals(startNode) && isMetroStation(graph, current.node)) {
-                metroStations.add(new MetroPathSegment(current.node, current.path));
-                // Continue exploring to find more metro stations
+        // Merge the line index postings of start and end: both lists are sorted by
+        // pattern, and a pattern serving start before end is a direct ride
+        int[] bestStops = new int[graph.transportCount()];
+        Arrays.fill(bestStops, -1);
+
+        int i = graph.postingStart(start);
+        int j = graph.postingStart(end);
+        while (i < graph.postingEnd(start) && j < graph.postingEnd(end)) {
+            int startPattern = graph.postingPattern(i);
+            int endPattern = graph.postingPattern(j);
+            if (startPattern < endPattern) {
+                i++;
+            } else if (startPattern > endPattern) {
+                j++;
+            } else {
+                int stops = graph.postingPosition(j) - graph.postingPosition(i);
+                int transport = graph.patternTransport(startPattern);
+                if (stops > 0 && (bestStops[transport] < 0 || stops < bestStops[transport])) {
+                    bestStops[transport] = stops;
+                }
+                i++;
+                j++;
             }
+        }
 
-            // Explore neighbors
-            for (Edge e : graph.getNeighbors(current.node)) {
-                if (!visited.contains(e.getStopId())) {
-                    visited.add(e.getStopId());
-                    List<Edge> newPath = new ArrayList<>(current.path);
-                    newPath.add(e);
-                    q.add(new PathState(e.getStopId(), newPath));
-                }
+        List<Integer> found = new ArrayList<>();
+        for (int transport = 0; transport < bestStops.length; transport++) {
+            if (bestStops[transport] >= 0) {
+                found.add(transport);
             }
         }
 
-        return metroStations;
+        // Sort: Metro first, then fewer stops
+        found.sort(Comparator.comparing((Integer t) -> graph.isMetroTransport(t) ? 0 : 1)
+                .thenComparingInt(t -> bestStops[t])
+                .thenComparing(graph::transportName)); // Stable sort
+
+        for (int transport : found) {
+            int stops = bestStops[transport];
+            String name = graph.transportName(transport);
+            RouteResponse.DirectRoute route = new RouteResponse.DirectRoute();
+            route.setName(name);
+            route.setType(modeOf(graph, transport));
+            route.setStops(stops);
+            route.setDetails(name + " (" + stops + " stops)");
+            routes.add(route);
+        }
+
+        return routes;
     }
 
-    private boolean isMetroStation(Graph graph, UUID nodeId) {
-        for (Edge e : graph.getNeighbors(nodeId)) {
-            if (isMetro(e.getBusName()))
-                return true;
+    // --- Combined Routes Logic (Enhanced Multi-Path) ---
+    private List<RouteResponse.CombinedRoute> findCombinedRoutes(Graph graph, int start, int end, int k,
+            DistanceMatrix bounds, SearchBudget budget, Consumer<RouteResponse.CombinedRoute> onFinal) {
+        // k-best label-setting search: itineraries arrive distinct and already ranked
+        // (metro first, then transfers, then stops), so only the top k are converted
+        Consumer<int[]> metroFound = onFinal == null
+                ? null
+                : path -> onFinal.accept(convertToCombinedRoute(graph, path, start));
+        TransferSearch search = takeSearch(graph);
+        List<int[]> paths;
+        try {
+            paths = search.search(start, end, k, bounds == null ? null : bounds.transfersTo(end), budget,
+                    metroFound);
+        } finally {
+            idleSearches.push(search);
         }
-        return false;
-    }
 
-    private List<Edge> findSimplePath(Graph graph, UUID start, UUID end) {
-        Queue<PathState> q = new LinkedList<>();
-        q.add(new PathState(start, new ArrayList<>()));
-        Set<UUID> visited = new HashSet<>();
-        visited.add(start);
+        List<RouteResponse.CombinedRoute> routes = new ArrayList<>(paths.size());
+        for (int[] path : paths) {
+            routes.add(convertToCombinedRoute(graph, path, start));
+        }
+        return routes;
+    }
 
-        while (!q.isEmpty()) {
-            PathState current = q.poll();
-            if (current.node.equals(end))
-                return current.path;
+    /**
+     * Combined routes from start to each of several destinations, from a
+     * single search tree.
+     */
+    private List<List<RouteResponse.CombinedRoute>> findCombinedRoutes(Graph graph, int start, int[] ends, int k,
+            DistanceMatrix bounds, SearchBudget budget) {
+        // k-best label-setting search: itineraries arrive distinct and already ranked
+        // (metro first, then transfers, then stops), so only the top k are converted
+        byte[][] transfersToEnds = null;
+        if (bounds != null) {
+            transfersToEnds = new byte[ends.length][];
+            for (int i = 0; i < ends.length; i++) {
+                transfersToEnds[i] = bounds.transfersTo(ends[i]);
+            }
+        }
+        TransferSearch search = takeSearch(graph);
+        List<List<int[]>> paths;
+        try {
+            paths = search.searchMany(start, ends, k, transfersToEnds, budget);
+        } finally {
+            idleSearches.push(search);
+        }
 
-            for (Edge e : graph.getNeighbors(current.node)) {
-                if (!visited.contains(e.getStopId())) {
-                    visited.add(e.getStopId());
-                    List<Edge> newPath = new ArrayList<>(current.path);
-                    newPath.add(e);
-                    q.add(new PathState(e.getStopId(), newPath));
-                }
+        List<List<RouteResponse.CombinedRoute>> routes = new ArrayList<>(ends.length);
+        for (List<int[]> destinationPaths : paths) {
+            List<RouteResponse.CombinedRoute> destinationRoutes = new ArrayList<>(destinationPaths.size());
+            for (int[] path : destinationPaths) {
+                destinationRoutes.add(convertToCombinedRoute(graph, path, start));
             }
+            routes.add(destinationRoutes);
         }
-        return null; // Path not found
+        return routes;
     }
 
-    private List<Edge> findMetroPath(Graph graph, UUID start, UUID end) {
-        // BFS strictly on Metro edges
-        Queue<PathState> q = new LinkedList<>();
-        q.add(new PathState(start, new ArrayList<>()));
-        Set<UUID> visited = new HashSet<>();
-        visited.add(start);
+    // --- Pareto Routes Logic (RAPTOR engine) ---
 
-        while (!q.isEmpty()) {
-            PathState current = q.poll();
-            if (current.node.equals(end)) {
-                return current.path;
+    /**
+     * Combined routes from the round-based router: the first k of the Pareto
+     * set over (transfers, stops, cost), already ordered by transfers, then stops.
+     *
+     * @param onFinal if not null, receives each of the first k journeys once
+     *                its round completes
+     */
+    private List<RouteResponse.CombinedRoute> findParetoRoutes(Graph graph, int start, int end, int k,
+            DistanceMatrix bounds, SearchBudget budget, Consumer<RouteResponse.CombinedRoute> onFinal) {
+        int[] reported = new int[1];
+        Consumer<Journey> journeyFinal = onFinal == null ? null : journey -> {
+            if (reported[0]++ < k) {
+                onFinal.accept(convertToCombinedRoute(graph, journey));
             }
-
-            for (Edge e : graph.getNeighbors(current.node)) {
-                if (isMetro(e.getBusName()) && !visited.contains(e.getStopId())) {
-                    visited.add(e.getStopId());
-                    List<Edge> newPath = new ArrayList<>(current.path);
-                    newPath.add(e);
-                    q.add(new PathState(e.getStopId(), newPath));
-                }
+        };
+        List<RouteResponse.CombinedRoute> routes = new ArrayList<>();
+        for (Journey journey : raptorRouter(graph).route(start, end, bounds, budget, journeyFinal)) {
+            if (routes.size() == k) {
+                break;
             }
+            routes.add(convertToCombinedRoute(graph, journey));
         }
-        return Collections.emptyList();
+        return routes;
     }
 
-    // Better structure classes
-    private static class MetroPathSegment {
-        UUID metroNode;
-        List<Edge> path;
+    // --- Transfer Lookup ---
 
-        public MetroPathSegment(UUID n, List<Edge> p) {
-            metroNode = n;
-            path = p;
+    /**
+     * O(1) lookup of the fewest transfers and stops between two stops.
+     */
+    public Map<String, Object> findTransferBounds(String originName, String destinationName) {
+        GraphSnapshot snapshot = graphService.getSnapshot();
+        DistanceMatrix matrix = snapshot.getDistanceMatrix();
+        Graph graph = snapshot.getGraph();
+        int startNode = graph.indexOf(originName);
+        int endNode = graph.indexOf(destinationName);
+
+        if (startNode < 0 || endNode < 0) {
+            throw new RouteNotFoundException(originName, destinationName);
         }
+
+        int minTransfers = matrix.minTransfers(startNode, endNode);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("source", originName);
+        result.put("destination", destinationName);
+        result.put("reachable", minTransfers != DistanceMatrix.UNREACHABLE);
+        result.put("minTransfers", minTransfers);
+        result.put("minStops", matrix.minStops(startNode, endNode));
+        return result;
     }
 
-    private static class PathState {
-        UUID node;
-        List<Edge> path;
+    // --- Reachability ---
+
+    /**
+     * Every stop reachable from the origin within the given limits, with the
+     * fewest transfers and the fewest stops needed to get there, ordered by
+     * transfers, then stops. Each limit applies to its own minimum; a null
+     * limit means no limit, and with neither given the transfer limit of the
+     * route search applies.
+     */
+    public List<ReachableStop> findReachableStops(String originName, Integer maxTransfers, Integer maxStops) {
+        Graph graph = graphService.getGraph();
+        int origin = graph.indexOf(originName);
+        if (origin < 0) {
+            throw new RouteNotFoundException("Unknown stop: " + originName);
+        }
+        if ((maxTransfers != null && maxTransfers < 0) || (maxStops != null && maxStops < 0)) {
+            throw new SutoException("Limits must not be negative");
+        }
+        if (maxTransfers == null && maxStops == null) {
+            maxTransfers = TransferSearch.MAX_TRANSFERS;
+        }
+
+        ReachabilitySweep sweep = new ReachabilitySweep(graph);
+        int[] transfers = sweep.transfersFrom(origin,
+                maxTransfers == null ? ReachabilitySweep.UNLIMITED : maxTransfers);
+        int[] stops = sweep.stopsFrom(origin, maxStops == null ? ReachabilitySweep.UNLIMITED : maxStops);
 
-        public PathState(UUID n, List<Edge> p) {
-            node = n;
-            path = p;
+        List<ReachableStop> reachable = new ArrayList<>();
+        for (int stop = 0; stop < graph.stopCount(); stop++) {
+            if (stop != origin && transfers[stop] != ReachabilitySweep.UNREACHABLE
+                    && stops[stop] != ReachabilitySweep.UNREACHABLE) {
+                reachable.add(new ReachableStop(graph.stopName(stop), transfers[stop], stops[stop]));
+            }
         }
+        reachable.sort(Comparator.comparingInt(ReachableStop::getTransfers)
+                .thenComparingInt(ReachableStop::getStops)
+                .thenComparing(ReachableStop::getName));
+        return reachable;
     }
 
-    private boolean hasCycle(List<Edge> path) {
-        // Simple cycle check
-        Set<UUID> visited = new HashSet<>();
-        // we need start node too.. passed separately?
-        // Actually, check edges target
-        for (Edge e : path) {
-            if (!visited.add(e.getStopId()))
-                return true;
+    /**
+     * @return a reusable search for the graph, to be pushed back onto
+     *         {@link #idleSearches} when done
+     */
+    private TransferSearch takeSearch(Graph graph) {
+        TransferSearch search = idleSearches.poll(); // Most recently used first, its arrays are warm
+        if (search == null || search.getGraph() != graph) {
+            // A new graph version usually keeps its stops and transports, and with them the arrays
+            search = new TransferSearch(graph, search);
         }
-        return false;
+        return search;
     }
 
-    private String getRouteSignature(RouteResponse.CombinedRoute r) {
-        StringBuilder sb = new StringBuilder();
-        for (RouteResponse.RouteLeg leg : r.getLegs()) {
-            sb.append(leg.getFrom()).append("->").append(leg.getTo()).append("|");
+    private RaptorRouter raptorRouter(Graph graph) {
+        RaptorRouter router = raptorRouter;
+        if (router == null || router.getGraph() != graph) {
+            router = new RaptorRouter(graph);
+            if (raptorRouter == null || raptorRouter.getGraph().getVersion() < graph.getVersion()) {
+                raptorRouter = router; // A query still on an older graph must not evict the newer one
+            }
         }
-        return sb.toString();
+        return router;
+    }
+
+    // --- Metro-First Logic ---
+
+    /**
+     * Metro-first itineraries combined from the metro access table: access to
+     * a station, a metro ride, egress from another station. Costs a few
+     * hundred table lookups instead of a search.
+     */
+    private List<RouteResponse.CombinedRoute> findMetroFirstRoutes(Graph graph, int start, int end, int k) {
+        List<RouteResponse.CombinedRoute> routes = new ArrayList<>();
+        for (int[] path : metroAccessTable(graph).metroFirst(start, end, k)) {
+            routes.add(convertToCombinedRoute(graph, path, start));
+        }
+        return routes;
+    }
+
+    private MetroAccessTable metroAccessTable(Graph graph) {
+        MetroAccessTable table = metroAccessTable;
+        if (table == null || table.getGraph() != graph) {
+            table = new MetroAccessTable(graph);
+            if (metroAccessTable == null || metroAccessTable.getGraph().getVersion() < graph.getVersion()) {
+                metroAccessTable = table; // A query still on an older graph must not evict the newer one
+            }
+        }
+        return table;
     }
 
     private boolean hasMetro(RouteResponse.CombinedRoute r) {
         for (RouteResponse.RouteLeg leg : r.getLegs()) {
-            if ("METRO".equals(leg.getTransportMode()))
+            if (MODE_METRO.equals(leg.getTransportMode()))
                 return true;
         }
         return false;
     }
 
-    private RouteResponse.CombinedRoute convertToCombinedRoute(Graph graph, List<Edge> pathEdges, UUID startNodeId) {
-        if (pathEdges.isEmpty())
+    private RouteResponse.CombinedRoute convertToCombinedRoute(Graph graph, int[] pathEdges, int startNodeId) {
+        if (pathEdges.length == 0)
             return null;
 
         List<RouteResponse.RouteLeg> legs = new ArrayList<>();
 
         // Group edges into legs
-        String currentTransport = pathEdges.get(0).getBusName();
-        UUID legStart = startNodeId;
+        int currentTransport = graph.transport(pathEdges[0]);
+        int legStart = startNodeId;
         int legStops = 0;
 
         // Track current node
-        UUID currentNodeId = startNodeId;
-
-        for (int i = 0; i < pathEdges.size(); i++) {
-            Edge edge = pathEdges.get(i);
+        int currentNodeId = startNodeId;
 
-            if (!edge.getBusName().equals(currentTransport)) {
+        for (int edge : pathEdges) {
+            if (graph.transport(edge) != currentTransport) {
                 // transport changed, close leg
-                RouteResponse.RouteLeg leg = new RouteResponse.RouteLeg();
-                leg.setFrom(graph.getStop(legStart).getName());
-                leg.setTo(graph.getStop(currentNodeId).getName());
-                leg.setTransportMode(isMetro(currentTransport) ? "METRO" : "BUS");
-                leg.setOptions(Collections.singletonList(currentTransport)); // Simplify for now
-                leg.setStopsCount(legStops);
-                legs.add(leg);
+                legs.add(createLeg(graph, legStart, currentNodeId, currentTransport, legStops));
 
                 // Start new leg
-                currentTransport = edge.getBusName();
+                currentTransport = graph.transport(edge);
                 legStart = currentNodeId;
                 legStops = 0;
             }
 
             legStops++;
-            currentNodeId = edge.getStopId(); // Move to next node
+            currentNodeId = graph.target(edge); // Move to next node
         }
 
         // Add final leg
-        RouteResponse.RouteLeg lastLeg = new RouteResponse.RouteLeg();
-        lastLeg.setFrom(graph.getStop(legStart).getName());
-        lastLeg.setTo(graph.getStop(currentNodeId).getName());
-        lastLeg.setTransportMode(isMetro(currentTransport) ? "METRO" : "BUS");
-        lastLeg.setOptions(Collections.singletonList(currentTransport));
-        lastLeg.setStopsCount(legStops);
-        legs.add(lastLeg);
+        legs.add(createLeg(graph, legStart, currentNodeId, currentTransport, legStops));
 
+        return createCombinedRoute(legs, pathEdges.length);
+    }
+
+    private RouteResponse.CombinedRoute convertToCombinedRoute(Graph graph, Journey journey) {
+        List<RouteResponse.RouteLeg> legs = new ArrayList<>();
+        for (int i = 0; i < journey.legCount(); i++) {
+            legs.add(createLeg(graph, journey.legFrom[i], journey.legTo[i], journey.legTransport[i],
+                    journey.legStops[i]));
+        }
+        return createCombinedRoute(legs, journey.totalStops);
+    }
+
+    private RouteResponse.CombinedRoute createCombinedRoute(List<RouteResponse.RouteLeg> legs, int totalStops) {
         RouteResponse.CombinedRoute route = new RouteResponse.CombinedRoute();
         route.setLegs(legs);
-        route.setTotalStops(pathEdges.size());
+        route.setTotalStops(totalStops);
         route.setTotalSteps(legs.size());
 
         // Construct description
@@ -518,60 +828,18 @@ public class PathFinderService {
         return route;
     }
 
-    private List<UUID> findPathByTransport(Graph graph, UUID start, UUID end, String transport) {
-        // BFS for single transport
-        Queue<List<UUID>> queue = new LinkedList<>();
-        queue.add(Collections.singletonList(start));
-        Set<UUID> visited = new HashSet<>();
-        visited.add(start);
-
-        while (!queue.isEmpty()) {
-            List<UUID> path = queue.poll();
-            UUID last = path.get(path.size() - 1);
-
-            if (last.equals(end))
-                return path;
-
-            for (Edge edge : graph.getNeighbors(last)) {
-                if (edge.getBusName().equals(transport) && !visited.contains(edge.getStopId())) {
-                    visited.add(edge.getStopId());
-                    List<UUID> newPath = new ArrayList<>(path);
-                    newPath.add(edge.getStopId());
-                    queue.add(newPath);
-                }
-            }
-        }
-        return Collections.emptyList();
-    }
-
-    private Set<String> getTransportsAtNode(Graph graph, UUID nodeId, boolean outgoing) {
-        Set<String> transports = new HashSet<>();
-        // In this undirected/bidirectional graph model, outgoing is sufficient
-        for (Edge e : graph.getNeighbors(nodeId)) {
-            transports.add(e.getBusName());
-        }
-        return transports;
-    }
-
-    private boolean isMetro(String name) {
-        return name != null && (name.contains("MRT") || name.contains("Metro"));
+    private RouteResponse.RouteLeg createLeg(Graph graph, int from, int to, int transport, int stops) {
+        String name = graph.transportName(transport);
+        RouteResponse.RouteLeg leg = new RouteResponse.RouteLeg();
+        leg.setFrom(graph.stopName(from));
+        leg.setTo(graph.stopName(to));
+        leg.setTransportMode(modeOf(graph, transport));
+        leg.setOptions(Collections.singletonList(name)); // Simplify for now
+        leg.setStopsCount(stops);
+        return leg;
     }
 
-    private static class State {
-        UUID nodeId;
-        String lastTransport;
-        int transfers;
-        List<Edge> path;
-
-        public State(UUID nodeId, String lastTransport, int cost, List<Edge> path) {
-            this(nodeId, lastTransport, path, 0); // Cost ignored
-        }
-
-        public State(UUID nodeId, String lastTransport, List<Edge> path, int transfers) {
-            this.nodeId = nodeId;
-            this.lastTransport = lastTransport;
-            this.path = path;
-            this.transfers = transfers;
-        }
+    private String modeOf(Graph graph, int transport) {
+        return graph.isMetroTransport(transport) ? MODE_METRO : MODE_BUS;
     }
 }
@@ -0,0 +1,313 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Round-based (RAPTOR style) router over the route patterns of a {@link Graph}.
+ *
+ * Round k scans every pattern that serves a stop improved in round k-1, so a
+ * journey found in round k uses exactly k legs. Each stop keeps a Pareto bag
+ * of labels over (stops, cost); since labels of earlier rounds have fewer
+ * transfers, the labels left at the destination are the Pareto set over
+ * (transfers, stops, cost) by construction.
+ *
+ * Patterns serving a stop come from the graph's line index, which also gives
+ * the stop's position so a pattern is scanned only from its earliest improved
+ * stop. The router is stateless and can be shared between threads; all
+ * per-query state lives in a {@link Query}.
+ */
+class RaptorRouter {
+
+    static final int MAX_ROUNDS = TransferSearch.MAX_TRANSFERS + 1;
+
+    private final Graph graph;
+
+    RaptorRouter(Graph graph) {
+        this.graph = graph;
+    }
+
+    Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @param bounds transfer and stop lower bounds for this graph, or null
+     * @param budget checked before every round; when it runs out the journeys
+     *               of the completed rounds are returned
+     * @return the Pareto-optimal journeys, ordered by transfers, stops, cost
+     */
+    List<Journey> route(int start, int end, DistanceMatrix bounds, SearchBudget budget) {
+        return route(start, end, bounds, budget, null);
+    }
+
+    /**
+     * @param journeyFinal if not null, receives the journeys of each round as
+     *                     soon as the round completes, in the order of the
+     *                     result; later rounds only add journeys with more
+     *                     legs, so these are final. They are also part of the
+     *                     result
+     */
+    List<Journey> route(int start, int end, DistanceMatrix bounds, SearchBudget budget,
+            Consumer<Journey> journeyFinal) {
+        if (start == end) {
+            return new ArrayList<>();
+        }
+        return new Query(start, end, bounds).run(budget, journeyFinal);
+    }
+
+    /**
+     * Per-query labels and marking state.
+     */
+    private class Query {
+
+        private static final int NO_LABEL = -1;
+        private static final int ANY_ROUND = -1;
+
+        private final int start;
+        private final int end;
+
+        // Lower bounds towards end, null when unavailable
+        private final byte[] transfersToEnd;
+        private final short[] stopsToEnd;
+
+        // Labels (parallel arrays, index = label id)
+        private int[] labelRound = new int[256];
+        private int[] labelStops = new int[256];
+        private double[] labelCost = new double[256];
+        private int[] labelParent = new int[256];
+        private int[] labelPattern = new int[256];
+        private int[] labelBoard = new int[256]; // absolute pattern position
+        private int[] labelAlight = new int[256];
+        private int[] labelNext = new int[256]; // next label in the same stop bag
+        private boolean[] labelDead = new boolean[256];
+        private int labelCount;
+
+        // Stop -> first label of its bag (all rounds)
+        private final int[] bagHead;
+
+        private boolean[] markedPrevious;
+        private boolean[] markedCurrent;
+        private final int[] scanFrom; // earliest marked position per pattern, -1 if not queued
+
+        // Labels currently riding the scanned pattern
+        private int[] rideStops = new int[16];
+        private double[] rideCost = new double[16];
+        private int[] rideParent = new int[16];
+        private int[] rideBoard = new int[16];
+        private int rideCount;
+
+        Query(int start, int end, DistanceMatrix bounds) {
+            this.start = start;
+            this.end = end;
+            this.transfersToEnd = bounds == null ? null : bounds.transfersTo(end);
+            this.stopsToEnd = bounds == null ? null : bounds.stopsTo(end);
+            int n = graph.stopCount();
+            this.bagHead = new int[n];
+            Arrays.fill(bagHead, NO_LABEL);
+            this.markedPrevious = new boolean[n];
+            this.markedCurrent = new boolean[n];
+            this.scanFrom = new int[graph.patternCount()];
+            Arrays.fill(scanFrom, -1);
+        }
+
+        List<Journey> run(SearchBudget budget, Consumer<Journey> journeyFinal) {
+            addLabel(start, 0, 0, 0, NO_LABEL, -1, -1, -1);
+            markedPrevious[start] = true;
+
+            for (int round = 1; round <= MAX_ROUNDS; round++) {
+                if (budget.shouldStop()) {
+                    break;
+                }
+                // Collect patterns serving stops improved in the previous round
+                List<Integer> queue = new ArrayList<>();
+                for (int s = 0; s < markedPrevious.length; s++) {
+                    if (!markedPrevious[s]) {
+                        continue;
+                    }
+                    markedPrevious[s] = false;
+                    for (int i = graph.postingStart(s); i < graph.postingEnd(s); i++) {
+                        int p = graph.postingPattern(i);
+                        int position = graph.postingPosition(i);
+                        if (scanFrom[p] < 0) {
+                            queue.add(p);
+                            scanFrom[p] = position;
+                        } else if (position < scanFrom[p]) {
+                            scanFrom[p] = position;
+                        }
+                    }
+                }
+                if (queue.isEmpty()) {
+                    break;
+                }
+
+                for (int p : queue) {
+                    scanPattern(p, scanFrom[p], round);
+                    scanFrom[p] = -1;
+                }
+
+                boolean[] swap = markedPrevious;
+                markedPrevious = markedCurrent;
+                markedCurrent = swap;
+
+                if (journeyFinal != null) {
+                    journeysToTarget(round).forEach(journeyFinal);
+                }
+            }
+
+            return journeysToTarget(ANY_ROUND);
+        }
+
+        private void scanPattern(int pattern, int from, int round) {
+            rideCount = 0;
+            for (int i = from; i < graph.patternEnd(pattern); i++) {
+                int stop = graph.patternStop(i);
+
+                // Ride one hop, then try to alight here
+                if (rideCount > 0) {
+                    double hop = graph.patternHopCost(i);
+                    for (int r = 0; r < rideCount; r++) {
+                        rideStops[r]++;
+                        rideCost[r] += hop;
+                    }
+                    for (int r = 0; r < rideCount; r++) {
+                        offer(stop, round, rideStops[r], rideCost[r], rideParent[r], pattern, rideBoard[r], i);
+                    }
+                }
+
+                // Board with every label that reached this stop in the previous round
+                for (int l = bagHead[stop]; l != NO_LABEL; l = labelNext[l]) {
+                    if (!labelDead[l] && labelRound[l] == round - 1) {
+                        board(labelStops[l], labelCost[l], l, i);
+                    }
+                }
+            }
+        }
+
+        private void offer(int stop, int round, int stops, double cost, int parent, int pattern, int board,
+                int alight) {
+            // Target pruning: nothing worse than a known journey is worth keeping
+            if (dominated(end, stops, cost) || dominated(stop, stops, cost)) {
+                return;
+            }
+            if (transfersToEnd != null && stop != end) {
+                // Going on from here takes at least one more leg
+                int transfers = transfersToEnd[stop];
+                if (transfers < 0 || round + transfers + 1 > MAX_ROUNDS
+                        || dominated(end, stops + stopsToEnd[stop], cost)) {
+                    return;
+                }
+            }
+            // Drop same-round labels the new one dominates (earlier rounds have fewer transfers)
+            for (int l = bagHead[stop]; l != NO_LABEL; l = labelNext[l]) {
+                if (!labelDead[l] && labelRound[l] == round && stops <= labelStops[l] && cost <= labelCost[l]) {
+                    labelDead[l] = true;
+                }
+            }
+            addLabel(stop, round, stops, cost, parent, pattern, board, alight);
+            markedCurrent[stop] = true;
+        }
+
+        private boolean dominated(int stop, int stops, double cost) {
+            for (int l = bagHead[stop]; l != NO_LABEL; l = labelNext[l]) {
+                if (!labelDead[l] && labelStops[l] <= stops && labelCost[l] <= cost) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void board(int stops, double cost, int parent, int position) {
+            for (int r = 0; r < rideCount; r++) {
+                if (rideStops[r] <= stops && rideCost[r] <= cost) {
+                    return; // Already riding with a better label
+                }
+            }
+            int kept = 0;
+            for (int r = 0; r < rideCount; r++) {
+                if (!(stops <= rideStops[r] && cost <= rideCost[r])) {
+                    rideStops[kept] = rideStops[r];
+                    rideCost[kept] = rideCost[r];
+                    rideParent[kept] = rideParent[r];
+                    rideBoard[kept] = rideBoard[r];
+                    kept++;
+                }
+            }
+            rideCount = kept;
+            if (rideCount == rideStops.length) {
+                int capacity = rideCount * 2;
+                rideStops = Arrays.copyOf(rideStops, capacity);
+                rideCost = Arrays.copyOf(rideCost, capacity);
+                rideParent = Arrays.copyOf(rideParent, capacity);
+                rideBoard = Arrays.copyOf(rideBoard, capacity);
+            }
+            rideStops[rideCount] = stops;
+            rideCost[rideCount] = cost;
+            rideParent[rideCount] = parent;
+            rideBoard[rideCount] = position;
+            rideCount++;
+        }
+
+        /**
+         * @param round the only round to return journeys of, or ANY_ROUND
+         */
+        private List<Journey> journeysToTarget(int round) {
+            List<Integer> targets = new ArrayList<>();
+            for (int l = bagHead[end]; l != NO_LABEL; l = labelNext[l]) {
+                if (!labelDead[l] && (round == ANY_ROUND || labelRound[l] == round)) {
+                    targets.add(l);
+                }
+            }
+            targets.sort(Comparator.comparingInt((Integer l) -> labelRound[l])
+                    .thenComparingInt(l -> labelStops[l])
+                    .thenComparingDouble(l -> labelCost[l]));
+
+            List<Journey> journeys = new ArrayList<>();
+            for (int target : targets) {
+                int legs = labelRound[target];
+                int[] from = new int[legs];
+                int[] to = new int[legs];
+                int[] transport = new int[legs];
+                int[] stops = new int[legs];
+                int leg = legs;
+                for (int l = target; labelRound[l] > 0; l = labelParent[l]) {
+                    leg--;
+                    from[leg] = graph.patternStop(labelBoard[l]);
+                    to[leg] = graph.patternStop(labelAlight[l]);
+                    transport[leg] = graph.patternTransport(labelPattern[l]);
+                    stops[leg] = labelAlight[l] - labelBoard[l];
+                }
+                journeys.add(new Journey(from, to, transport, stops, labelCost[target]));
+            }
+            return journeys;
+        }
+
+        private void addLabel(int stop, int round, int stops, double cost, int parent, int pattern, int board,
+                int alight) {
+            if (labelCount == labelRound.length) {
+                int capacity = labelCount * 2;
+                labelRound = Arrays.copyOf(labelRound, capacity);
+                labelStops = Arrays.copyOf(labelStops, capacity);
+                labelCost = Arrays.copyOf(labelCost, capacity);
+                labelParent = Arrays.copyOf(labelParent, capacity);
+                labelPattern = Arrays.copyOf(labelPattern, capacity);
+                labelBoard = Arrays.copyOf(labelBoard, capacity);
+                labelAlight = Arrays.copyOf(labelAlight, capacity);
+                labelNext = Arrays.copyOf(labelNext, capacity);
+                labelDead = Arrays.copyOf(labelDead, capacity);
+            }
+            int l = labelCount++;
+            labelRound[l] = round;
+            labelStops[l] = stops;
+            labelCost[l] = cost;
+            labelParent[l] = parent;
+            labelPattern[l] = pattern;
+            labelBoard[l] = board;
+            labelAlight[l] = alight;
+            labelNext[l] = bagHead[stop];
+            bagHead[stop] = l;
+        }
+    }
+}
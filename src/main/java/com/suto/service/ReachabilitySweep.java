@@ -0,0 +1,118 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import com.suto.util.IntStack;
+
+import java.util.Arrays;
+
+/**
+ * One-to-all sweeps from an origin: the fewest transfers and the fewest stops
+ * to every other stop, each cut off at a limit. Both are the forward
+ * counterparts of the per-destination rows of {@link DistanceMatrix}, so a
+ * whole reachability query costs about one route search.
+ */
+final class ReachabilitySweep {
+
+    static final int UNREACHABLE = DistanceMatrix.UNREACHABLE;
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final int NO_TRANSPORT = -1;
+
+    private final Graph graph;
+    private final int transportSlots;
+
+    ReachabilitySweep(Graph graph) {
+        this.graph = graph;
+        this.transportSlots = graph.transportCount() + 1;
+    }
+
+    /**
+     * 0-1 BFS over (stop, transport) states: boarding costs one leg, riding on
+     * along the same transport is free.
+     *
+     * @return the fewest transfers from origin to every stop, or
+     *         {@link #UNREACHABLE} where more than maxTransfers would be needed
+     */
+    int[] transfersFrom(int origin, int maxTransfers) {
+        int maxLegs = maxTransfers == UNLIMITED ? UNLIMITED : maxTransfers + 1;
+        int[] legs = new int[graph.stopCount() * transportSlots];
+        Arrays.fill(legs, UNLIMITED);
+        IntStack current = new IntStack();
+        IntStack next = new IntStack();
+
+        int root = state(origin, NO_TRANSPORT);
+        legs[root] = 0;
+        current.push(root);
+        int d = 0;
+        while (true) {
+            if (current.isEmpty()) {
+                if (next.isEmpty()) {
+                    break;
+                }
+                IntStack swap = current;
+                current = next;
+                next = swap;
+                d++;
+            }
+            int state = current.pop();
+            if (legs[state] != d) {
+                continue; // Reached with fewer legs already
+            }
+            int stop = state / transportSlots;
+            int riding = state % transportSlots - 1;
+            for (int e = graph.edgeStart(stop); e < graph.edgeEnd(stop); e++) {
+                int transport = graph.transport(e);
+                boolean boards = transport != riding;
+                int nextLegs = d + (boards ? 1 : 0);
+                int nextState = state(graph.target(e), transport);
+                if (nextLegs <= maxLegs && nextLegs < legs[nextState]) {
+                    legs[nextState] = nextLegs;
+                    (boards ? next : current).push(nextState);
+                }
+            }
+        }
+
+        int[] transfers = new int[graph.stopCount()];
+        for (int stop = 0; stop < transfers.length; stop++) {
+            int best = UNLIMITED;
+            for (int t = 0; t < transportSlots; t++) {
+                best = Math.min(best, legs[stop * transportSlots + t]);
+            }
+            transfers[stop] = best == UNLIMITED ? UNREACHABLE : Math.max(best - 1, 0);
+        }
+        return transfers;
+    }
+
+    /**
+     * Plain BFS over links.
+     *
+     * @return the fewest stops from origin to every stop, or
+     *         {@link #UNREACHABLE} where more than maxStops would be needed
+     */
+    int[] stopsFrom(int origin, int maxStops) {
+        int[] stops = new int[graph.stopCount()];
+        Arrays.fill(stops, UNREACHABLE);
+        SearchWorkspace workspace = SearchWorkspace.begin(graph);
+        workspace.visit(origin, -1, -1);
+        stops[origin] = 0;
+        workspace.enqueue(origin);
+        while (!workspace.isEmpty()) {
+            int stop = workspace.dequeue();
+            if (stops[stop] >= maxStops) {
+                continue;
+            }
+            for (int link = graph.linkStart(stop); link < graph.linkEnd(stop); link++) {
+                int next = graph.linkTarget(link);
+                if (workspace.visit(next, stop, graph.linkEdgeStart(link))) {
+                    stops[next] = stops[stop] + 1;
+                    workspace.enqueue(next);
+                }
+            }
+        }
+        return stops;
+    }
+
+    private int state(int stop, int transport) {
+        return stop * transportSlots + transport + 1;
+    }
+}
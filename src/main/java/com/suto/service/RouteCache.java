@@ -0,0 +1,259 @@
+package com.suto.service;
+
+import com.suto.dto.RouteResponse;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of route results keyed by (origin, destination, options).
+ *
+ * Stop names are matched case-insensitively, like {@link com.suto.model.Graph#indexOf(String)}.
+ * Every entry is tagged with the version of the graph it was computed on; an
+ * entry from an older graph is never returned, so publishing a new graph
+ * invalidates the whole cache at once, unless it is carried over with
+ * {@link #carryOver}. The cache is split into segments, each an
+ * access-ordered LRU map under its own lock, to keep contention low.
+ */
+public class RouteCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    // Newest graph version seen; older entries are purged when it changes
+    private final AtomicLong currentVersion = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RouteCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RouteCache(int capacity) {
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @return the cached response for this graph version, or null
+     */
+    public RouteResponse get(long version, String origin, String destination, String options) {
+        observe(version);
+        Key key = new Key(origin, destination, options);
+        Entry entry = segmentFor(key).get(key);
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    public void put(long version, String origin, String destination, String options, RouteResponse response) {
+        observe(version); // A first get on this version must not clear the entry as stale
+        if (version < currentVersion.get()) {
+            return; // Computed on a graph that was already replaced
+        }
+        Key key = new Key(origin, destination, options);
+        segmentFor(key).put(key, new Entry(version, response));
+    }
+
+    /**
+     * Moves the entries computed on {@code fromVersion} over to
+     * {@code toVersion}, except the ones riding any of the given transports,
+     * and drops everything else. Meant for a new graph that only lost edges,
+     * published right after: a route riding none of the transports that lost
+     * an edge still exists, and no better one can have appeared.
+     *
+     * @return the number of entries kept
+     */
+    public int carryOver(long fromVersion, long toVersion, Collection<String> transports) {
+        long seen;
+        do {
+            seen = currentVersion.get();
+        } while (seen < toVersion && !currentVersion.compareAndSet(seen, toVersion));
+
+        Set<String> affected = new HashSet<>(transports);
+        int kept = 0;
+        for (Segment segment : segments) {
+            kept += segment.carryOver(fromVersion, toVersion, affected);
+        }
+        return kept;
+    }
+
+    private static boolean rides(RouteResponse response, Set<String> transports) {
+        if (response.getDirectRoutes() != null) {
+            for (RouteResponse.DirectRoute route : response.getDirectRoutes()) {
+                if (transports.contains(route.getName())) {
+                    return true;
+                }
+            }
+        }
+        if (response.getCombinedRoutes() != null) {
+            for (RouteResponse.CombinedRoute route : response.getCombinedRoutes()) {
+                for (RouteResponse.RouteLeg leg : route.getLegs()) {
+                    for (String option : leg.getOptions()) {
+                        if (transports.contains(option)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size());
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("evictions", getEvictions());
+        stats.put("graphVersion", currentVersion.get());
+        return stats;
+    }
+
+    private void observe(long version) {
+        long seen = currentVersion.get();
+        if (version > seen && currentVersion.compareAndSet(seen, version)) {
+            // Stale entries can no longer be hit; drop them to free the memory
+            clear();
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Key {
+        private final String origin;
+        private final String destination;
+        private final String options;
+        private final int hash;
+
+        Key(String origin, String destination, String options) {
+            this.origin = normalize(origin);
+            this.destination = normalize(destination);
+            this.options = normalize(options);
+            this.hash = Objects.hash(this.origin, this.destination, this.options);
+        }
+
+        private static String normalize(String value) {
+            return value == null ? "" : value.toLowerCase();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && origin.equals(other.origin)
+                    && destination.equals(other.destination)
+                    && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final RouteResponse response;
+
+        Entry(long version, RouteResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<Key, Entry> map;
+
+        Segment(int capacity) {
+            this.map = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized Entry get(Key key) {
+            return map.get(key);
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            map.put(key, entry);
+        }
+
+        synchronized int carryOver(long fromVersion, long toVersion, Set<String> transports) {
+            int kept = 0;
+            Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> mapping = it.next();
+                Entry entry = mapping.getValue();
+                if (entry.version == fromVersion && !rides(entry.response, transports)) {
+                    mapping.setValue(new Entry(toVersion, entry.response));
+                    kept++;
+                } else {
+                    it.remove();
+                }
+            }
+            return kept;
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
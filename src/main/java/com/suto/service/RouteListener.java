@@ -0,0 +1,14 @@
+package com.suto.service;
+
+import com.suto.dto.RouteResponse;
+
+/**
+ * Receives the routes of a query as soon as each one is final, in the order
+ * they appear in the response: direct routes first, then combined routes.
+ */
+public interface RouteListener {
+
+    void onDirectRoute(RouteResponse.DirectRoute route);
+
+    void onCombinedRoute(RouteResponse.CombinedRoute route);
+}
@@ -0,0 +1,77 @@
+package com.suto.service;
+
+/**
+ * Latency budget shared by the sub-searches of one query.
+ *
+ * Searches poll {@link #shouldStop()} every few hundred steps and return what
+ * they have settled so far once the deadline passes or the budget is
+ * cancelled. Since both engines produce itineraries best first, a stopped
+ * search still returns the best routes it could find, only fewer of them.
+ */
+final class SearchBudget {
+
+    private static final SearchBudget UNLIMITED = new SearchBudget(Long.MAX_VALUE);
+
+    private final long deadline; // System.nanoTime() based
+    private volatile boolean cancelled;
+    private volatile boolean stopped;
+    private volatile boolean finished;
+
+    private SearchBudget(long deadline) {
+        this.deadline = deadline;
+    }
+
+    static SearchBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    static SearchBudget ofMillis(long millis) {
+        return new SearchBudget(System.nanoTime() + millis * 1_000_000L);
+    }
+
+    void cancel() {
+        if (this != UNLIMITED) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Stops the searches because the query already has every route it will
+     * return; unlike running out or being cancelled, this leaves it complete.
+     */
+    void finish() {
+        if (this != UNLIMITED) {
+            finished = true;
+        }
+    }
+
+    /**
+     * @return true if the caller should stop searching and return its partial result
+     */
+    boolean shouldStop() {
+        if (this == UNLIMITED) {
+            return false;
+        }
+        if (finished) {
+            return true;
+        }
+        if (cancelled || System.nanoTime() - deadline > 0) {
+            stopped = true;
+        }
+        return stopped;
+    }
+
+    /**
+     * @return true if any search gave up early, so the result is incomplete
+     */
+    boolean wasStopped() {
+        return stopped;
+    }
+
+    long remainingMillis() {
+        if (this == UNLIMITED) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1_000_000L);
+    }
+}
@@ -0,0 +1,101 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread state for breadth-first searches over a {@link Graph}.
+ *
+ * Visited marks are epoch stamps, so starting a search is O(1) instead of
+ * clearing an array. Paths are kept as predecessor links and only turned into
+ * edge arrays for the stops a caller actually wants, and the queue is a ring
+ * buffer sized so that every stop fits once.
+ */
+final class SearchWorkspace {
+
+    private static final ThreadLocal<SearchWorkspace> WORKSPACES = new ThreadLocal<>();
+
+    private final int[] visitedEpoch;
+    private final int[] parentStop;
+    private final int[] parentEdge;
+    private int epoch;
+
+    private final int[] queue;
+    private int head;
+    private int size;
+
+    private SearchWorkspace(int stopCount) {
+        this.visitedEpoch = new int[stopCount];
+        this.parentStop = new int[stopCount];
+        this.parentEdge = new int[stopCount];
+        this.queue = new int[Math.max(stopCount, 1)];
+    }
+
+    /**
+     * @return this thread's workspace, cleared for a new search on the graph
+     */
+    static SearchWorkspace begin(Graph graph) {
+        SearchWorkspace workspace = WORKSPACES.get();
+        if (workspace == null || workspace.visitedEpoch.length != graph.stopCount()) {
+            workspace = new SearchWorkspace(graph.stopCount());
+            WORKSPACES.set(workspace);
+        }
+        workspace.reset();
+        return workspace;
+    }
+
+    private void reset() {
+        head = 0;
+        size = 0;
+        if (++epoch == 0) {
+            Arrays.fill(visitedEpoch, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * Marks a stop as reached through an edge (-1 for the origin).
+     *
+     * @return false if the stop was already reached in this search
+     */
+    boolean visit(int stop, int fromStop, int viaEdge) {
+        if (visitedEpoch[stop] == epoch) {
+            return false;
+        }
+        visitedEpoch[stop] = epoch;
+        parentStop[stop] = fromStop;
+        parentEdge[stop] = viaEdge;
+        return true;
+    }
+
+    void enqueue(int stop) {
+        queue[(head + size++) % queue.length] = stop;
+    }
+
+    int dequeue() {
+        int stop = queue[head];
+        head = (head + 1) % queue.length;
+        size--;
+        return stop;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the edges from the origin to a visited stop
+     */
+    int[] pathTo(int stop) {
+        int length = 0;
+        for (int s = stop; parentEdge[s] >= 0; s = parentStop[s]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int s = stop; parentEdge[s] >= 0; s = parentStop[s]) {
+            path[--length] = parentEdge[s];
+        }
+        return path;
+    }
+}
@@ -0,0 +1,123 @@
+package com.suto.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Deterministic identifiers for stops, so they survive reloads and restarts.
+ *
+ * A stop is keyed by its network and lowercased name, the same key stops
+ * are looked up by. Its UUID is a name-based (type 3) UUID of that key, so
+ * bookings and anything else holding a stop id stay valid as long as the
+ * stop keeps its name. Each stop also gets a dense int id for array-indexed
+ * tables; ids are handed out in order of first sight and persisted, never
+ * reused, so a stop keeps its id even when stops are added, removed or
+ * reordered in the data file. {@link DistanceMatrix} matches stops by it to
+ * carry its rows over to a reloaded graph.
+ *
+ * The file is a JSON array of {@code network/name} keys, where the position
+ * is the id. A file with a key in any other form, or with a key listed
+ * twice, is rejected rather than given new ids.
+ */
+final class StopIdRegistry {
+
+    static final String DEFAULT_NETWORK = "suto";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path file;
+    private final List<String> keys;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int savedCount;
+
+    private StopIdRegistry(Path file, List<String> keys) {
+        this.file = file;
+        this.keys = keys;
+        for (int id = 0; id < keys.size(); id++) {
+            ids.put(keys.get(id), id);
+        }
+        this.savedCount = keys.size();
+    }
+
+    /**
+     * @return the registry persisted in a file, empty if the file does not exist yet
+     */
+    static StopIdRegistry load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new StopIdRegistry(file, new ArrayList<>());
+        }
+        List<String> keys = MAPPER.readValue(file.toFile(), new TypeReference<List<String>>() {
+        });
+        Set<String> seen = new HashSet<>();
+        for (int id = 0; id < keys.size(); id++) {
+            String key = keys.get(id);
+            int slash = key == null ? -1 : key.indexOf('/');
+            if (slash <= 0 || slash == key.length() - 1) {
+                throw new IOException(file + ": stop id " + id + " has key " + key + ", expected network/name");
+            }
+            if (!seen.add(key)) {
+                throw new IOException(file + ": key " + key + " is listed twice");
+            }
+        }
+        return new StopIdRegistry(file, new ArrayList<>(keys));
+    }
+
+    static UUID uuidFor(String network, String name) {
+        return UUID.nameUUIDFromBytes(key(network, name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the stop's dense id, assigning the next free one on first sight
+     */
+    int stableIdFor(String network, String name) {
+        String key = key(network, name);
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = keys.size();
+            keys.add(key);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the number of ids assigned since the last save
+     */
+    int unsavedCount() {
+        return keys.size() - savedCount;
+    }
+
+    /**
+     * Writes newly assigned ids, next to the file and moved into place.
+     */
+    void save() throws IOException {
+        if (unsavedCount() == 0) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        DefaultPrettyPrinter onePerLine = new DefaultPrettyPrinter()
+                .withArrayIndenter(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
+        MAPPER.writer(onePerLine).writeValue(temp.toFile(), keys);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedCount = keys.size();
+    }
+
+    private static String key(String network, String name) {
+        return network + "/" + name.toLowerCase();
+    }
+}
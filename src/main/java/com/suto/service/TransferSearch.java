@@ -0,0 +1,558 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import com.suto.util.LongHashSet;
+import com.suto.util.LongIntHashMap;
+import com.suto.util.LongMinHeap;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Transfer-minimizing k-best label-setting search over (stop, transport) states.
+ *
+ * Labels are settled in lexicographic (transfers, stops) order using a
+ * priority queue, like Dijkstra on a two-component cost. Each state keeps at
+ * most k labels, and a label is only kept if its sequence of transfer points
+ * differs from the labels already settled there (a later label with the same
+ * transfer points can only produce the same itinerary with more stops). The
+ * number of expansions is therefore bounded by states x k, so the work grows
+ * with the number of itineraries asked for.
+ *
+ * Whether an itinerary has used metro so far is part of the state, so metro
+ * and bus-only itineraries are ranked independently and a cheap bus-only
+ * label can never crowd out a metro alternative.
+ *
+ * One search can serve up to {@link #MAX_TARGETS} destinations from the same
+ * origin. Every label carries the set of destinations it is valid for, i.e.
+ * whose own one-to-one search would contain it too, and the per-state limit,
+ * the distinct-transfer-points rule and the pruning bounds are applied per
+ * destination. Each destination therefore gets exactly the itineraries a
+ * search to it alone would return, while labels shared between destinations
+ * are expanded once.
+ *
+ * An instance is meant to be reused for many searches on the same graph,
+ * one at a time: per-state counters are epoch stamped and the label arrays,
+ * queue and signature set are kept, so a search allocates only its results.
+ */
+class TransferSearch {
+
+    static final int MAX_TRANSFERS = 5;
+    static final int DEFAULT_K = 5;
+
+    // Destinations per search tree, one bit each in a label's target set
+    static final int MAX_TARGETS = Long.SIZE;
+
+    private static final int NO_TRANSPORT = -1;
+    private static final int NO_LABEL = -1;
+    private static final int NO_ENTRY = -1;
+    private static final int ROOT_SEQUENCE = 0; // just the origin
+
+    private final Graph graph;
+    private final int transportSlots;
+
+    // Label storage (parallel arrays, index = label id)
+    private int[] labelEdge = new int[1024]; // edge used to arrive, -1 at the origin
+    private int[] labelParent = new int[1024];
+    private int[] labelState = new int[1024];
+    private int[] labelPrefix = new int[1024]; // id of the transfer points so far
+    private long[] labelTargets = new long[1024]; // destinations the label is valid for
+    private int labelCount;
+
+    // Per-state settled labels, valid only where settledEpoch matches epoch. A
+    // state gets a block of k slots in a shared pool when it settles its first
+    // label in a search, so the pool grows with the states a search reaches,
+    // not with all of them. Trees with several destinations can settle more
+    // than k labels at a state, which go to linked overflow entries.
+    private final int[] settledEpoch;
+    private final int[] settledCount;
+    private final long[] settledFull; // destinations that already have k labels at the state
+    private final int[] settledOverflow;
+    private final int[] settledBlock; // start of the state's block in the pool
+    private int[] blockPrefix = new int[1024];
+    private long[] blockTargets = new long[1024]; // only kept for multi-destination trees
+    private int blockUsed;
+    private int[] entryPrefix = new int[64];
+    private long[] entryTargets = new long[64];
+    private int[] entryNext = new int[64];
+    private int entryCount;
+    private boolean singleTarget;
+    private int epoch;
+    private int k;
+
+    private final LongMinHeap queue = new LongMinHeap(1024);
+    private final LongHashSet seenSignatures = new LongHashSet();
+
+    // Transfer point sequences, numbered exactly: (parent sequence, stop) -> id
+    private final LongIntHashMap sequences = new LongIntHashMap();
+    private int sequenceCount;
+    private final int[] counts = new int[MAX_TARGETS];
+
+    // Destination bit of each stop in the current search, -1 elsewhere
+    private final int[] targetOf;
+    // Destinations within r transfers of each stop, at [stop * (MAX_TRANSFERS + 1) + r]
+    private final long[] withinTransfers;
+
+    TransferSearch(Graph graph) {
+        this(graph, null);
+    }
+
+    /**
+     * A search for a new version of the graph the previous search was made
+     * for. If the stops and transports are the same, the per-state arrays
+     * are taken over instead of being allocated again; the previous search
+     * must not be used any more.
+     */
+    TransferSearch(Graph graph, TransferSearch previous) {
+        this.graph = graph;
+        this.transportSlots = graph.transportCount() + 1;
+        int states = graph.stopCount() * transportSlots * 2;
+        if (previous != null && previous.settledEpoch.length == states
+                && previous.targetOf.length == graph.stopCount()) {
+            // Epochs carry on, so the previous search's stamps stay stale
+            this.settledEpoch = previous.settledEpoch;
+            this.settledCount = previous.settledCount;
+            this.settledFull = previous.settledFull;
+            this.settledOverflow = previous.settledOverflow;
+            this.settledBlock = previous.settledBlock;
+            this.blockPrefix = previous.blockPrefix;
+            this.blockTargets = previous.blockTargets;
+            this.epoch = previous.epoch;
+            this.targetOf = previous.targetOf;
+            this.withinTransfers = previous.withinTransfers;
+            return;
+        }
+        this.settledEpoch = new int[states];
+        this.settledCount = new int[states];
+        this.settledFull = new long[states];
+        this.settledOverflow = new int[states];
+        this.settledBlock = new int[states];
+        this.targetOf = new int[graph.stopCount()];
+        Arrays.fill(targetOf, -1);
+        this.withinTransfers = new long[graph.stopCount() * (MAX_TRANSFERS + 1)];
+    }
+
+    Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Finds the k best distinct itineraries from start to end: metro
+     * itineraries first, then bus-only ones, each in (transfers, stops) order.
+     * Stops as soon as k metro itineraries were found, since those always rank
+     * first; bus-only itineraries past the k-th are not even reconstructed.
+     *
+     * @param transfersToEnd lower bounds on the transfers from each stop to end,
+     *                       or null to search without them
+     * @param budget         checked periodically; when it runs out the
+     *                       itineraries found so far are returned
+     * @return itineraries as arrays of edge indices
+     */
+    List<int[]> search(int start, int end, int k, byte[] transfersToEnd, SearchBudget budget) {
+        return search(start, end, k, transfersToEnd, budget, null);
+    }
+
+    /**
+     * Like {@link #search(int, int, int, byte[], SearchBudget)}, additionally
+     * handing each metro itinerary to metroFound as soon as it is settled.
+     * Those always rank first, so they are passed on in their final order.
+     */
+    List<int[]> search(int start, int end, int k, byte[] transfersToEnd, SearchBudget budget,
+            Consumer<int[]> metroFound) {
+        byte[][] bounds = transfersToEnd == null ? null : new byte[][]{transfersToEnd};
+        return searchTree(start, new int[]{end}, k, bounds, budget, metroFound).get(0);
+    }
+
+    /**
+     * One-to-many variant of {@link #search}: every destination gets the same
+     * itineraries as a search to it alone, but destinations are answered
+     * {@link #MAX_TARGETS} at a time from a shared search tree.
+     *
+     * @param transfersToEnds per destination, lower bounds on the transfers
+     *                        from each stop to it, or null to search without them
+     * @return per destination, in the order given, its itineraries as arrays of edge indices
+     */
+    List<List<int[]>> searchMany(int start, int[] ends, int k, byte[][] transfersToEnds, SearchBudget budget) {
+        List<List<int[]>> results = new ArrayList<>(ends.length);
+        for (int from = 0; from < ends.length; from += MAX_TARGETS) {
+            int to = Math.min(ends.length, from + MAX_TARGETS);
+            results.addAll(searchTree(start, Arrays.copyOfRange(ends, from, to), k,
+                    transfersToEnds == null ? null : Arrays.copyOfRange(transfersToEnds, from, to), budget,
+                    null));
+        }
+        return results;
+    }
+
+    private List<List<int[]>> searchTree(int start, int[] ends, int k, byte[][] transfersToEnds,
+            SearchBudget budget, Consumer<int[]> metroFound) {
+        int targets = ends.length;
+        List<List<int[]>> metroResults = new ArrayList<>(targets);
+        List<List<int[]>> busResults = new ArrayList<>(targets);
+        for (int t = 0; t < targets; t++) {
+            metroResults.add(new ArrayList<>());
+            busResults.add(new ArrayList<>());
+        }
+
+        reset(k);
+
+        long pending = 0;
+        for (int t = 0; t < targets; t++) {
+            if (ends[t] != start && targetOf[ends[t]] < 0) {
+                targetOf[ends[t]] = t;
+                pending |= 1L << t;
+            }
+        }
+
+        singleTarget = Long.bitCount(pending) == 1;
+        try {
+            if (pending != 0) {
+                initBounds(ends, pending, transfersToEnds);
+                run(start, pending, transfersToEnds != null, budget, metroFound, metroResults, busResults);
+            }
+        } finally {
+            for (int end : ends) {
+                targetOf[end] = -1;
+            }
+        }
+
+        List<List<int[]>> results = new ArrayList<>(targets);
+        for (int t = 0; t < targets; t++) {
+            // A destination listed twice shares the results of its first entry
+            int first = firstIndexOf(ends, t);
+            List<int[]> ranked = new ArrayList<>(metroResults.get(first));
+            ranked.addAll(busResults.get(first));
+            results.add(ranked.subList(0, Math.min(k, ranked.size())));
+        }
+        return results;
+    }
+
+    private void run(int start, long pending, boolean bounded, SearchBudget budget, Consumer<int[]> metroFound,
+                     List<List<int[]>> metroResults, List<List<int[]>> busResults) {
+        int root = addLabel(-1, NO_LABEL, state(start, NO_TRANSPORT, false), ROOT_SEQUENCE, pending);
+        queue.push(key(0, 0, root));
+
+        int pops = 0;
+        while (!queue.isEmpty()) {
+            if ((++pops & 0xFF) == 0 && budget.shouldStop()) {
+                break;
+            }
+            long key = queue.pop();
+            int label = (int) key;
+            int transfers = (int) (key >>> 56);
+            int stops = (int) ((key >>> 32) & 0xFFFFFF);
+
+            long targets = labelTargets[label] & pending;
+            if (targets == 0) {
+                continue; // Every destination it was kept for is done
+            }
+            int state = labelState[label];
+            int stop = stopOf(label, start);
+
+            int target = targetOf[stop];
+            long targetBit = target < 0 ? 0 : 1L << target;
+            if ((targets & targetBit) != 0) {
+                // Distinct itineraries differ in their transfer points;
+                // the first one settled has the fewest stops. The destination
+                // slot keeps the signatures of different destinations apart.
+                long signature = ((long) labelPrefix[label] << 6) | target;
+                if (seenSignatures.add(signature)) {
+                    if ((state & 1) == 1) {
+                        List<int[]> metro = metroResults.get(target);
+                        int[] found = path(label);
+                        metro.add(found);
+                        if (metroFound != null) {
+                            metroFound.accept(found);
+                        }
+                        if (metro.size() >= k) {
+                            pending &= ~targetBit;
+                            if (pending == 0) {
+                                break;
+                            }
+                        }
+                    } else if (busResults.get(target).size() < k) {
+                        busResults.get(target).add(path(label));
+                    }
+                }
+                // Don't extend paths beyond their destination
+                targets &= ~targetBit & pending;
+            }
+
+            targets = settle(state, labelPrefix[label], targets);
+            if (targets == 0) {
+                continue;
+            }
+
+            int lastTransport = (state >> 1) % transportSlots - 1;
+            boolean usedMetro = (state & 1) == 1;
+
+            for (int link = graph.linkStart(stop); link < graph.linkEnd(stop); link++) {
+                // Checks that only depend on the neighbour are done once per link,
+                // not once per transport running along it
+                int next = graph.linkTarget(link);
+                if (next == start) {
+                    continue;
+                }
+                boolean canStayOn = lastTransport == NO_TRANSPORT || graph.linkServes(link, lastTransport);
+                long linkTargets = bounded
+                        ? targets & reachable(next, transfers + (canStayOn ? 0 : 1))
+                        : targets;
+                if (linkTargets == 0) {
+                    continue; // Cannot reach any destination within the transfer limit
+                }
+                if (onPath(label, next)) {
+                    continue; // Keep itineraries loopless
+                }
+                int nextTarget = targetOf[next];
+                long nextTargetBit = nextTarget < 0 ? 0 : 1L << nextTarget;
+
+                for (int edge = graph.linkEdgeStart(link); edge < graph.linkEdgeEnd(link); edge++) {
+                    int transport = graph.transport(edge);
+                    boolean isTransfer = lastTransport != NO_TRANSPORT && lastTransport != transport;
+                    int newTransfers = transfers + (isTransfer ? 1 : 0);
+                    long childTargets = bounded ? linkTargets & reachable(next, newTransfers) : linkTargets;
+
+                    int nextState = state(next, transport, usedMetro || graph.isMetroTransport(transport));
+                    // Arriving at a destination is recorded even where the state is full
+                    childTargets &= ~(full(nextState) & ~nextTargetBit);
+                    if (childTargets == 0) {
+                        continue;
+                    }
+
+                    int prefix = (lastTransport == transport) ? labelPrefix[label] : sequence(labelPrefix[label], stop);
+                    int child = addLabel(edge, label, nextState, prefix, childTargets);
+                    queue.push(key(newTransfers, stops + 1, child));
+                }
+            }
+        }
+    }
+
+    private static int firstIndexOf(int[] ends, int i) {
+        for (int j = 0; j < i; j++) {
+            if (ends[j] == ends[i]) {
+                return j;
+            }
+        }
+        return i;
+    }
+
+    private void initBounds(int[] ends, long pending, byte[][] transfersToEnds) {
+        if (transfersToEnds == null) {
+            return;
+        }
+        int width = MAX_TRANSFERS + 1;
+        Arrays.fill(withinTransfers, 0);
+        for (int t = 0; t < ends.length; t++) {
+            if ((pending & (1L << t)) == 0) {
+                continue;
+            }
+            byte[] row = transfersToEnds[t];
+            for (int v = 0; v < row.length; v++) {
+                if (row[v] >= 0 && row[v] <= MAX_TRANSFERS) {
+                    withinTransfers[v * width + row[v]] |= 1L << t;
+                }
+            }
+        }
+        for (int v = 0; v < graph.stopCount(); v++) {
+            for (int r = 1; r < width; r++) {
+                withinTransfers[v * width + r] |= withinTransfers[v * width + r - 1];
+            }
+        }
+    }
+
+    /**
+     * @return the destinations still reachable from a stop reached with this many transfers
+     */
+    private long reachable(int stop, int transfers) {
+        int slack = MAX_TRANSFERS - transfers;
+        return slack < 0 ? 0 : withinTransfers[stop * (MAX_TRANSFERS + 1) + slack];
+    }
+
+    private void reset(int k) {
+        this.k = k;
+        labelCount = 0;
+        entryCount = 0;
+        blockUsed = 0;
+        queue.clear();
+        seenSignatures.clear();
+        sequences.clear();
+        sequenceCount = ROOT_SEQUENCE + 1;
+        if (++epoch == 0) {
+            // Wrapped around: stale stamps could match again
+            Arrays.fill(settledEpoch, 0);
+            epoch = 1;
+        }
+    }
+
+    private long full(int state) {
+        return settledEpoch[state] == epoch ? settledFull[state] : 0;
+    }
+
+    /**
+     * Settles a label at a state for those of its destinations that have
+     * fewer than k labels there and none with the same transfer points.
+     *
+     * @return the destinations the label was settled for
+     */
+    private long settle(int state, int prefix, long targets) {
+        if (settledEpoch[state] != epoch) {
+            settledEpoch[state] = epoch;
+            settledCount[state] = 0;
+            settledFull[state] = 0;
+            settledOverflow[state] = NO_ENTRY;
+            settledBlock[state] = addBlock();
+        }
+        targets &= ~settledFull[state];
+        if (targets == 0) {
+            return 0;
+        }
+        int count = settledCount[state];
+        int base = settledBlock[state];
+        int inline = Math.min(count, k);
+
+        if (singleTarget) {
+            // Every label is for the one destination: fewer than k settled here
+            for (int i = 0; i < inline; i++) {
+                if (blockPrefix[base + i] == prefix) {
+                    return 0;
+                }
+            }
+            blockPrefix[base + count] = prefix;
+            settledCount[state] = count + 1;
+            if (count + 1 >= k) {
+                settledFull[state] = targets;
+            }
+            return targets;
+        }
+
+        long duplicate = 0;
+        for (int i = 0; i < inline; i++) {
+            duplicate |= countShared(blockPrefix[base + i], blockTargets[base + i], prefix, targets);
+        }
+        for (int e = settledOverflow[state]; e != NO_ENTRY; e = entryNext[e]) {
+            duplicate |= countShared(entryPrefix[e], entryTargets[e], prefix, targets);
+        }
+
+        // Mark the destinations that now have k labels here
+        long settled = targets & ~duplicate;
+        for (long bits = targets; bits != 0; bits &= bits - 1) {
+            int t = Long.numberOfTrailingZeros(bits);
+            if ((settled & (1L << t)) != 0 && counts[t] + 1 >= k) {
+                settledFull[state] |= 1L << t;
+            }
+            counts[t] = 0;
+        }
+        if (settled != 0) {
+            if (count < k) {
+                blockPrefix[base + count] = prefix;
+                blockTargets[base + count] = settled;
+            } else {
+                settledOverflow[state] = addEntry(prefix, settled, settledOverflow[state]);
+            }
+            settledCount[state] = count + 1;
+        }
+        return settled;
+    }
+
+    /**
+     * Counts a settled label for the destinations it shares with a new one.
+     *
+     * @return those destinations if both have the same transfer points, else none
+     */
+    private long countShared(int settledPrefix, long settledTargets, int prefix, long targets) {
+        long shared = settledTargets & targets;
+        for (long bits = shared; bits != 0; bits &= bits - 1) {
+            counts[Long.numberOfTrailingZeros(bits)]++;
+        }
+        return settledPrefix == prefix ? shared : 0;
+    }
+
+    /**
+     * @return the start of k fresh slots in the block pool
+     */
+    private int addBlock() {
+        if (blockUsed + k > blockPrefix.length) {
+            int capacity = Math.max(blockPrefix.length * 2, blockUsed + k);
+            blockPrefix = Arrays.copyOf(blockPrefix, capacity);
+            blockTargets = Arrays.copyOf(blockTargets, capacity);
+        }
+        int start = blockUsed;
+        blockUsed += k;
+        return start;
+    }
+
+    private int addEntry(int prefix, long targets, int next) {
+        if (entryCount == entryPrefix.length) {
+            int capacity = entryCount * 2;
+            entryPrefix = Arrays.copyOf(entryPrefix, capacity);
+            entryTargets = Arrays.copyOf(entryTargets, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        entryPrefix[entryCount] = prefix;
+        entryTargets[entryCount] = targets;
+        entryNext[entryCount] = next;
+        return entryCount++;
+    }
+
+    private boolean onPath(int label, int stop) {
+        for (int l = label; l != NO_LABEL && labelEdge[l] >= 0; l = labelParent[l]) {
+            if (graph.target(labelEdge[l]) == stop) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] path(int label) {
+        int length = 0;
+        for (int l = label; labelEdge[l] >= 0; l = labelParent[l]) {
+            length++;
+        }
+        int[] edges = new int[length];
+        for (int l = label; labelEdge[l] >= 0; l = labelParent[l]) {
+            edges[--length] = labelEdge[l];
+        }
+        return edges;
+    }
+
+    private int stopOf(int label, int start) {
+        int edge = labelEdge[label];
+        return edge < 0 ? start : graph.target(edge);
+    }
+
+    private int state(int stop, int transport, boolean metro) {
+        return ((stop * transportSlots + transport + 1) << 1) | (metro ? 1 : 0);
+    }
+
+    /**
+     * @return the id of a parent's transfer points followed by one more stop;
+     *         equal ids mean equal sequences, unlike a hash
+     */
+    private int sequence(int parent, int stop) {
+        int id = sequences.putIfAbsent(((long) parent << 32) | stop, sequenceCount);
+        if (id == sequenceCount) {
+            sequenceCount++;
+        }
+        return id;
+    }
+
+    private static long key(int transfers, int stops, int label) {
+        return ((long) transfers << 56) | ((long) stops << 32) | label;
+    }
+
+    private int addLabel(int edge, int parent, int state, int prefix, long targets) {
+        if (labelCount == labelEdge.length) {
+            int capacity = labelCount * 2;
+            labelEdge = Arrays.copyOf(labelEdge, capacity);
+            labelParent = Arrays.copyOf(labelParent, capacity);
+            labelState = Arrays.copyOf(labelState, capacity);
+            labelPrefix = Arrays.copyOf(labelPrefix, capacity);
+            labelTargets = Arrays.copyOf(labelTargets, capacity);
+        }
+        labelEdge[labelCount] = edge;
+        labelParent[labelCount] = parent;
+        labelState[labelCount] = state;
+        labelPrefix[labelCount] = prefix;
+        labelTargets[labelCount] = targets;
+        return labelCount++;
+    }
+}
@@ -0,0 +1,95 @@
+package com.suto.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Global cap on requests in flight that adapts to their latency (AIMD).
+ *
+ * While requests finish within the target latency and the cap is actually
+ * in use, it grows by about one per cap's worth of completions (additive
+ * increase). A request slower than the target cuts it by a tenth
+ * (multiplicative decrease), at most once per target interval, so one slow
+ * burst does not collapse it. The cap stays within [min, max]. Requests over
+ * the cap are refused at once, which turns overload into fast rejections
+ * instead of queueing that pushes every request past the target.
+ */
+public final class AdaptiveConcurrencyLimit {
+
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+
+    // Guarded by this
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long rejected;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long targetMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lastDecrease = System.nanoTime() - targetNanos;
+    }
+
+    /**
+     * @return a limit configured by the {@code suto.admission.*} system properties
+     */
+    public static AdaptiveConcurrencyLimit fromSystemProperties() {
+        return new AdaptiveConcurrencyLimit(
+                Integer.getInteger("suto.admission.initialLimit", 32),
+                Integer.getInteger("suto.admission.minLimit", 4),
+                Integer.getInteger("suto.admission.maxLimit", 256),
+                Long.getLong("suto.admission.targetMillis", 1000));
+    }
+
+    /**
+     * @return true if the request may start; it must then be ended with
+     *         {@link #release} or {@link #cancel}
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Ends a request admitted at {@code startNanos} and adapts the cap to its latency.
+     */
+    public synchronized void release(long startNanos) {
+        long now = System.nanoTime();
+        if (now - startNanos > targetNanos) {
+            if (now - lastDecrease >= targetNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (inFlight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        inFlight--;
+    }
+
+    /**
+     * Ends a request that never ran, without a latency sample.
+     */
+    public synchronized void cancel() {
+        inFlight--;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("limit", (int) limit);
+        stats.put("inFlight", inFlight);
+        stats.put("targetMillis", TimeUnit.NANOSECONDS.toMillis(targetNanos));
+        stats.put("rejected", rejected);
+        return stats;
+    }
+}
@@ -0,0 +1,27 @@
+package com.suto.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable stack of primitive ints, used as a bucket by breadth-first searches.
+ */
+public class IntStack {
+
+    private int[] values = new int[64];
+    private int size;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void push(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int pop() {
+        return values[--size];
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,6 +47,13 @@ public class JsonFileService {
         return new File(DATA_DIRECTORY, filename);
     }
 
+    /**
+     * @return where a data file lives, whether or not it exists yet
+     */
+    public Path getPath(String fileName) {
+        return getFilePath(fileName).toPath();
+    }
+
     public <T> List<T> readList(String fileName, TypeReference<List<T>> typeReference) {
         File file = getFilePath(fileName);
         if (!file.exists()) {
@@ -60,12 +68,7 @@ public class JsonFileService {
     }
 
     public <T> void writeList(String fileName, List<T> data) {
-        File file = getFilePath(fileName);
-        try {
-            objectMapper.writerWithDefaultPrettyPrinter().writeValue(file, data);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write to " + fileName, e);
-        }
+        writeAtomically(fileName, data);
     }
 
     public <T> T readObject(String fileName, Class<T> clazz) {
@@ -85,9 +88,20 @@ public class JsonFileService {
     }
 
     public <T> void writeObject(String fileName, T data) {
+        writeAtomically(fileName, data);
+    }
+
+    /**
+     * Writes next to the file and moves it into place, so concurrent readers
+     * see either the old or the new content, never a partly written file.
+     */
+    private void writeAtomically(String fileName, Object data) {
         File file = getFilePath(fileName);
+        File temp = new File(file.getParentFile(), fileName + ".tmp");
         try {
-            objectMapper.writerWithDefaultPrettyPrinter().writeValue(file, data);
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp, data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             throw new RuntimeException("Failed to write to " + fileName, e);
         }
@@ -0,0 +1,72 @@
+package com.suto.util;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of primitive longs.
+ * Used as a priority queue by route searches that pack their sort key and a
+ * label index into a single long, so no boxing happens on the hot path.
+ */
+public class LongMinHeap {
+
+    private long[] heap;
+    private int size;
+
+    public LongMinHeap() {
+        this(256);
+    }
+
+    public LongMinHeap(int initialCapacity) {
+        this.heap = new long[Math.max(initialCapacity, 16)];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void push(long value) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    public long pop() {
+        long top = heap[0];
+        long last = heap[--size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (size > 0) {
+            heap[i] = last;
+        }
+        return top;
+    }
+}
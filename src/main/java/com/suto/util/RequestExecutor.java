@@ -0,0 +1,182 @@
+package com.suto.util;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs HTTP exchanges for the server, so one slow request (a BCrypt login, a
+ * bookings file rewrite) does not hold up every other request behind it.
+ *
+ * Three modes, chosen with the {@code suto.executor} system property:
+ * <ul>
+ * <li>{@code pool}: a bounded pool of {@code suto.executor.threads} platform
+ * threads with a queue of {@code suto.executor.queue} requests. When the
+ * queue is full the dispatcher thread runs the request itself, which slows
+ * down accepting new connections rather than dropping any. The default.</li>
+ * <li>{@code virtual}: a virtual thread per request (Java 21 and later;
+ * falls back to {@code pool} on older runtimes). Nothing bounds the number
+ * of requests in flight, so anything kept per thread is allocated again for
+ * every request; route searches therefore share their search state through
+ * a pool in {@code PathFinderService} instead of keeping it per thread.</li>
+ * <li>{@code dispatcher}: everything on the server's dispatcher thread, as
+ * before.</li>
+ * </ul>
+ * Every mode keeps active and queued request gauges for {@link #getStats}.
+ */
+public final class RequestExecutor implements Executor {
+
+    public enum Mode {
+        VIRTUAL, POOL, DISPATCHER
+    }
+
+    public static final int DEFAULT_QUEUE = 256;
+
+    private final Mode mode;
+    private final ExecutorService delegate; // null when running on the dispatcher
+    private final int threads;
+    private final int queueCapacity;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    private RequestExecutor(Mode mode, ExecutorService virtual, int threads, int queueCapacity) {
+        this.mode = mode;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        if (mode == Mode.POOL) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), namedThreads(), (task, executor) -> {
+                        overflowed.increment();
+                        task.run(); // Back-pressure: the dispatcher serves this one itself
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.delegate = pool;
+        } else {
+            this.delegate = virtual;
+        }
+    }
+
+    /**
+     * @return the executor configured by the {@code suto.executor*} system properties
+     */
+    public static RequestExecutor fromSystemProperties() {
+        String mode = System.getProperty("suto.executor", "pool");
+        int threads = Integer.getInteger("suto.executor.threads", defaultThreads());
+        int queue = Integer.getInteger("suto.executor.queue", DEFAULT_QUEUE);
+        return create(Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT)), threads, queue);
+    }
+
+    public static RequestExecutor create(Mode mode, int threads, int queueCapacity) {
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return new RequestExecutor(Mode.VIRTUAL, virtual, 0, 0);
+            }
+            System.err.println("Virtual threads need Java 21, using a pool of " + threads + " threads");
+            mode = Mode.POOL;
+        }
+        return new RequestExecutor(mode, null, threads, queueCapacity);
+    }
+
+    @Override
+    public void execute(Runnable exchange) {
+        queued.incrementAndGet();
+        Runnable task = () -> {
+            queued.decrementAndGet();
+            peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                exchange.run();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+            }
+        };
+        if (delegate == null) {
+            task.run();
+        } else {
+            delegate.execute(task);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return requests being handled right now
+     */
+    public int activeCount() {
+        return active.get();
+    }
+
+    /**
+     * @return requests accepted but not yet started
+     */
+    public int queuedCount() {
+        return queued.get();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", mode.name().toLowerCase(Locale.ROOT));
+        if (mode == Mode.POOL) {
+            stats.put("threads", threads);
+            stats.put("queueCapacity", queueCapacity);
+            stats.put("overflowed", overflowed.sum());
+        }
+        stats.put("active", active.get());
+        stats.put("peakActive", peakActive.get());
+        stats.put("queued", queued.get());
+        stats.put("completed", completed.sum());
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return switch (mode) {
+            case VIRTUAL -> "a virtual thread per request";
+            case POOL -> "a pool of " + threads + " threads (queue " + queueCapacity + ")";
+            case DISPATCHER -> "the dispatcher thread";
+        };
+    }
+
+    private static int defaultThreads() {
+        // Requests mostly wait on files or burn CPU on BCrypt, so allow some oversubscription
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    private static ThreadFactory namedThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "http-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Looked up reflectively so the code still compiles and runs on Java 17.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
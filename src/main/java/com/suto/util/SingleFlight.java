@@ -0,0 +1,84 @@
+package com.suto.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one computation per key at a time. A caller that asks for a
+ * key already being computed waits for that computation and gets its result
+ * (or its exception) instead of starting its own, so a burst of identical
+ * requests costs one computation. Nothing is kept once a computation ends;
+ * caching finished results is left to the caller.
+ */
+public final class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @return the result of the computation for {@code key}, running
+     *         {@code work} on this thread unless one is already in flight
+     */
+    public V run(K key, Supplier<V> work) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        executed.increment();
+        try {
+            V result = work.get();
+            own.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            // Followers see the leader's own exception, as if they had run it
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return computations actually run
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * @return callers served by a computation another caller ran
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight.size());
+        stats.put("executed", getExecuted());
+        stats.put("coalesced", getCoalesced());
+        return stats;
+    }
+}
@@ -0,0 +1,212 @@
+package com.suto.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Shared worker threads split into bulkheads, one per class of request.
+ *
+ * Each bulkhead reserves the workers it may use: the caps of all bulkheads
+ * together never exceed the workers, and a bulkhead asking for more than
+ * is left gets what is left. So a bulkhead under its cap always finds a
+ * free worker, however saturated the others are, and a burst in one class
+ * (a signup storm, a run of expensive route searches) can only hold its
+ * own workers. A request that finds its bulkhead's queue full is refused at
+ * once, so no class queues up behind itself indefinitely. Within a
+ * bulkhead, waiting requests run by {@link Priority}, oldest first.
+ */
+public final class WorkloadScheduler {
+
+    public enum Priority {
+        LOW, NORMAL, HIGH
+    }
+
+    private final List<Bulkhead> bulkheads = new ArrayList<>();
+    private final int workers;
+    private int idleWorkers; // guarded by this
+    private long sequence; // guarded by this
+
+    public WorkloadScheduler(int workers) {
+        this.workers = workers;
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "bulkhead-worker-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return workers from the {@code suto.bulkhead.workers} system property,
+     *         twice the processors by default, and at least {@code minWorkers}
+     */
+    public static WorkloadScheduler fromSystemProperties(int minWorkers) {
+        int defaultWorkers = Runtime.getRuntime().availableProcessors() * 2;
+        return new WorkloadScheduler(Math.max(minWorkers, Integer.getInteger("suto.bulkhead.workers", defaultWorkers)));
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return workers no bulkhead has reserved yet
+     */
+    public synchronized int getUnreservedWorkers() {
+        int reserved = 0;
+        for (Bulkhead bulkhead : bulkheads) {
+            reserved += bulkhead.maxConcurrent;
+        }
+        return workers - reserved;
+    }
+
+    /**
+     * Adds a bulkhead, sized by the {@code suto.bulkhead.<name>.concurrent}
+     * and {@code suto.bulkhead.<name>.queue} system properties if set, and
+     * reserves its workers.
+     *
+     * @throws IllegalStateException if earlier bulkheads reserved every worker
+     */
+    public synchronized Bulkhead bulkhead(String name, int maxConcurrent, int maxQueued) {
+        int concurrent = Integer.getInteger("suto.bulkhead." + name + ".concurrent", maxConcurrent);
+        int queue = Integer.getInteger("suto.bulkhead." + name + ".queue", maxQueued);
+        int free = getUnreservedWorkers();
+        if (free == 0) {
+            throw new IllegalStateException("No worker left for bulkhead " + name + " out of " + workers);
+        }
+        Bulkhead bulkhead = new Bulkhead(name, Math.max(1, Math.min(concurrent, free)), queue);
+        bulkheads.add(bulkhead);
+        return bulkhead;
+    }
+
+    /**
+     * Queues a task in a bulkhead.
+     *
+     * @return false if the bulkhead's queue is full; the task will not run
+     */
+    public synchronized boolean submit(Bulkhead bulkhead, Priority priority, Runnable task) {
+        if (bulkhead.waiting.size() >= bulkhead.maxQueued) {
+            bulkhead.rejected++;
+            return false;
+        }
+        bulkhead.waiting.add(new Task(priority, sequence++, task));
+        if (idleWorkers > 0) {
+            notify();
+        }
+        return true;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", workers);
+        stats.put("busyWorkers", workers - idleWorkers);
+        for (Bulkhead bulkhead : bulkheads) {
+            Map<String, Object> gauges = new LinkedHashMap<>();
+            gauges.put("maxConcurrent", bulkhead.maxConcurrent);
+            gauges.put("maxQueued", bulkhead.maxQueued);
+            gauges.put("active", bulkhead.active);
+            gauges.put("queued", bulkhead.waiting.size());
+            gauges.put("completed", bulkhead.completed);
+            gauges.put("rejected", bulkhead.rejected);
+            stats.put(bulkhead.name, gauges);
+        }
+        return stats;
+    }
+
+    private void work() {
+        while (true) {
+            Bulkhead bulkhead;
+            Task task;
+            synchronized (this) {
+                while ((bulkhead = next()) == null) {
+                    idleWorkers++;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } finally {
+                        idleWorkers--;
+                    }
+                }
+                task = bulkhead.waiting.poll();
+                bulkhead.active++;
+            }
+            try {
+                task.work.run();
+            } catch (Throwable e) {
+                // Errors too (a StackOverflowError from a deep search): the worker must outlive its task
+                System.err.println("Request in bulkhead " + bulkhead.name + " failed: " + e);
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    bulkhead.active--;
+                    bulkhead.completed++;
+                    // A slot opened up; a sleeping worker may now take a task this bulkhead held back
+                    if (idleWorkers > 0 && !bulkhead.waiting.isEmpty()) {
+                        notify();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bulkhead whose head task should run next, or null if none may run
+     */
+    private Bulkhead next() {
+        Bulkhead best = null;
+        for (Bulkhead bulkhead : bulkheads) {
+            Task head = bulkhead.waiting.peek();
+            if (head != null && bulkhead.active < bulkhead.maxConcurrent
+                    && (best == null || head.compareTo(best.waiting.peek()) < 0)) {
+                best = bulkhead;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * One class of requests: its limits and gauges. Guarded by the scheduler.
+     */
+    public static final class Bulkhead {
+        private final String name;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final PriorityQueue<Task> waiting = new PriorityQueue<>();
+        private int active;
+        private long completed;
+        private long rejected;
+
+        private Bulkhead(String name, int maxConcurrent, int maxQueued) {
+            this.name = name;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+        private final Priority priority;
+        private final long sequence;
+        private final Runnable work;
+
+        Task(Priority priority, long sequence, Runnable work) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            // Higher priority first, then first come, first served
+            int byPriority = other.priority.compareTo(priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.suto.model;
+
+import com.suto.service.GraphService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphFormatTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void bundledGraphSurvivesARoundTrip() throws IOException {
+        Graph graph = new GraphService().getGraph();
+        Path file = dir.resolve(GraphService.BINARY_GRAPH_FILE);
+        GraphFormat.write(graph, file);
+        Graph read = GraphFormat.read(file, 42);
+
+        assertEquals(42, read.getVersion());
+        assertTrue(read.isDirect(), "the edges were copied onto the heap");
+        assertTrue(read.hasSameContent(graph));
+        assertSameDerivedData(graph, read);
+        for (int s = 0; s < graph.stopCount(); s++) {
+            Stop stop = graph.stopAt(s);
+            assertEquals(s, read.indexOf(stop.getId()));
+            assertEquals(s, read.indexOf(stop.getName().toUpperCase()));
+            assertEquals(stop.getLat(), read.stopAt(s).getLat());
+            assertEquals(stop.getLng(), read.stopAt(s).getLng());
+        }
+        for (int t = 0; t < graph.transportCount(); t++) {
+            assertEquals(t, read.indexOfTransport(graph.transportName(t)));
+        }
+    }
+
+    @Test
+    void randomGraphSurvivesARoundTrip() throws IOException {
+        Graph graph = GraphTest.randomGraph(new Random(4), 300, 5000, new ArrayList<>()).build();
+        Path file = dir.resolve("random.bin");
+        GraphFormat.write(graph, file);
+        Graph read = GraphFormat.read(file, graph.getVersion());
+
+        assertTrue(read.hasSameContent(graph));
+        assertSameDerivedData(graph, read);
+        assertEquals(GraphTest.describe(graph), GraphTest.describe(read));
+    }
+
+    @Test
+    void patchOfAMappedGraphMatchesAPatchOfTheHeapGraph() throws IOException {
+        Graph graph = GraphTest.randomGraph(new Random(7), 80, 600, new ArrayList<>()).build();
+        Path file = dir.resolve("patched.bin");
+        GraphFormat.write(graph, file);
+        Graph read = GraphFormat.read(file, graph.getVersion());
+
+        Graph patched = patch(graph);
+        Graph patchedRead = patch(read);
+        assertFalse(patchedRead.isDirect());
+        assertTrue(patchedRead.hasSameContent(patched));
+        assertSameDerivedData(patched, patchedRead);
+
+        // Only the patterns change, so the mapped edges are shared
+        Graph.Patch patterns = new Graph.Patch(read, read.getVersion() + 1).clearPatterns(0);
+        assertTrue(patterns.build().isDirect());
+    }
+
+    private static Graph patch(Graph graph) {
+        Graph.Patch patch = new Graph.Patch(graph, graph.getVersion() + 1).clearRow(3);
+        for (int e = graph.edgeStart(3); e < graph.edgeEnd(3); e += 2) {
+            patch.addEdge(3, graph.target(e), graph.transport(e), graph.cost(e), graph.distance(e));
+        }
+        patch.addEdge(3, 4, patch.transport("Bus Extra", "BUS"), 2, 1);
+        return patch.build();
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        Path file = dir.resolve("truncated.bin");
+        GraphFormat.write(GraphTest.randomGraph(new Random(5), 50, 300, new ArrayList<>()).build(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        for (int length : new int[] {0, 7, 40, bytes.length / 2, bytes.length - 8}) {
+            Files.write(file, Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> GraphFormat.read(file, 1), "cut at " + length);
+        }
+    }
+
+    @Test
+    void corruptHeaderIsRejected() throws IOException {
+        Path file = dir.resolve("corrupt.bin");
+        GraphFormat.write(GraphTest.randomGraph(new Random(6), 50, 300, new ArrayList<>()).build(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Format version, then the stop count
+        header.putInt(8, GraphFormat.FORMAT_VERSION + 1);
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> GraphFormat.read(file, 1));
+
+        header.putInt(8, GraphFormat.FORMAT_VERSION);
+        header.putInt(12, header.getInt(12) + 1);
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> GraphFormat.read(file, 1));
+
+        bytes[0] ^= 1;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> GraphFormat.read(file, 1));
+    }
+
+    private static void assertSameDerivedData(Graph expected, Graph actual) {
+        assertEquals(expected.linkCount(), actual.linkCount());
+        for (int s = 0; s < expected.stopCount(); s++) {
+            assertEquals(expected.stopModes(s), actual.stopModes(s));
+            assertEquals(expected.linkStart(s), actual.linkStart(s));
+            assertEquals(expected.postingStart(s), actual.postingStart(s));
+            for (int p = expected.postingStart(s); p < expected.postingEnd(s); p++) {
+                assertEquals(expected.postingPattern(p), actual.postingPattern(p));
+                assertEquals(expected.postingPosition(p), actual.postingPosition(p));
+            }
+        }
+        for (int link = 0; link < expected.linkCount(); link++) {
+            assertEquals(expected.linkTarget(link), actual.linkTarget(link));
+            assertEquals(expected.linkEdgeStart(link), actual.linkEdgeStart(link));
+            for (int t = 0; t < expected.transportCount(); t++) {
+                assertEquals(expected.linkServes(link, t), actual.linkServes(link, t));
+            }
+        }
+        for (int t = 0; t < expected.transportCount(); t++) {
+            assertEquals(expected.isMetroTransport(t), actual.isMetroTransport(t));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.suto.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphTest {
+
+    @Test
+    void builderKeepsEveryEdgeInSortedRows() {
+        List<String> input = new ArrayList<>();
+        Graph graph = randomGraph(new Random(1), 120, 1500, input).build();
+        Collections.sort(input);
+        assertEquals(input, describe(graph));
+        assertRows(graph);
+    }
+
+    @Test
+    void builderSortsLargeInputsInParallelTheSameWay() {
+        List<String> input = new ArrayList<>();
+        Graph graph = randomGraph(new Random(2), 800, Graph.Builder.PARALLEL_LINKS + 1000, input).build();
+        Collections.sort(input);
+        assertEquals(input, describe(graph));
+        assertRows(graph);
+        assertLinks(graph);
+    }
+
+    @Test
+    void builderGroupsParallelEdgesIntoLinks() {
+        Graph graph = randomGraph(new Random(8), 40, 1200, new ArrayList<>()).build();
+        assertTrue(graph.linkCount() < graph.edgeCount(), "no parallel edges to group");
+        assertLinks(graph);
+    }
+
+    @Test
+    void builderFlagsMetroTransportsAndStations() {
+        Graph.Builder builder = new Graph.Builder().setVersion(3);
+        for (String name : List.of("A", "B", "C")) {
+            builder.addStop(new Stop(UUID.randomUUID(), name, "bus"));
+        }
+        builder.addEdge(builder.getStopId("A"), builder.getStopId("B"), 5, 1, "METRO", "MRT Line 1");
+        builder.addEdge(builder.getStopId("B"), builder.getStopId("C"), 5, 1, "BUS", "Bus 7");
+        Graph graph = builder.build();
+
+        assertEquals(3, graph.getVersion());
+        assertTrue(graph.isMetroTransport(graph.indexOfTransport("MRT Line 1")));
+        assertFalse(graph.isMetroTransport(graph.indexOfTransport("Bus 7")));
+        assertTrue(graph.isMetroStation(graph.indexOf("a")));
+        assertTrue(graph.isMetroStation(graph.indexOf("B")));
+        assertFalse(graph.isMetroStation(graph.indexOf("C")));
+        assertEquals(Graph.MODE_BUS | Graph.MODE_METRO, graph.stopModes(graph.indexOf("B")));
+    }
+
+    @Test
+    void patchCopiesOnlyWhatItChanges() {
+        Graph original = randomGraph(new Random(3), 60, 400, new ArrayList<>()).build();
+        List<String> before = describe(original);
+
+        int stop = 0;
+        Graph.Patch patch = new Graph.Patch(original, original.getVersion() + 1).clearRow(stop);
+        int added = patch.transport("Bus Extra", "BUS");
+        patch.addEdge(stop, 1, added, 4, 2);
+        for (int e = original.edgeStart(stop); e < original.edgeEnd(stop); e += 2) {
+            patch.addEdge(stop, original.target(e), original.transport(e), original.cost(e), original.distance(e));
+        }
+        Graph patched = patch.build();
+
+        assertEquals(before, describe(original), "the patched graph's source changed");
+        assertEquals(original.getVersion() + 1, patched.getVersion());
+        assertEquals(original.transportCount(), added);
+        assertEquals("Bus Extra", patched.transportName(added));
+
+        List<String> expected = new ArrayList<>();
+        for (String edge : before) {
+            if (!edge.startsWith(original.stopName(stop) + ">")) {
+                expected.add(edge);
+            }
+        }
+        expected.add(original.stopName(stop) + ">" + original.stopName(1) + ":Bus Extra:4.0");
+        for (int e = original.edgeStart(stop); e < original.edgeEnd(stop); e += 2) {
+            expected.add(edge(original, stop, e));
+        }
+        Collections.sort(expected);
+        assertEquals(expected, describe(patched));
+        assertRows(patched);
+        assertLinks(patched);
+        for (int s = 1; s < original.stopCount(); s++) {
+            assertEquals(original.edgeEnd(s) - original.edgeStart(s), patched.edgeEnd(s) - patched.edgeStart(s));
+        }
+    }
+
+    /**
+     * @param input receives every edge added, as {@link #describe} lists them
+     */
+    static Graph.Builder randomGraph(Random random, int stops, int edges, List<String> input) {
+        Graph.Builder builder = new Graph.Builder().setVersion(1);
+        List<UUID> ids = new ArrayList<>();
+        for (int s = 0; s < stops; s++) {
+            Stop stop = new Stop(new UUID(random.nextLong(), random.nextLong()), "Stop " + s, "bus");
+            stop.setStableId(s + 1);
+            stop.setLat(random.nextDouble());
+            builder.addStop(stop);
+            ids.add(stop.getId());
+        }
+        for (int i = 0; i < edges; i++) {
+            int line = random.nextInt(20);
+            String name = line < 3 ? "MRT Line " + line : "Bus " + line;
+            int from = random.nextInt(stops);
+            int to = random.nextInt(stops);
+            double cost = 1 + random.nextInt(9);
+            builder.addEdge(ids.get(from), ids.get(to), cost, random.nextInt(5), line < 3 ? "METRO" : "BUS", name);
+            input.add("Stop " + from + ">Stop " + to + ":" + name + ":" + cost);
+        }
+        return builder;
+    }
+
+    /**
+     * @return every edge as from>to:transport:cost, sorted
+     */
+    static List<String> describe(Graph graph) {
+        List<String> edges = new ArrayList<>();
+        for (int s = 0; s < graph.stopCount(); s++) {
+            for (int e = graph.edgeStart(s); e < graph.edgeEnd(s); e++) {
+                edges.add(edge(graph, s, e));
+            }
+        }
+        Collections.sort(edges);
+        return edges;
+    }
+
+    private static String edge(Graph graph, int stop, int e) {
+        return graph.stopName(stop) + ">" + graph.stopName(graph.target(e)) + ":"
+                + graph.transportName(graph.transport(e)) + ":" + graph.cost(e);
+    }
+
+    private static void assertRows(Graph graph) {
+        for (int s = 0; s < graph.stopCount(); s++) {
+            for (int e = graph.edgeStart(s) + 1; e < graph.edgeEnd(s); e++) {
+                int order = Integer.compare(graph.target(e - 1), graph.target(e));
+                if (order == 0) {
+                    order = Integer.compare(graph.transport(e - 1), graph.transport(e));
+                }
+                assertTrue(order <= 0, "row " + s + " is not sorted at edge " + e);
+            }
+        }
+    }
+
+    private static void assertLinks(Graph graph) {
+        int links = 0;
+        for (int s = 0; s < graph.stopCount(); s++) {
+            int e = graph.edgeStart(s);
+            for (int link = graph.linkStart(s); link < graph.linkEnd(s); link++, links++) {
+                assertEquals(e, graph.linkEdgeStart(link));
+                assertTrue(graph.linkEdgeEnd(link) > e);
+                if (link > graph.linkStart(s)) {
+                    assertTrue(graph.linkTarget(link) > graph.linkTarget(link - 1), "row " + s + " repeats a target");
+                }
+                for (; e < graph.linkEdgeEnd(link); e++) {
+                    assertEquals(graph.linkTarget(link), graph.target(e));
+                    assertTrue(graph.linkServes(link, graph.transport(e)));
+                }
+            }
+            assertEquals(graph.edgeEnd(s), e, "links of row " + s + " do not cover it");
+        }
+        assertEquals(graph.linkCount(), links);
+    }
+}
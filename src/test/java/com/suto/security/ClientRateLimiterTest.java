@@ -0,0 +1,59 @@
+package com.suto.security;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientRateLimiterTest {
+
+    @Test
+    void burstIsAdmittedThenRefusedWithARetryTime() {
+        ClientRateLimiter limiter = new ClientRateLimiter(0.5, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("alice"));
+        }
+        assertEquals(2, limiter.tryAcquire("alice"));
+        assertEquals(1L, limiter.getStats().get("rejected"));
+    }
+
+    @Test
+    void clientsHaveTheirOwnBuckets() {
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 1);
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0);
+        assertEquals(0, limiter.tryAcquire("10.0.0.7"));
+    }
+
+    @Test
+    void bucketRefillsOverTime() throws InterruptedException {
+        ClientRateLimiter limiter = new ClientRateLimiter(100, 1);
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertEquals(1, limiter.tryAcquire("alice"));
+        Thread.sleep(50);
+        assertEquals(0, limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    void quietClientsAreDroppedWhenTheTableIsFull() {
+        ClientRateLimiter limiter = new ClientRateLimiter(1e9, 1);
+        for (int i = 0; i <= ClientRateLimiter.MAX_CLIENTS; i++) {
+            limiter.tryAcquire("client " + i);
+        }
+        assertTrue((int) limiter.getStats().get("clients") < ClientRateLimiter.MAX_CLIENTS);
+    }
+
+    @Test
+    void fullTableShedsNewClientsUntilTheNextSweep() {
+        ClientRateLimiter limiter = new ClientRateLimiter(0.1, 1);
+        for (int i = 0; i < ClientRateLimiter.MAX_CLIENTS; i++) {
+            assertEquals(0, limiter.tryAcquire("client " + i));
+        }
+        // Nobody has refilled, so the sweep frees nothing and newcomers wait for the next one
+        for (int i = 0; i < 100; i++) {
+            long retryAfter = limiter.tryAcquire("newcomer " + i);
+            assertTrue(retryAfter > 0 && retryAfter <= 10, "retry after " + retryAfter);
+        }
+        assertEquals(ClientRateLimiter.MAX_CLIENTS, limiter.getStats().get("clients"));
+        assertEquals(100L, limiter.getStats().get("shed"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.suto.service;
+
+import com.suto.dto.GraphChangeRequest;
+import com.suto.model.Graph;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A change is published with lazy bounds; they, and the full bounds that
+ * replace them, must hold exactly what a full rebuild on the new graph does.
+ */
+class DistanceMatrixTest {
+
+    @Test
+    void boundsOfEveryPublishedChangeMatchAFullRebuild() {
+        GraphService graphService = new GraphService();
+        Random random = new Random(7);
+        int published = 0;
+        for (int step = 0; step < 12; step++) {
+            GraphUpdate update = graphService.applyChange(randomChange(graphService.getGraph(), random));
+            if (update.getVersion() == update.getPreviousVersion()) {
+                continue;
+            }
+            published++;
+            GraphSnapshot snapshot = graphService.getSnapshot();
+            assertEquals(update.getVersion(), snapshot.getVersion());
+            assertSame(snapshot.getGraph(), snapshot.getDistanceMatrix().getGraph());
+            assertSameRows(new DistanceMatrix(snapshot.getGraph()), snapshot.getDistanceMatrix(), "step " + step);
+        }
+        assertTrue(published > 0, "no change was published");
+    }
+
+    @Test
+    void fullBoundsReplaceTheLazyOnesInTheBackground() throws InterruptedException {
+        GraphService graphService = new GraphService();
+        Graph graph = graphService.getGraph();
+        int from = 0;
+        GraphChangeRequest change = new GraphChangeRequest(GraphChangeRequest.REMOVE_LINK);
+        change.setFrom(graph.stopName(from));
+        change.setTo(graph.stopName(graph.target(graph.edgeStart(from))));
+        GraphUpdate update = graphService.applyChange(change);
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!graphService.getDistanceMatrix().isEager() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        DistanceMatrix full = graphService.getDistanceMatrix();
+        assertTrue(full.isEager(), "the lazy bounds were never replaced");
+        assertEquals(update.getVersion(), graphService.getSnapshot().getVersion());
+        assertSameRows(new DistanceMatrix(graphService.getGraph()), full, "removeLink");
+    }
+
+    private static GraphChangeRequest randomChange(Graph graph, Random random) {
+        GraphChangeRequest change;
+        int pick = random.nextInt(4);
+        if (pick == 0) {
+            change = new GraphChangeRequest(GraphChangeRequest.CLOSE_STOP);
+            change.setStop(graph.stopName(random.nextInt(graph.stopCount())));
+        } else if (pick == 1) {
+            change = new GraphChangeRequest(GraphChangeRequest.SUSPEND_TRANSPORT);
+            change.setTransport(graph.transportName(random.nextInt(graph.transportCount())));
+        } else {
+            int from = random.nextInt(graph.stopCount());
+            while (graph.edgeEnd(from) == graph.edgeStart(from)) {
+                from = random.nextInt(graph.stopCount());
+            }
+            int edge = graph.edgeStart(from) + random.nextInt(graph.edgeEnd(from) - graph.edgeStart(from));
+            change = new GraphChangeRequest(GraphChangeRequest.REMOVE_LINK);
+            change.setFrom(graph.stopName(from));
+            change.setTo(graph.stopName(graph.target(edge)));
+        }
+        return change;
+    }
+
+    private static void assertSameRows(DistanceMatrix expected, DistanceMatrix actual, String step) {
+        for (int to = 0; to < expected.getGraph().stopCount(); to++) {
+            assertArrayEquals(expected.transfersTo(to), actual.transfersTo(to), step + ", transfers to " + to);
+            assertArrayEquals(expected.stopsTo(to), actual.stopsTo(to), step + ", stops to " + to);
+        }
+    }
+}
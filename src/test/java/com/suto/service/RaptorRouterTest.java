@@ -0,0 +1,67 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RaptorRouterTest {
+
+    private static Graph graph;
+    private static DistanceMatrix bounds;
+
+    @BeforeAll
+    static void loadGraph() {
+        GraphService graphService = new GraphService();
+        graph = graphService.getGraph();
+        bounds = graphService.getDistanceMatrix();
+    }
+
+    @Test
+    void journeysReportedPerRoundAreTheHeadOfTheResult() {
+        RaptorRouter router = new RaptorRouter(graph);
+        Random random = new Random(20240607L);
+        int reported = 0;
+        for (int i = 0; i < 20; i++) {
+            int start = random.nextInt(graph.stopCount());
+            int end = random.nextInt(graph.stopCount());
+            List<Journey> early = new ArrayList<>();
+            List<Journey> journeys = router.route(start, end, bounds, SearchBudget.unlimited(), early::add);
+            assertEquals(describe(journeys), describe(early), graph.stopName(start) + " -> " + graph.stopName(end));
+            reported += early.size();
+        }
+        assertTrue(reported > 0, "no sampled pair had a route");
+    }
+
+    @Test
+    void finishingAfterTheFirstReportKeepsCompletedRoundsOnly() {
+        RaptorRouter router = new RaptorRouter(graph);
+        Random random = new Random(20240608L);
+        for (int i = 0; i < 20; i++) {
+            int start = random.nextInt(graph.stopCount());
+            int end = random.nextInt(graph.stopCount());
+            SearchBudget budget = SearchBudget.ofMillis(60_000);
+            List<Journey> early = new ArrayList<>();
+            List<Journey> journeys = router.route(start, end, bounds, budget, journey -> {
+                early.add(journey);
+                budget.finish();
+            });
+            assertEquals(describe(early), describe(journeys));
+            for (Journey journey : journeys) {
+                assertEquals(journeys.get(0).legCount(), journey.legCount(), "a later round ran");
+            }
+        }
+    }
+
+    private static List<String> describe(List<Journey> journeys) {
+        List<String> described = new ArrayList<>();
+        for (Journey journey : journeys) {
+            described.add(Arrays.toString(journey.legFrom) + Arrays.toString(journey.legTo)
+                    + Arrays.toString(journey.legTransport) + journey.totalCost);
+        }
+        return described;
+    }
+}
@@ -0,0 +1,75 @@
+package com.suto.service;
+
+import com.suto.dto.RouteResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteCacheTest {
+
+    @Test
+    void entriesAreOnlyServedForTheirOwnVersion() {
+        RouteCache cache = new RouteCache();
+        RouteResponse response = route("Bus 1");
+        cache.put(1, "Central", "Harbour", "", response);
+
+        assertSame(response, cache.get(1, "central", "HARBOUR", ""));
+        assertNull(cache.get(1, "Central", "Harbour", "/parallel"));
+        assertNull(cache.get(2, "Central", "Harbour", ""));
+        // Seeing version 2 dropped the older entries for good
+        assertNull(cache.get(1, "Central", "Harbour", ""));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void resultsOfReplacedGraphsAreNotStored() {
+        RouteCache cache = new RouteCache();
+        cache.get(3, "Central", "Harbour", "");
+        cache.put(2, "Central", "Harbour", "", route("Bus 1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void carryOverKeepsRoutesOffTheAffectedTransports() {
+        RouteCache cache = new RouteCache();
+        RouteResponse direct = route("Bus 1");
+        RouteResponse combined = new RouteResponse();
+        RouteResponse.RouteLeg leg = new RouteResponse.RouteLeg();
+        leg.setOptions(List.of("Bus 2", "MRT Line 1"));
+        RouteResponse.CombinedRoute route = new RouteResponse.CombinedRoute();
+        route.setLegs(List.of(leg));
+        combined.setCombinedRoutes(List.of(route));
+        cache.put(1, "A", "B", "", direct);
+        cache.put(1, "A", "C", "", combined);
+        cache.put(1, "A", "D", "", route("Bus 3"));
+
+        assertEquals(2, cache.carryOver(1, 2, List.of("MRT Line 1")));
+        assertSame(direct, cache.get(2, "A", "B", ""));
+        assertNull(cache.get(2, "A", "C", ""));
+        assertNotNull(cache.get(2, "A", "D", ""));
+
+        // A carry-over from a version the cache no longer holds keeps nothing
+        assertEquals(0, cache.carryOver(1, 3, List.of()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void segmentsEvictLeastRecentlyUsed() {
+        RouteCache cache = new RouteCache(16);
+        for (int i = 0; i < 200; i++) {
+            cache.put(1, "A", "Stop " + i, "", route("Bus 1"));
+        }
+        assertTrue(cache.size() <= 16);
+        assertEquals(200 - cache.size(), cache.getEvictions());
+    }
+
+    private static RouteResponse route(String transport) {
+        RouteResponse.DirectRoute route = new RouteResponse.DirectRoute();
+        route.setName(transport);
+        RouteResponse response = new RouteResponse();
+        response.setDirectRoutes(List.of(route));
+        return response;
+    }
+}
@@ -0,0 +1,49 @@
+package com.suto.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StopIdRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void idsSurviveASaveAndReload() throws IOException {
+        Path file = dir.resolve(GraphService.STOP_IDS_FILE);
+        StopIdRegistry registry = StopIdRegistry.load(file);
+        assertEquals(0, registry.stableIdFor("suto", "Uttara North"));
+        assertEquals(1, registry.stableIdFor("suto", "Farmgate"));
+        assertEquals(0, registry.stableIdFor("suto", "uttara north"));
+        assertEquals(2, registry.unsavedCount());
+        registry.save();
+
+        StopIdRegistry reloaded = StopIdRegistry.load(file);
+        assertEquals(0, reloaded.unsavedCount());
+        assertEquals(1, reloaded.stableIdFor("suto", "FARMGATE"));
+        assertEquals(2, reloaded.stableIdFor("suto", "Motijheel"));
+    }
+
+    @Test
+    void networksKeepStopsOfTheSameNameApart() throws IOException {
+        StopIdRegistry registry = StopIdRegistry.load(dir.resolve("ids.json"));
+        assertNotEquals(registry.stableIdFor("suto", "Central"), registry.stableIdFor("metro", "Central"));
+        assertNotEquals(StopIdRegistry.uuidFor("suto", "Central"), StopIdRegistry.uuidFor("metro", "Central"));
+    }
+
+    @Test
+    void malformedFilesAreRejected() throws IOException {
+        Path file = dir.resolve("ids.json");
+        for (String keys : new String[] {"[\"farmgate\"]", "[\"/farmgate\"]", "[\"suto/\"]", "[null]",
+                "[\"suto/farmgate\", \"suto/farmgate\"]"}) {
+            Files.writeString(file, keys);
+            assertThrows(IOException.class, () -> StopIdRegistry.load(file), keys);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.suto.service;
+
+import com.suto.model.Graph;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the label search against the breadth-first search it replaced, on
+ * the bundled graph. The old search was capped and could miss itineraries,
+ * so the new one has to find a route wherever the old one did, and its
+ * ranked itineraries must each be at least as good as the old ones.
+ */
+class TransferSearchTest {
+
+    private static final long SEED = 20240601L;
+    private static final int PAIRS = 40;
+
+    private static Graph graph;
+    private static DistanceMatrix bounds;
+
+    @BeforeAll
+    static void loadGraph() {
+        GraphService graphService = new GraphService();
+        graph = graphService.getGraph();
+        bounds = graphService.getDistanceMatrix();
+    }
+
+    @Test
+    void matchesOrBeatsTheOldSearch() {
+        TransferSearch search = new TransferSearch(graph);
+        Random random = new Random(SEED);
+        int compared = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            int start = random.nextInt(graph.stopCount());
+            int end = random.nextInt(graph.stopCount());
+            if (start == end) {
+                continue;
+            }
+            List<int[]> expected = LegacySearch.find(graph, start, end);
+            List<int[]> found = search.search(start, end, TransferSearch.DEFAULT_K,
+                    bounds.transfersTo(end), SearchBudget.unlimited());
+
+            String pair = graph.stopName(start) + " -> " + graph.stopName(end);
+            for (int[] itinerary : found) {
+                assertValid(start, end, itinerary, pair);
+            }
+            assertDistinct(start, found, pair);
+            assertTrue(found.size() >= expected.size(), pair + ": fewer itineraries than the old search");
+            for (int j = 0; j < expected.size(); j++) {
+                assertTrue(Arrays.compare(rank(start, found.get(j)), rank(start, expected.get(j))) <= 0,
+                        pair + ": itinerary " + j + " ranks below the old one");
+            }
+            compared += expected.isEmpty() ? 0 : 1;
+        }
+        assertTrue(compared > 0, "no sampled pair had a route");
+    }
+
+    @Test
+    void manyItinerariesStayDistinct() {
+        // Itineraries are told apart by their transfer points; two different
+        // sequences sharing an id would drop or repeat itineraries
+        TransferSearch search = new TransferSearch(graph);
+        Random random = new Random(SEED + 3);
+        for (int i = 0; i < 15; i++) {
+            int start = random.nextInt(graph.stopCount());
+            int end = random.nextInt(graph.stopCount());
+            String pair = graph.stopName(start) + " -> " + graph.stopName(end);
+            List<int[]> found = search.search(start, end, 25, bounds.transfersTo(end), SearchBudget.unlimited());
+            for (int[] itinerary : found) {
+                assertValid(start, end, itinerary, pair);
+            }
+            assertDistinct(start, found, pair);
+        }
+    }
+
+    @Test
+    void boundsDoNotChangeTheResult() {
+        TransferSearch search = new TransferSearch(graph);
+        Random random = new Random(SEED + 1);
+        for (int i = 0; i < 20; i++) {
+            int start = random.nextInt(graph.stopCount());
+            int end = random.nextInt(graph.stopCount());
+            List<int[]> plain = search.search(start, end, TransferSearch.DEFAULT_K, null, SearchBudget.unlimited());
+            List<int[]> bounded = search.search(start, end, TransferSearch.DEFAULT_K,
+                    bounds.transfersTo(end), SearchBudget.unlimited());
+            assertEquals(signatures(start, plain), signatures(start, bounded),
+                    graph.stopName(start) + " -> " + graph.stopName(end));
+        }
+    }
+
+    @Test
+    void oneTreeServesSeveralDestinationsLikeSeparateSearches() {
+        TransferSearch search = new TransferSearch(graph);
+        Random random = new Random(SEED + 2);
+        int start = random.nextInt(graph.stopCount());
+        int[] ends = new int[20];
+        byte[][] endBounds = new byte[ends.length][];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = random.nextInt(graph.stopCount());
+            endBounds[i] = bounds.transfersTo(ends[i]);
+        }
+        List<List<int[]>> many = search.searchMany(start, ends, TransferSearch.DEFAULT_K, endBounds,
+                SearchBudget.unlimited());
+        for (int i = 0; i < ends.length; i++) {
+            List<int[]> single = search.search(start, ends[i], TransferSearch.DEFAULT_K, endBounds[i],
+                    SearchBudget.unlimited());
+            assertEquals(signatures(start, single), signatures(start, many.get(i)),
+                    graph.stopName(start) + " -> " + graph.stopName(ends[i]));
+        }
+    }
+
+    @Test
+    void searchesOnAConvertedInstanceAgree() {
+        TransferSearch first = new TransferSearch(graph);
+        int start = 0;
+        int end = graph.stopCount() - 1;
+        List<String> before = signatures(start, first.search(start, end, TransferSearch.DEFAULT_K, null,
+                SearchBudget.unlimited()));
+        TransferSearch converted = new TransferSearch(graph, first);
+        assertEquals(before, signatures(start, converted.search(start, end, TransferSearch.DEFAULT_K, null,
+                SearchBudget.unlimited())));
+    }
+
+    private static void assertValid(int start, int end, int[] itinerary, String pair) {
+        Set<Integer> visited = new HashSet<>();
+        visited.add(start);
+        int stop = start;
+        for (int edge : itinerary) {
+            assertTrue(edge >= graph.edgeStart(stop) && edge < graph.edgeEnd(stop),
+                    pair + ": edge " + edge + " does not leave " + graph.stopName(stop));
+            stop = graph.target(edge);
+            assertTrue(visited.add(stop), pair + ": passes " + graph.stopName(stop) + " twice");
+        }
+        assertEquals(end, stop, pair + ": ends elsewhere");
+        assertTrue(legs(itinerary) - 1 <= TransferSearch.MAX_TRANSFERS, pair + ": too many transfers");
+    }
+
+    private static void assertDistinct(int start, List<int[]> itineraries, String pair) {
+        List<String> signatures = signatures(start, itineraries);
+        assertEquals(signatures.size(), new HashSet<>(signatures).size(), pair + ": repeats " + signatures);
+    }
+
+    /**
+     * @return ranking key as the old search sorted: metro first, then legs, then stops
+     */
+    private static int[] rank(int start, int[] itinerary) {
+        boolean metro = false;
+        for (int edge : itinerary) {
+            metro |= graph.isMetroTransport(graph.transport(edge));
+        }
+        return new int[] {metro ? 0 : 1, legs(itinerary), itinerary.length};
+    }
+
+    private static int legs(int[] itinerary) {
+        int legs = 0;
+        for (int i = 0; i < itinerary.length; i++) {
+            if (i == 0 || graph.transport(itinerary[i]) != graph.transport(itinerary[i - 1])) {
+                legs++;
+            }
+        }
+        return legs;
+    }
+
+    /**
+     * @return the stops where each itinerary boards and leaves a transport,
+     *         which is what the old search told itineraries apart by
+     */
+    private static List<String> signatures(int start, List<int[]> itineraries) {
+        List<String> signatures = new ArrayList<>();
+        for (int[] itinerary : itineraries) {
+            StringBuilder signature = new StringBuilder().append(start);
+            int stop = start;
+            for (int i = 0; i < itinerary.length; i++) {
+                if (i > 0 && graph.transport(itinerary[i]) != graph.transport(itinerary[i - 1])) {
+                    signature.append('|').append(stop);
+                }
+                stop = graph.target(itinerary[i]);
+            }
+            signatures.add(signature.append('|').append(stop).toString());
+        }
+        return signatures;
+    }
+
+    /**
+     * The breadth-first search the router used before the label search: it
+     * explores (stop, transport) states in FIFO order up to a fixed number of
+     * checks, skips states reached before with fewer transfers, keeps the
+     * fewest stops per distinct leg sequence and ranks metro itineraries
+     * first, then by legs and stops. States are kept in parallel arrays in
+     * queue order instead of as lists of edges, which is all that differs.
+     */
+    private static final class LegacySearch {
+
+        private static final int MAX_CHECKED = 500_000;
+
+        private int[] stops = new int[1 << 16];
+        private int[] transports = new int[1 << 16];
+        private int[] transfers = new int[1 << 16];
+        private int[] edges = new int[1 << 16];
+        private int[] parents = new int[1 << 16];
+        private int size;
+
+        static List<int[]> find(Graph graph, int start, int end) {
+            return new LegacySearch().run(graph, start, end);
+        }
+
+        private List<int[]> run(Graph graph, int start, int end) {
+            int slots = graph.transportCount() + 1;
+            int[] visited = new int[graph.stopCount() * slots];
+            Arrays.fill(visited, Integer.MAX_VALUE);
+            add(start, -1, 0, -1, -1);
+
+            List<int[]> reached = new ArrayList<>();
+            int checked = 0;
+            for (int head = 0; head < size && checked < MAX_CHECKED; head++) {
+                checked++;
+                if (transfers[head] > TransferSearch.MAX_TRANSFERS) {
+                    continue;
+                }
+                int key = stops[head] * slots + transports[head] + 1;
+                if (visited[key] < transfers[head] || hasCycle(head)) {
+                    continue;
+                }
+                if (stops[head] == end) {
+                    reached.add(path(head));
+                    continue;
+                }
+                visited[key] = transfers[head];
+                for (int edge = graph.edgeStart(stops[head]); edge < graph.edgeEnd(stops[head]); edge++) {
+                    int transport = graph.transport(edge);
+                    boolean transfer = transports[head] >= 0 && transports[head] != transport;
+                    add(graph.target(edge), transport, transfers[head] + (transfer ? 1 : 0), edge, head);
+                }
+            }
+
+            Map<String, int[]> unique = new HashMap<>();
+            for (int[] itinerary : reached) {
+                String signature = signatures(start, List.of(itinerary)).get(0);
+                int[] kept = unique.get(signature);
+                if (kept == null || itinerary.length < kept.length) {
+                    unique.put(signature, itinerary);
+                }
+            }
+            List<int[]> distinct = new ArrayList<>(unique.values());
+            distinct.sort((a, b) -> Arrays.compare(rank(start, a), rank(start, b)));
+            return distinct.subList(0, Math.min(TransferSearch.DEFAULT_K, distinct.size()));
+        }
+
+        private void add(int stop, int transport, int transferCount, int edge, int parent) {
+            if (size == stops.length) {
+                int capacity = size * 2;
+                stops = Arrays.copyOf(stops, capacity);
+                transports = Arrays.copyOf(transports, capacity);
+                transfers = Arrays.copyOf(transfers, capacity);
+                edges = Arrays.copyOf(edges, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+            }
+            stops[size] = stop;
+            transports[size] = transport;
+            transfers[size] = transferCount;
+            edges[size] = edge;
+            parents[size] = parent;
+            size++;
+        }
+
+        // Like the old check, only arrival stops count, not the origin
+        private boolean hasCycle(int state) {
+            Set<Integer> seen = new HashSet<>();
+            for (int s = state; parents[s] >= 0; s = parents[s]) {
+                if (!seen.add(stops[s])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int[] path(int state) {
+            int length = 0;
+            for (int s = state; parents[s] >= 0; s = parents[s]) {
+                length++;
+            }
+            int[] path = new int[length];
+            for (int s = state; parents[s] >= 0; s = parents[s]) {
+                path[--length] = edges[s];
+            }
+            return path;
+        }
+    }
+}
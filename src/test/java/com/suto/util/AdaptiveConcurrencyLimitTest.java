@@ -0,0 +1,70 @@
+package com.suto.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    void requestsOverTheLimitAreRefused() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10, 1000);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        limit.cancel();
+        assertTrue(limit.tryAcquire());
+        assertEquals(1L, limit.getStats().get("rejected"));
+        assertEquals(2, limit.getStats().get("inFlight"));
+    }
+
+    @Test
+    void fastRequestsGrowTheLimitUpToTheMaximum() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 8, 1000);
+        for (int round = 0; round < 200; round++) {
+            long start = System.nanoTime();
+            int admitted = 0;
+            while (limit.tryAcquire()) {
+                admitted++;
+            }
+            for (int i = 0; i < admitted; i++) {
+                limit.release(start);
+            }
+        }
+        assertEquals(8, limit.getStats().get("limit"));
+    }
+
+    @Test
+    void idleLimitDoesNotGrow() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 8, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(System.nanoTime());
+        }
+        assertEquals(4, limit.getStats().get("limit"));
+    }
+
+    @Test
+    void slowRequestsCutTheLimitOncePerInterval() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 5, 20, 1000);
+        long slow = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(slow);
+        }
+        assertEquals(9, limit.getStats().get("limit"));
+    }
+
+    @Test
+    void limitNeverFallsBelowTheMinimum() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(5, 5, 20, 0);
+        long slow = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(slow);
+        }
+        assertEquals(5, limit.getStats().get("limit"));
+    }
+}
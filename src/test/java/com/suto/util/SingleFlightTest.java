@@ -0,0 +1,97 @@
+package com.suto.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    private static final int FOLLOWERS = 4;
+
+    @Test
+    void concurrentCallersShareOneComputation() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        Object result = new Object();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(FOLLOWERS + 1);
+        try {
+            Future<Object> leader = pool.submit(() -> flight.run("key", () -> {
+                started.countDown();
+                await(release);
+                return result;
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            List<Future<Object>> followers = new ArrayList<>();
+            for (int i = 0; i < FOLLOWERS; i++) {
+                followers.add(pool.submit(() -> flight.run("key", () -> fail("ran a second computation"))));
+            }
+            waitForCoalesced(flight, FOLLOWERS);
+            release.countDown();
+
+            assertSame(result, leader.get(5, TimeUnit.SECONDS));
+            for (Future<Object> follower : followers) {
+                assertSame(result, follower.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, flight.getExecuted());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void followersGetTheLeadersException() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        IllegalStateException failure = new IllegalStateException("no route");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = pool.submit(() -> flight.run("key", () -> {
+                started.countDown();
+                await(release);
+                throw failure;
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Object> follower = pool.submit(() -> flight.run("key", Object::new));
+            waitForCoalesced(flight, 1);
+            release.countDown();
+
+            for (Future<Object> caller : List.of(leader, follower)) {
+                ExecutionException thrown = assertThrows(ExecutionException.class, () -> caller.get(5, TimeUnit.SECONDS));
+                assertSame(failure, thrown.getCause());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void nothingIsKeptOnceAComputationEnds() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        assertEquals(1, flight.run("key", () -> 1));
+        assertEquals(2, flight.run("key", () -> 2));
+        assertEquals(2, flight.getExecuted());
+        assertEquals(0, flight.getCoalesced());
+    }
+
+    private static void waitForCoalesced(SingleFlight<?, ?> flight, int callers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (flight.getCoalesced() < callers) {
+            assertTrue(System.nanoTime() < deadline, "callers did not join the computation");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.suto.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkloadSchedulerTest {
+
+    @Test
+    void workerOutlivesATaskThatThrowsAnError() throws InterruptedException {
+        WorkloadScheduler scheduler = new WorkloadScheduler(1);
+        WorkloadScheduler.Bulkhead routes = scheduler.bulkhead("routes", 1, 4);
+        CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, () -> {
+            throw new StackOverflowError();
+        }));
+        assertTrue(scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, ran::countDown));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void fullQueueRefusesTasks() throws InterruptedException {
+        WorkloadScheduler scheduler = new WorkloadScheduler(1);
+        WorkloadScheduler.Bulkhead routes = scheduler.bulkhead("routes", 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, block(started, release)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, () -> { }));
+        assertFalse(scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, () -> { }));
+        release.countDown();
+    }
+
+    @Test
+    void higherPriorityRunsFirst() throws InterruptedException {
+        WorkloadScheduler scheduler = new WorkloadScheduler(1);
+        WorkloadScheduler.Bulkhead routes = scheduler.bulkhead("routes", 1, 4);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<String> order = new CopyOnWriteArrayList<>();
+        scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, block(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit(routes, WorkloadScheduler.Priority.LOW, record(order, "low", done));
+        scheduler.submit(routes, WorkloadScheduler.Priority.NORMAL, record(order, "normal", done));
+        scheduler.submit(routes, WorkloadScheduler.Priority.HIGH, record(order, "high", done));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("high", "normal", "low"), order);
+    }
+
+    @Test
+    void busyBulkheadLeavesWorkersToTheOthers() throws InterruptedException {
+        WorkloadScheduler scheduler = new WorkloadScheduler(2);
+        WorkloadScheduler.Bulkhead search = scheduler.bulkhead("search", 1, 4);
+        WorkloadScheduler.Bulkhead auth = scheduler.bulkhead("auth", 1, 4);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch signedIn = new CountDownLatch(1);
+        scheduler.submit(search, WorkloadScheduler.Priority.NORMAL, block(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.submit(search, WorkloadScheduler.Priority.HIGH, block(new CountDownLatch(1), release));
+
+        scheduler.submit(auth, WorkloadScheduler.Priority.LOW, signedIn::countDown);
+        assertTrue(signedIn.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    void bulkheadsCannotReserveMoreThanTheWorkers() {
+        WorkloadScheduler scheduler = new WorkloadScheduler(4);
+        scheduler.bulkhead("routes", 3, 4);
+        scheduler.bulkhead("auth", 5, 4);
+        assertEquals(0, scheduler.getUnreservedWorkers());
+        assertThrows(IllegalStateException.class, () -> scheduler.bulkhead("ops", 1, 4));
+    }
+
+    @Test
+    void reservedWorkerServesItsBulkheadWhileAnotherIsSaturated() throws InterruptedException {
+        WorkloadScheduler scheduler = new WorkloadScheduler(3);
+        WorkloadScheduler.Bulkhead ops = scheduler.bulkhead("ops", 1, 4);
+        WorkloadScheduler.Bulkhead search = scheduler.bulkhead("search", 8, 8);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(scheduler.submit(search, WorkloadScheduler.Priority.HIGH, block(started, release)));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch served = new CountDownLatch(1);
+        assertTrue(scheduler.submit(ops, WorkloadScheduler.Priority.LOW, served::countDown));
+        assertTrue(served.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    private static Runnable block(CountDownLatch started, CountDownLatch release) {
+        return () -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+}